@@ -1,5 +1,6 @@
 package com.nikhilpb.abtesting;
 
+import com.nikhilpb.util.math.Distributions;
 import com.nikhilpb.util.math.PSDMatrix;
 
 import java.io.BufferedReader;
@@ -39,7 +40,7 @@ public class ClickDataModel implements DataModel {
                         final int userCount,
                         final int dim,
                         final long seed) {
-    random = new Random(seed);
+    random = Distributions.newRandom(seed);
     final int originalDim = dim;
     try {
       System.out.println("Finding covariates that are always zero");
@@ -34,7 +34,7 @@ public class ContinuationValueCollection {
 
     System.out.println("Sampling points");
     sampledPoints = new ArrayList<Pair<Double, Double>>();
-    Random random = new Random(seed);
+    Random random = Distributions.newRandom(seed);
     for (int i = 0; i < simPointsCount; ++i) {
       sampledPoints.add(new Pair<Double, Double>(random.nextGaussian(),
                                                  Distributions.nextChiSquared(random, dimension - 2)));
@@ -1,6 +1,7 @@
 package com.nikhilpb.adp;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created with IntelliJ IDEA.
@@ -40,6 +41,35 @@ public class BasisSet {
     return value;
   }
 
+  /**
+   * Evaluates the basis over a block of states into a column-major design matrix: the value of
+   * basis function j at state s is written to out[j * states.size() + s]. Batch state functions
+   * fill their column in one call.
+   *
+   * @param states the block of states
+   * @param out    buffer of length at least size() * states.size()
+   */
+  public void evaluate(List<? extends State> states, double[] out) {
+    int n = states.size();
+    for (int j = 0; j < basis.size(); ++ j) {
+      StateFunction function = basis.get(j);
+      int offset = j * n;
+      if (function instanceof BatchStateFunction) {
+        ((BatchStateFunction) function).values(states, out, offset);
+      } else {
+        for (int s = 0; s < n; ++ s) {
+          out[offset + s] = function.value(states.get(s));
+        }
+      }
+    }
+  }
+
+  public double[] evaluate(List<? extends State> states) {
+    double[] out = new double[basis.size() * states.size()];
+    evaluate(states, out);
+    return out;
+  }
+
   @Override
   public String toString() {
     String string = "";
@@ -0,0 +1,13 @@
+package com.nikhilpb.adp;
+
+import java.util.List;
+
+/**
+ * State function that can be evaluated over a block of states at once.
+ */
+public interface BatchStateFunction extends StateFunction {
+  /**
+   * Writes value(states.get(i)) into out[offset + i] for every state of the block.
+   */
+  public void values(List<? extends State> states, double[] out, int offset);
+}
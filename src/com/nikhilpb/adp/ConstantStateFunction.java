@@ -1,5 +1,8 @@
 package com.nikhilpb.adp;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Created with IntelliJ IDEA.
  * User: nikhilpb
@@ -7,7 +10,7 @@ package com.nikhilpb.adp;
  * Time: 4:56 PM
  * To change this template use File | Settings | File Templates.
  */
-public class ConstantStateFunction implements StateFunction {
+public class ConstantStateFunction implements BatchStateFunction {
   private double val;
 
   public ConstantStateFunction(double val) {
@@ -19,6 +22,11 @@ public class ConstantStateFunction implements StateFunction {
     return val;
   }
 
+  @Override
+  public void values(List<? extends State> states, double[] out, int offset) {
+    Arrays.fill(out, offset, offset + states.size(), val);
+  }
+
   @Override
   public String toString() {
     return "const_" + val;
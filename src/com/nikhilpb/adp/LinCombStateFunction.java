@@ -1,6 +1,6 @@
 package com.nikhilpb.adp;
 
-import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created with IntelliJ IDEA.
@@ -9,7 +9,7 @@ import java.util.ArrayList;
  * Time: 2:43 PM
  * To change this template use File | Settings | File Templates.
  */
-public class LinCombStateFunction implements StateFunction {
+public class LinCombStateFunction implements BatchStateFunction {
   private final double[] coeffs;
   private final BasisSet stateFunctions;
 
@@ -30,6 +30,21 @@ public class LinCombStateFunction implements StateFunction {
     return value;
   }
 
+  @Override
+  public void values(List<? extends State> states, double[] out, int offset) {
+    int n = states.size();
+    double[] design = stateFunctions.evaluate(states);
+    for (int s = 0; s < n; ++ s) {
+      out[offset + s] = 0.;
+    }
+    for (int i = 0; i < coeffs.length; ++ i) {
+      int column = i * n;
+      for (int s = 0; s < n; ++ s) {
+        out[offset + s] += coeffs[i] * design[column + s];
+      }
+    }
+  }
+
   @Override
   public String toString() {
     String name = "";
@@ -18,6 +18,20 @@ public abstract class MarkovDecisionProcess {
 
   public abstract void reset(long seed);
 
+  /**
+   * Resets the process to the given seed. With antithetic set, the process draws the mirror image
+   * of the noise that the plain seed produces; without it, this is the same as reset(seed).
+   */
+  public abstract void reset(long seed, boolean antithetic);
+
+  /**
+   * Returns an independent copy of the process which shares the model parameters but owns its
+   * source of randomness, so that copies can be simulated concurrently.
+   *
+   * @return a copy of the process
+   */
+  public abstract MarkovDecisionProcess copy();
+
   public RewardFunction getRewardFunction() {
     return rewardFunction;
   }
@@ -1,7 +1,11 @@
 package com.nikhilpb.adp;
 
+import com.nikhilpb.util.math.Distributions;
+
 import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Created with IntelliJ IDEA.
@@ -15,40 +19,73 @@ public class MonteCarloEval {
   private Policy policy;
   private RewardFunction rewardFunction;
   private Random random;
+  private static final int kPathsPerChunk = 64;
 
   public MonteCarloEval(MarkovDecisionProcess mdp, Policy policy, long seed) {
     this.mdp = mdp;
     this.policy = policy;
     this.rewardFunction = mdp.getRewardFunction();
-    this.random = new Random(seed);
+    this.random = Distributions.newRandom(seed);
   }
 
   public SamplePath samplePath(long seed, int timePeriods) {
-    mdp.reset(seed);
     SamplePath samplePath = new SamplePath();
+    samplePath.reward = simulate(mdp, policy, seed, false, timePeriods, samplePath.stateActions, null);
+    return samplePath;
+  }
+
+  /**
+   * Simulates one path of the policy.
+   *
+   * @param process      the process to simulate, reset with the seed
+   * @param pathPolicy   the policy to follow
+   * @param seed         seed of the path
+   * @param antithetic   whether to draw the mirror image of the noise of the seed
+   * @param timePeriods  maximum length of the path
+   * @param stateActions if not null, the visited state-action pairs are appended to it
+   * @param results      if not null, the reward of the path is added to it
+   * @return the discounted reward of the path
+   */
+  private double simulate(MarkovDecisionProcess process,
+                          Policy pathPolicy,
+                          long seed,
+                          boolean antithetic,
+                          int timePeriods,
+                          ArrayList<StateAction> stateActions,
+                          MonteCarloResults results) {
+    process.reset(seed, antithetic);
     State curState = null;
     Action curAction = null;
     int time = 0;
-    double alpha = mdp.getAlpha();
+    double alpha = process.getAlpha();
+    double reward = 0.;
     do {
       if (time == 0) {
-        curState = mdp.getBaseState();
+        curState = process.getBaseState();
       } else {
-        StateDistribution distribution = mdp.getDistribution(curState, curAction);
+        StateDistribution distribution = process.getDistribution(curState, curAction);
         if (distribution == null) {
           break;
         }
         curState = distribution.nextSample();
       }
-      curAction = policy.getAction(curState);
-      samplePath.stateActions.add(new StateAction(curState, curAction));
-      samplePath.reward += Math.pow(alpha, time)
-                                   * rewardFunction.value(curState, curAction);
+      curAction = pathPolicy.getAction(curState);
+      if (stateActions != null) {
+        stateActions.add(new StateAction(curState, curAction));
+      }
+      reward += Math.pow(alpha, time) * rewardFunction.value(curState, curAction);
       time += 1;
     } while (time < timePeriods);
-    return samplePath;
+    if (results != null) {
+      results.add(reward, time);
+    }
+    return reward;
   }
 
+  /**
+   * Samples paths and retains their trajectories. Only use this when the trajectories themselves
+   * are needed, eval computes the statistics without holding on to the paths.
+   */
   public ArrayList<SamplePath> getSamplePaths(int pathsCount, int timePeriods) {
     ArrayList<SamplePath> samplePaths = new ArrayList<SamplePath>();
     for (int i = 0; i < pathsCount; ++ i) {
@@ -57,29 +94,326 @@ public class MonteCarloEval {
     return samplePaths;
   }
 
+  /**
+   * Evaluates the policy. Every path is folded into a running accumulator as soon as it is
+   * simulated and then discarded, so memory does not grow with the number of paths.
+   *
+   * @param pathsCount  number of sample paths
+   * @param timePeriods maximum length of each path
+   * @return the Monte Carlo estimates
+   */
   public MonteCarloResults eval(int pathsCount, int timePeriods) {
-    ArrayList<SamplePath> samplePaths = getSamplePaths(pathsCount, timePeriods);
-    double mean = 0., var = 0.;
-    int totalStepCount = 0;
-    for (SamplePath sp : samplePaths) {
-      mean += sp.reward;
-      var += sp.reward * sp.reward;
-      totalStepCount += sp.stateActions.size();
+    long[] seeds = nextSeeds(pathsCount);
+    MonteCarloResults[] chunkResults = new MonteCarloResults[chunkCount(pathsCount)];
+    for (int c = 0; c < chunkResults.length; ++ c) {
+      chunkResults[c] = simulateChunk(mdp, seeds, c, timePeriods);
+    }
+    return merge(chunkResults);
+  }
+
+  /**
+   * Evaluates the policy by simulating the paths on a fork-join pool. The seed of every path is
+   * drawn up front from the same stream as in eval, each worker simulates its paths on its own
+   * copy of the process and the partial statistics of fixed-size chunks of paths are merged in
+   * path order. The results are therefore bit-identical to eval for the same seed, irrespective of
+   * the number of threads. The policy must be safe to call from several threads.
+   *
+   * @param pathsCount  number of sample paths
+   * @param timePeriods maximum length of each path
+   * @param threadCount number of worker threads
+   * @return the Monte Carlo estimates
+   */
+  public MonteCarloResults evalParallel(int pathsCount, int timePeriods, int threadCount) {
+    long[] seeds = nextSeeds(pathsCount);
+    MonteCarloResults[] chunkResults = new MonteCarloResults[chunkCount(pathsCount)];
+    ForkJoinPool pool = new ForkJoinPool(threadCount);
+    try {
+      pool.invoke(new ChunkTask(seeds, timePeriods, chunkResults, 0, chunkResults.length));
+    } finally {
+      pool.shutdown();
+    }
+    return merge(chunkResults);
+  }
+
+  /**
+   * Evaluates the policy in batches until the standard error of the mean is within the tolerance
+   * of the config or one of its budgets is exhausted. The number of paths used is reported by the
+   * sample count of the results.
+   *
+   * @param timePeriods maximum length of each path
+   * @param config      tolerances, budgets and batch size
+   * @return the Monte Carlo estimates over all the simulated batches
+   */
+  public MonteCarloResults evalToTolerance(int timePeriods, ToleranceConfig config) {
+    if (config.batchSize <= 0) {
+      throw new IllegalArgumentException("batch size must be positive");
+    }
+    if (config.absTol <= 0. && config.relTol <= 0.
+            && config.maxPaths == Integer.MAX_VALUE && config.maxMillis == Long.MAX_VALUE) {
+      throw new IllegalArgumentException("a tolerance or a budget must be set");
+    }
+    long startTime = System.currentTimeMillis();
+    MonteCarloResults results = new MonteCarloResults();
+    while (results.getSampleCount() < config.maxPaths) {
+      int batchSize = Math.min(config.batchSize, config.maxPaths - results.getSampleCount());
+      if (config.threadCount > 1) {
+        results.merge(evalParallel(batchSize, timePeriods, config.threadCount));
+      } else {
+        results.merge(eval(batchSize, timePeriods));
+      }
+      double tol = Math.max(config.absTol, config.relTol * Math.abs(results.getMean()));
+      if (results.getSampleCount() > 1 && results.getStdErr() <= tol) {
+        break;
+      }
+      if (System.currentTimeMillis() - startTime >= config.maxMillis) {
+        break;
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Evaluates the policy with antithetic pairs of paths. Every seed is simulated once with its
+   * plain and once with its mirrored noise, and the average of the pair is one sample of the
+   * estimator.
+   *
+   * @param pairsCount  number of antithetic pairs, twice as many paths are simulated
+   * @param timePeriods maximum length of each path
+   * @return the estimate and its variance reduction over plain sampling of as many paths
+   */
+  public VarianceReducedResults evalAntithetic(int pairsCount, int timePeriods) {
+    MonteCarloResults plain = new MonteCarloResults(), paired = new MonteCarloResults();
+    for (int i = 0; i < pairsCount; ++ i) {
+      long seed = random.nextLong();
+      double reward = simulate(mdp, policy, seed, false, timePeriods, null, plain);
+      double mirrored = simulate(mdp, policy, seed, true, timePeriods, null, plain);
+      paired.add(.5 * (reward + mirrored), 0);
+    }
+    return new VarianceReducedResults(paired.getMean(), paired.getStdErr(), plain.getStdErr(),
+                                      plain.getSampleCount());
+  }
+
+  /**
+   * Evaluates the policy with a control variate. The control is evaluated at the state where each
+   * path ends, which is a stopping time, so controlMean must be its expectation at any bounded
+   * stopping time (e.g. the initial value of a martingale). The coefficient of the control is the
+   * sample regression coefficient of the rewards on it.
+   *
+   * @param pathsCount  number of sample paths
+   * @param timePeriods maximum length of each path
+   * @param control     the control variate
+   * @param controlMean the known expectation of the control
+   * @return the estimate and its variance reduction over the plain estimate
+   */
+  public VarianceReducedResults evalControlVariate(int pathsCount,
+                                                   int timePeriods,
+                                                   StateFunction control,
+                                                   double controlMean) {
+    double[] rewards = new double[pathsCount], controls = new double[pathsCount];
+    MonteCarloResults plain = new MonteCarloResults(), controlResults = new MonteCarloResults();
+    ArrayList<StateAction> stateActions = new ArrayList<StateAction>();
+    for (int i = 0; i < pathsCount; ++ i) {
+      stateActions.clear();
+      rewards[i] = simulate(mdp, policy, random.nextLong(), false, timePeriods, stateActions, plain);
+      controls[i] = control.value(stateActions.get(stateActions.size() - 1).getState());
+      controlResults.add(controls[i], 0);
+    }
+    double cov = 0.;
+    for (int i = 0; i < pathsCount; ++ i) {
+      cov += (rewards[i] - plain.getMean()) * (controls[i] - controlResults.getMean());
+    }
+    double var = controlResults.getStd() * controlResults.getStd() * pathsCount;
+    double beta = var > 0. ? cov / var : 0.;
+    MonteCarloResults controlled = new MonteCarloResults();
+    for (int i = 0; i < pathsCount; ++ i) {
+      controlled.add(rewards[i] - beta * (controls[i] - controlMean), 0);
+    }
+    return new VarianceReducedResults(controlled.getMean(), controlled.getStdErr(), plain.getStdErr(),
+                                      pathsCount);
+  }
+
+  /**
+   * Estimates the difference in value between the policy and another one with common random
+   * numbers: both policies are simulated on the same seeds. The policies must not draw from the
+   * randomness of the process.
+   *
+   * @param other       the policy to compare against
+   * @param pathsCount  number of seeds, each policy is simulated once per seed
+   * @param timePeriods maximum length of each path
+   * @return the estimated difference and its variance reduction over independent sampling
+   */
+  public VarianceReducedResults compare(Policy other, int pathsCount, int timePeriods) {
+    MonteCarloResults first = new MonteCarloResults(), second = new MonteCarloResults(),
+            difference = new MonteCarloResults();
+    for (int i = 0; i < pathsCount; ++ i) {
+      long seed = random.nextLong();
+      double reward = simulate(mdp, policy, seed, false, timePeriods, null, first);
+      double otherReward = simulate(mdp, other, seed, false, timePeriods, null, second);
+      difference.add(reward - otherReward, 0);
+    }
+    double independentStdErr = Math.sqrt(first.getStdErr() * first.getStdErr()
+                                                 + second.getStdErr() * second.getStdErr());
+    return new VarianceReducedResults(difference.getMean(), difference.getStdErr(), independentStdErr,
+                                      2 * pathsCount);
+  }
+
+  private long[] nextSeeds(int pathsCount) {
+    long[] seeds = new long[pathsCount];
+    for (int i = 0; i < pathsCount; ++ i) {
+      seeds[i] = random.nextLong();
+    }
+    return seeds;
+  }
+
+  private static int chunkCount(int pathsCount) {
+    return (pathsCount + kPathsPerChunk - 1) / kPathsPerChunk;
+  }
+
+  private MonteCarloResults simulateChunk(MarkovDecisionProcess process, long[] seeds, int chunk, int timePeriods) {
+    MonteCarloResults results = new MonteCarloResults();
+    int end = Math.min(seeds.length, (chunk + 1) * kPathsPerChunk);
+    for (int i = chunk * kPathsPerChunk; i < end; ++ i) {
+      simulate(process, policy, seeds[i], false, timePeriods, null, results);
+    }
+    return results;
+  }
+
+  private static MonteCarloResults merge(MonteCarloResults[] chunkResults) {
+    MonteCarloResults results = new MonteCarloResults();
+    for (MonteCarloResults chunk : chunkResults) {
+      results.merge(chunk);
+    }
+    return results;
+  }
+
+  private class ChunkTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final long[] seeds;
+    private final int timePeriods, start, end;
+    private final MonteCarloResults[] chunkResults;
+
+    ChunkTask(long[] seeds, int timePeriods, MonteCarloResults[] chunkResults, int start, int end) {
+      this.seeds = seeds;
+      this.timePeriods = timePeriods;
+      this.chunkResults = chunkResults;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start == 1) {
+        chunkResults[start] = simulateChunk(mdp.copy(), seeds, start, timePeriods);
+        return;
+      }
+      int mid = (start + end) >>> 1;
+      invokeAll(new ChunkTask(seeds, timePeriods, chunkResults, start, mid),
+                new ChunkTask(seeds, timePeriods, chunkResults, mid, end));
     }
-    mean = mean / pathsCount;
-    var = var / pathsCount;
-    var = var - (mean * mean);
-    return new MonteCarloResults(mean, Math.sqrt(var), pathsCount, totalStepCount);
   }
 
+  /**
+   * Estimate of a variance reduced evaluation together with the standard error that plain
+   * sampling would have achieved with the same number of paths.
+   */
+  public static class VarianceReducedResults {
+    private final double mean, stdErr, plainStdErr;
+    private final int pathsCount;
+
+    public VarianceReducedResults(double mean, double stdErr, double plainStdErr, int pathsCount) {
+      this.mean = mean;
+      this.stdErr = stdErr;
+      this.plainStdErr = plainStdErr;
+      this.pathsCount = pathsCount;
+    }
+
+    public double getMean() {
+      return mean;
+    }
+
+    public double getStdErr() {
+      return stdErr;
+    }
+
+    public double getPlainStdErr() {
+      return plainStdErr;
+    }
+
+    public int getPathsCount() {
+      return pathsCount;
+    }
+
+    /**
+     * @return ratio of the plain to the reduced variance of the estimate
+     */
+    public double getVarianceReduction() {
+      return (plainStdErr * plainStdErr) / (stdErr * stdErr);
+    }
+
+    @Override
+    public String toString() {
+      return "mean: " + mean + ",\n" +
+                     "standard error: " + stdErr + ",\n" +
+                     "plain standard error: " + plainStdErr + ",\n" +
+                     "variance reduction: " + getVarianceReduction() + ",\n" +
+                     "paths count: " + pathsCount + "\n";
+    }
+  }
+
+  /**
+   * Stopping rule of evalToTolerance. Simulation stops once the standard error is at most
+   * max(absTol, relTol * |mean|), or after maxPaths paths or maxMillis milliseconds.
+   */
+  public static class ToleranceConfig {
+    public double absTol = 0., relTol = 0.;
+    public int batchSize = 1000, maxPaths = Integer.MAX_VALUE, threadCount = 1;
+    public long maxMillis = Long.MAX_VALUE;
+  }
+
+  /**
+   * Online accumulator of the path rewards. Mean and variance are updated with Welford's method
+   * and partial accumulators are combined with the pairwise update of Chan et al.
+   */
   public static class MonteCarloResults {
-    private double mcMean, mcStd, mcStdErr, meanStepCount;
+    private int sampleCount;
+    private long totalStepCount;
+    private double mcMean, m2;
+    private double mcMin = Double.POSITIVE_INFINITY, mcMax = Double.NEGATIVE_INFINITY;
+
+    public MonteCarloResults() {
+    }
+
+    public void add(double reward, int stepCount) {
+      sampleCount += 1;
+      totalStepCount += stepCount;
+      double delta = reward - mcMean;
+      mcMean += delta / sampleCount;
+      m2 += delta * (reward - mcMean);
+      mcMin = Math.min(mcMin, reward);
+      mcMax = Math.max(mcMax, reward);
+    }
 
-    public MonteCarloResults(double mcMean, double mcStd, int sampleCount, int totalStepCount) {
-      this.mcMean = mcMean;
-      this.mcStd = mcStd;
-      this.mcStdErr = mcStd / Math.sqrt((double) sampleCount);
-      this.meanStepCount = totalStepCount / ((double) sampleCount);
+    public void merge(MonteCarloResults other) {
+      if (other.sampleCount == 0) {
+        return;
+      }
+      if (sampleCount == 0) {
+        sampleCount = other.sampleCount;
+        totalStepCount = other.totalStepCount;
+        mcMean = other.mcMean;
+        m2 = other.m2;
+        mcMin = other.mcMin;
+        mcMax = other.mcMax;
+        return;
+      }
+      int count = sampleCount + other.sampleCount;
+      double delta = other.mcMean - mcMean;
+      mcMean += delta * other.sampleCount / count;
+      m2 += other.m2 + delta * delta * ((double) sampleCount) * other.sampleCount / count;
+      sampleCount = count;
+      totalStepCount += other.totalStepCount;
+      mcMin = Math.min(mcMin, other.mcMin);
+      mcMax = Math.max(mcMax, other.mcMax);
     }
 
     public double getMean() {
@@ -87,19 +421,37 @@ public class MonteCarloEval {
     }
 
     public double getStd() {
-      return mcStd;
+      return sampleCount == 0 ? 0. : Math.sqrt(m2 / sampleCount);
     }
 
     public double getStdErr() {
-      return mcStdErr;
+      return sampleCount == 0 ? 0. : getStd() / Math.sqrt((double) sampleCount);
+    }
+
+    public int getSampleCount() {
+      return sampleCount;
+    }
+
+    public double getMeanStepCount() {
+      return totalStepCount / ((double) sampleCount);
+    }
+
+    public double getMin() {
+      return mcMin;
+    }
+
+    public double getMax() {
+      return mcMax;
     }
 
     @Override
     public String toString() {
       return "mean: " + mcMean + ",\n" +
-                     "standard deviation: " + mcStd + ",\n" +
-                     "standard error: " + mcStdErr + ",\n" +
-                     "mean step count: " + meanStepCount + "\n";
+                     "standard deviation: " + getStd() + ",\n" +
+                     "standard error: " + getStdErr() + ",\n" +
+                     "min: " + mcMin + ", max: " + mcMax + ",\n" +
+                     "sample count: " + sampleCount + ",\n" +
+                     "mean step count: " + getMeanStepCount() + "\n";
     }
   }
 
@@ -1,6 +1,8 @@
 package com.nikhilpb.adp;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Created with IntelliJ IDEA.
@@ -19,6 +21,9 @@ public class QFunctionPolicy implements Policy {
   private QFunction qFunction;
   private RewardFunction rewardFunction;
   private double alpha;
+  private StateQuantizer quantizer;
+  private volatile LinkedHashMap<Object, Action> cache;
+  private long cacheHits, cacheMisses;
 
   public QFunctionPolicy(MarkovDecisionProcess model,
                          QFunction qFunction,
@@ -30,16 +35,75 @@ public class QFunctionPolicy implements Policy {
     this.alpha = alpha;
   }
 
+  /**
+   * Caches the decisions of the policy in a bounded LRU map keyed on the quantized state. Every
+   * state of a cell gets the decision at the centre of the cell, so the decisions do not depend on
+   * the order in which the states are visited, nor on evictions or the number of threads. The cache
+   * is off until this is called.
+   *
+   * @param quantizer maps states to cache keys and cell centres
+   * @param capacity  maximum number of cached decisions
+   */
+  public synchronized void enableCache(StateQuantizer quantizer, final int capacity) {
+    this.quantizer = quantizer;
+    cacheHits = 0;
+    cacheMisses = 0;
+    this.cache = new LinkedHashMap<Object, Action>(16, .75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Object, Action> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  public synchronized long getCacheHits() {
+    return cacheHits;
+  }
+
+  public synchronized long getCacheMisses() {
+    return cacheMisses;
+  }
+
   /**
    * @param state
    * @return Action corresponding to the state given by the policy.
    */
   @Override
   public Action getAction(State state) {
+    LinkedHashMap<Object, Action> cache = this.cache;
+    if (cache == null) {
+      return maxAction(state);
+    }
+    // quantizer is written before the volatile cache
+    Object key = quantizer.key(state);
+    synchronized (this) {
+      Action action = cache.get(key);
+      if (action != null) {
+        cacheHits++;
+        return action;
+      }
+      cacheMisses++;
+    }
+    // a function of the key alone, so concurrent misses of a cell agree
+    Action action = maxAction(quantizer.center(state));
+    synchronized (this) {
+      cache.put(key, action);
+    }
+    return action;
+  }
+
+  private Action maxAction(State state) {
     ArrayList<Action> actions = state.getActions();
+    if (actions.size() == 2) {
+      Action first = actions.get(0), second = actions.get(1);
+      double firstValue = rewardFunction.value(state, first) + alpha * qFunction.value(state, first);
+      double secondValue = rewardFunction.value(state, second) + alpha * qFunction.value(state, second);
+      return secondValue > firstValue ? second : first;
+    }
     Action maxAction = null;
     double value, maxValue = - Double.MAX_VALUE;
-    for (Action a : actions) {
+    for (int i = 0; i < actions.size(); ++ i) {
+      Action a = actions.get(i);
       double rfv = rewardFunction.value(state, a);
       double qfv = qFunction.value(state, a);
       value = rfv + alpha * qfv;
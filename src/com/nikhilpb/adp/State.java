@@ -10,5 +10,9 @@ import java.util.ArrayList;
  * To change this template use File | Settings | File Templates.
  */
 public interface State {
+  /**
+   * @return the actions available in the state. Processes with the same actions in every state
+   * should return one shared list, policies call this once per decision.
+   */
   public ArrayList<Action> getActions();
 }
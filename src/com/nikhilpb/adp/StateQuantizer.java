@@ -0,0 +1,19 @@
+package com.nikhilpb.adp;
+
+/**
+ * Maps a state to the cell of a grid it falls in. States with equal keys are treated as the same
+ * state by caches, so the key must include everything that distinguishes the decision problem,
+ * e.g. the time period.
+ */
+public interface StateQuantizer {
+  /**
+   * @return a key with value semantics (equals and hashCode) identifying the cell of the state
+   */
+  public Object key(State state);
+
+  /**
+   * @return the state at the centre of the cell of the given state, which stands for every state
+   * of the cell
+   */
+  public State center(State state);
+}
@@ -1,5 +1,6 @@
 package com.nikhilpb.doe;
 
+import com.nikhilpb.util.math.Distributions;
 import com.sun.tools.javac.util.Pair;
 
 import java.util.Random;
@@ -12,7 +13,7 @@ public class ABPairGenerator {
   private int p;
 
   public ABPairGenerator(long seed, int p) {
-    random = new Random(seed);
+    random = Distributions.newRandom(seed);
     this.p = p;
   }
 
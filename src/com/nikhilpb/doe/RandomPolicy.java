@@ -1,5 +1,7 @@
 package com.nikhilpb.doe;
 
+import com.nikhilpb.util.math.Distributions;
+
 import java.util.Random;
 
 /**
@@ -9,7 +11,7 @@ public class RandomPolicy implements Policy {
   private Random random;
 
   public RandomPolicy(long seed) {
-    random = new Random(seed);
+    random = Distributions.newRandom(seed);
   }
 
   @Override
@@ -1,6 +1,8 @@
 package com.nikhilpb.matching;
 
 import com.nikhilpb.util.Pair;
+import com.nikhilpb.util.math.AssignmentSolver;
+import com.nikhilpb.util.math.HungarianAssignmentSolver;
 import ilog.concert.IloException;
 import ilog.concert.IloLinearNumExpr;
 import ilog.concert.IloNumVar;
@@ -15,14 +17,22 @@ import java.util.Arrays;
  * Date: 9/30/13
  * Time: 5:55 PM
  * To change this template use File | Settings | File Templates.
+ * <p/>
+ * Without a CPLEX instance the matching is solved by a HungarianAssignmentSolver, which leaves the
+ * pairs of nonpositive weight unmatched.
  */
 public class AsymmetricMatcher {
   private double[][] weights;
   private int supplySize, demandSize;
   private IloCplex cplex;
   private IloNumVar[][] piVar;
+  private AssignmentSolver assignmentSolver;
   private static final double kTol = 1E-5;
 
+  public AsymmetricMatcher(double[][] weights) {
+    this(weights, null);
+  }
+
   public AsymmetricMatcher(double[][] weights, IloCplex cplex) {
     this.weights = weights;
     this.cplex = cplex;
@@ -42,6 +52,11 @@ public class AsymmetricMatcher {
     if (supplySize == 0 || demandSize == 0) {
       return true;
     }
+    if (cplex == null) {
+      assignmentSolver = new HungarianAssignmentSolver();
+      assignmentSolver.computeMax(weights);
+      return true;
+    }
     cplex.clearModel();
     piVar = new IloNumVar[supplySize][demandSize];
     double[] lb = new double[demandSize], ub = new double[demandSize], ones = new double[demandSize];
@@ -72,6 +87,15 @@ public class AsymmetricMatcher {
 
   public ArrayList<Pair<Integer, Integer>> getMatchedPairs() throws IloException {
     ArrayList<Pair<Integer, Integer>> pairs = new ArrayList<Pair<Integer, Integer>>();
+    if (assignmentSolver != null) {
+      int[] rowMatches = assignmentSolver.getRowMatches();
+      for (int i = 0; i < supplySize; ++ i) {
+        if (rowMatches[i] >= 0) {
+          pairs.add(new Pair<Integer, Integer>(i, rowMatches[i]));
+        }
+      }
+      return pairs;
+    }
     for (int i = 0; i < supplySize; ++ i) {
       for (int j = 0; j < demandSize; ++ j) {
         double pi = cplex.getValue(piVar[i][j]);
@@ -1,7 +1,12 @@
 package com.nikhilpb.matching;
 
+import com.nikhilpb.util.math.Distributions;
+
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Created with IntelliJ IDEA.
@@ -13,26 +18,78 @@ import java.util.Random;
 public class Evaluator {
   private MatchingSolver solver;
   private PrintStream out;
-  private int sampleCount;
+  private int sampleCount, threadCount;
   long seed;
 
   public Evaluator(MatchingSolver solver, PrintStream out, int sampleCount, long seed) {
+    this(solver, out, sampleCount, seed, 1);
+  }
+
+  /**
+   * @param threadCount number of threads the sample paths of an evaluation are split over
+   */
+  public Evaluator(MatchingSolver solver, PrintStream out, int sampleCount, long seed, int threadCount) {
     this.solver = solver;
     this.out = out;
     this.sampleCount = sampleCount;
     this.seed = seed;
+    this.threadCount = threadCount;
   }
 
   public double evaluate(String prefix) throws Exception {
+    return evaluate(prefix, solver.getSupplyFunction(), solver.getDemandFunction());
+  }
+
+  /**
+   * Evaluates the dual policy of the given value functions, which may be a snapshot of those of
+   * the solver. The sample paths are split into contiguous chunks, one per thread, each sampled
+   * on its own copy of the model, so that the solver can keep sampling on its model meanwhile. The
+   * values are summed in path order, so the result does not
+   * depend on the number of threads.
+   */
+  public double evaluate(String prefix,
+                         final ItemFunction supplyFunction,
+                         final ItemFunction demandFunction) throws Exception {
+    final long[] sampleSeeds = new long[sampleCount];
+    Random random = Distributions.newRandom(seed);
+    for (int ss = 0; ss < sampleCount; ++ ss) {
+      sampleSeeds[ss] = random.nextLong();
+    }
+    final double[] values = new double[sampleCount];
+    int chunkCount = Math.max(1, Math.min(threadCount, sampleCount));
+    final ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+    for (int c = 0; c < chunkCount; ++ c) {
+      final int start = c * sampleCount / chunkCount, end = (c + 1) * sampleCount / chunkCount;
+      final MatchingModel pathModel = solver.model.copy();
+      tasks.add(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          for (int ss = start; ss < end; ++ ss) {
+            values[ss] = solver.evaluate(sampleSeeds[ss], pathModel, supplyFunction, demandFunction);
+          }
+        }
+      });
+    }
+    if (chunkCount == 1) {
+      tasks.get(0).invoke();
+    } else {
+      ForkJoinPool pool = new ForkJoinPool(chunkCount);
+      try {
+        pool.invoke(new RecursiveAction() {
+          @Override
+          protected void compute() {
+            invokeAll(tasks);
+          }
+        });
+      } finally {
+        pool.shutdown();
+      }
+    }
     double value = 0.0;
     double valueStd = 0.0;
-    long sampleSeed;
-    Random random = new Random(seed);
     for (int ss = 0; ss < sampleCount; ++ ss) {
-      sampleSeed = random.nextLong();
-      double thisValue = solver.evaluate(sampleSeed);
-      value += thisValue;
-      valueStd += thisValue * thisValue;
+      value += values[ss];
+      valueStd += values[ss] * values[ss];
     }
     value = value / ((double) sampleCount);
     valueStd = valueStd / ((double) sampleCount);
@@ -40,5 +97,38 @@ public class Evaluator {
     out.printf("%s, value: %f, std dev:%f\n", prefix, value, valueStd);
     return value;
   }
+
+  /**
+   * Estimates the difference in value between the solver and another one with common random
+   * numbers, i.e. both are evaluated on the same sample paths. Prints the variance reduction over
+   * evaluating the two solvers independently.
+   *
+   * @return the mean difference in value
+   */
+  public double compare(MatchingSolver other, String prefix) throws Exception {
+    double diff = 0.0, diffSq = 0.0;
+    double value = 0.0, valueSq = 0.0, otherValue = 0.0, otherValueSq = 0.0;
+    Random random = Distributions.newRandom(seed);
+    for (int ss = 0; ss < sampleCount; ++ ss) {
+      long sampleSeed = random.nextLong();
+      double thisValue = solver.evaluate(sampleSeed);
+      double thatValue = other.evaluate(sampleSeed);
+      value += thisValue;
+      valueSq += thisValue * thisValue;
+      otherValue += thatValue;
+      otherValueSq += thatValue * thatValue;
+      diff += thisValue - thatValue;
+      diffSq += (thisValue - thatValue) * (thisValue - thatValue);
+    }
+    double n = (double) sampleCount;
+    value /= n;
+    otherValue /= n;
+    diff /= n;
+    double independentVar = (valueSq / n - value * value) + (otherValueSq / n - otherValue * otherValue);
+    double diffVar = diffSq / n - diff * diff;
+    out.printf("%s, difference: %f, std err:%f, variance reduction: %f\n",
+                      prefix, diff, Math.sqrt(diffVar / n), independentVar / diffVar);
+    return diff;
+  }
 }
 
@@ -2,6 +2,7 @@ package com.nikhilpb.matching;
 
 import com.nikhilpb.util.PropertySet;
 import com.nikhilpb.util.Experiment;
+import com.nikhilpb.util.math.Distributions;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -132,7 +133,7 @@ public class MatchingExperiment extends Experiment {
     MatchingSolver.SamplingPolicy samplingPolicy =
             MatchingSolver.samplingPolicyFromString(getPropertyOrDie(props, "sampling_policy"));
 
-    Random random = new Random(seed);
+    Random random = Distributions.newRandom(seed);
     solvers = new ArrayList<MatchingSolver>();
     boolean success = true;
     for (int p = 0; p < problemCount; ++ p) {
@@ -157,6 +158,10 @@ public class MatchingExperiment extends Experiment {
           config.checkPerStepsConfig = checkPerSteps;
           config.simSteps = simSteps;
           config.simSeed = simSeed;
+          config.batchSize = Integer.parseInt(props.getProperty("batch_size", "1"));
+          config.threadCount = Integer.parseInt(props.getProperty("threads", "1"));
+          config.averaging = Boolean.parseBoolean(props.getProperty("averaging", "false"));
+          config.evalThreadCount = Integer.parseInt(props.getProperty("eval_threads", "1"));
           solvers.add(new SsgdSolver(model, basisSetSupply, basisSetDemand,
                                             random.nextLong(), samplingPolicy, config));
           success = success && solvers.get(p).solve();
@@ -178,7 +183,7 @@ public class MatchingExperiment extends Experiment {
     final String evalType = props.getProperty("type");
     final int sampleCount = Integer.parseInt(getPropertyOrDie(props, "sample_count"));
     final long seed = Long.parseLong(getPropertyOrDie(props, "sample_seed"));
-    Random random = new Random(seed);
+    Random random = Distributions.newRandom(seed);
     long sampleSeed;
     double value, valueStd;
     MatchingSamplePath samplePath;
@@ -2,6 +2,7 @@ package com.nikhilpb.matching;
 
 import com.nikhilpb.util.PropertySet;
 import com.nikhilpb.util.XmlParser;
+import com.nikhilpb.util.math.Distributions;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -128,7 +129,7 @@ public class MatchingMain extends XmlParser {
     MatchingSolver.SamplingPolicy samplingPolicy =
             MatchingSolver.samplingPolicyFromString(getPropertyOrDie(props, "sampling_policy"));
 
-    Random random = new Random(seed);
+    Random random = Distributions.newRandom(seed);
     solvers = new ArrayList<MatchingSolver>();
     boolean success = true;
     for (int p = 0; p < problemCount; ++ p) {
@@ -153,6 +154,10 @@ public class MatchingMain extends XmlParser {
           config.checkPerStepsConfig = checkPerSteps;
           config.simSteps = simSteps;
           config.simSeed = simSeed;
+          config.batchSize = Integer.parseInt(props.getProperty("batch_size", "1"));
+          config.threadCount = Integer.parseInt(props.getProperty("threads", "1"));
+          config.averaging = Boolean.parseBoolean(props.getProperty("averaging", "false"));
+          config.evalThreadCount = Integer.parseInt(props.getProperty("eval_threads", "1"));
           solvers.add(new SsgdSolver(model, basisSetSupply, basisSetDemand,
                                             random.nextLong(), samplingPolicy, config));
           success = success && solvers.get(p).solve();
@@ -174,7 +179,7 @@ public class MatchingMain extends XmlParser {
     final String evalType = props.getProperty("type");
     final int sampleCount = Integer.parseInt(getPropertyOrDie(props, "sample_count"));
     final long seed = Long.parseLong(getPropertyOrDie(props, "sample_seed"));
-    Random random = new Random(seed);
+    Random random = Distributions.newRandom(seed);
     long sampleSeed;
     double value, valueStd;
     MatchingSamplePath samplePath;
@@ -200,6 +205,12 @@ public class MatchingMain extends XmlParser {
         Evaluator evaluator = new Evaluator(solvers.get(0), System.out, sampleCount, seed);
         evaluator.evaluate("solver no: " + s);
       }
+      if (props.getProperty("compare", "false").equals("true")) {
+        Evaluator evaluator = new Evaluator(solvers.get(0), System.out, sampleCount, seed);
+        for (int s = 1; s < solvers.size(); s++) {
+          evaluator.compare(solvers.get(s), "solver no: 0 - solver no: " + s);
+        }
+      }
     }
     return true;
   }
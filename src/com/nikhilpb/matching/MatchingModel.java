@@ -3,6 +3,7 @@ package com.nikhilpb.matching;
 import java.util.ArrayList;
 import java.util.Random;
 
+import com.nikhilpb.util.math.Distributions;
 import com.nikhilpb.util.math.DistributionsCCM;
 import com.nikhilpb.util.PropertySet;
 
@@ -27,8 +28,36 @@ public class MatchingModel {
     init(props);
   }
 
+  private MatchingModel(MatchingModel other) {
+    supplyTypeDim = other.supplyTypeDim;
+    demandTypeDim = other.demandTypeDim;
+    timePeriods = other.timePeriods;
+    supplyTypes = other.supplyTypes;
+    demandTypes = other.demandTypes;
+    supplyDistribution = other.supplyDistribution.copy();
+    demandDistribution = other.demandDistribution.copy();
+    rewardFunction = other.rewardFunction;
+    modelType = other.modelType;
+    random = Distributions.newRandom(0L);
+    supplyDepartureRate = other.supplyDepartureRate;
+    demandDepartureRate = other.demandDepartureRate;
+    meanArrivalCount = other.meanArrivalCount;
+    sodBias = other.sodBias;
+    initPopParam = other.initPopParam;
+  }
+
+  /**
+   * @return a model with the same parameters and its own random state, so that the copy can
+   * sample paths on another thread. The random state is to be set by initiateRandom, as every
+   * MatchingSamplePath does, and paths sampled from a seed do not depend on the copy. Only reads
+   * the parameters, so it can be called while another thread samples from this model.
+   */
+  public MatchingModel copy() {
+    return new MatchingModel(this);
+  }
+
   public void initiateRandom(long seed) {
-    random = new Random(seed);
+    random = Distributions.newRandom(seed);
     setSupRandomSeed(random.nextLong());
     setDemRandomSeed(random.nextLong());
   }
@@ -62,7 +91,7 @@ public class MatchingModel {
   }
 
   public void setSupRandomSeed(long seed) {
-    supplyDistribution.setRandom(new Random(seed));
+    supplyDistribution.setRandom(Distributions.newRandom(seed));
   }
 
   public void setDemRandom(Random rand) {
@@ -70,7 +99,7 @@ public class MatchingModel {
   }
 
   public void setDemRandomSeed(long seed) {
-    demandDistribution.setRandom(new Random(seed));
+    demandDistribution.setRandom(Distributions.newRandom(seed));
   }
 
   public double getInitPopParam() {
@@ -121,8 +150,8 @@ public class MatchingModel {
           demProbs[i][j] = supProbs[i][j];
         }
       }
-      Random supRandom = new Random(props.getLongDefault("supply_seed", 123L));
-      Random demRandom = new Random(props.getLongDefault("demand_seed", 456L));
+      Random supRandom = Distributions.newRandom(props.getLongDefault("supply_seed", 123L));
+      Random demRandom = Distributions.newRandom(props.getLongDefault("demand_seed", 456L));
       supplyDistribution = new MultiIndependentDist(supProbs, supRandom);
       demandDistribution = new MultiIndependentDist(demProbs, demRandom);
       if (props.getStringDefault("reward_function", "separable").equals("separable")) {
@@ -149,8 +178,8 @@ public class MatchingModel {
           demProbs[i][j] = props.getDoubleDefault("dp[" + (i + 1) + "][" + (j + 1) + "]", 0.0);
         }
       }
-      Random supRandom = new Random(props.getLongDefault("supply_seed", 123L));
-      Random demRandom = new Random(props.getLongDefault("demand_seed", 456L));
+      Random supRandom = Distributions.newRandom(props.getLongDefault("supply_seed", 123L));
+      Random demRandom = Distributions.newRandom(props.getLongDefault("demand_seed", 456L));
       supplyDistribution = new MultiIndependentDist(supProbs, supRandom);
       demandDistribution = new MultiIndependentDist(demProbs, demRandom);
       if (props.getStringDefault("reward_function", "separable").equals("separable")) {
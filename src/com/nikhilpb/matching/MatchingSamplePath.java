@@ -1,11 +1,13 @@
 package com.nikhilpb.matching;
 
 import com.nikhilpb.util.CplexFactory;
+import com.nikhilpb.util.math.AssignmentSolver;
 import com.nikhilpb.util.math.DistributionsCCM;
-import com.nikhilpb.util.math.LawlerBipartiteMatcher;
+import com.nikhilpb.util.math.HungarianAssignmentSolver;
+import com.nikhilpb.util.math.IncrementalAssignmentSolver;
+import com.nikhilpb.util.math.SparseAssignmentSolver;
 import com.nikhilpb.util.Pair;
 import ilog.concert.IloException;
-import ilog.concert.IloLinearNumExpr;
 import ilog.concert.IloNumExpr;
 import ilog.concert.IloNumVar;
 import ilog.cplex.IloCplex;
@@ -28,7 +30,6 @@ public class MatchingSamplePath {
   private int timePeriods, initialPopulationSize;
   private MatchingModel model;
   private boolean isSampled = false, isMatched = false;
-  private LawlerBipartiteMatcher biparMatcher;
 
   ArrayList<Item> supplyItems, demandItems;
   ArrayList<Integer> supplyItemsI, demandItemsI;
@@ -103,35 +104,9 @@ public class MatchingSamplePath {
       }
     }
 
-    int n = Math.max(supplyItemIndex.size(), demandItemIndex.size());
-    biparMatcher = new LawlerBipartiteMatcher(n);
-    double[][] w = new double[n][];
-    for (int i = 0; i < n; i++) {
-      w[i] = new double[n];
-      Arrays.fill(w[i], 0);
-    }
-
-    // two items that co-exist in the same period can be matched
-    for (int i = 0; i < n; i++) {
-      for (int j = 0; j < n; j++) {
-        if ((i >= supplyItemIndex.size()) || (j >= demandItemIndex.size())) {
-          w[i][j] = 0;
-        } else {
-          Item itemS = allExistingItems.get(supplyItemIndex.get(i));
-          Item itemD = allExistingItems.get(demandItemIndex.get(j));
-          int aS = arrivalTimes.get(supplyItemIndex.get(i));
-          int dS = departureTimes.get(supplyItemIndex.get(i));
-          int aD = arrivalTimes.get(demandItemIndex.get(j));
-          int dD = departureTimes.get(demandItemIndex.get(j));
-          if ((aS > dD) || (aD > dS)) {
-            w[i][j] = 0.0;
-          } else {
-            w[i][j] = model.getRewardFunction().evaluate(itemS, itemD);
-          }
-        }
-      }
-    }
-    biparMatcher.computeMax(w);
+    SparseAssignmentSolver solver = new SparseAssignmentSolver(supplyItemIndex.size(), demandItemIndex.size());
+    addOverlapEdges(solver);
+    double weight = solver.computeMax();
 
     matchTimes = new ArrayList<Integer>(allExistingItems.size());
     for (int i = 0; i < allExistingItems.size(); i++) {
@@ -143,9 +118,9 @@ public class MatchingSamplePath {
       matchedPairs.add(new ArrayList<Pair<Integer, Integer>>());
     }
     Pair<Integer, Integer> pair;
-    int[] mSource = biparMatcher.getMatchingSource();
+    int[] mSource = solver.getRowMatches();
     for (int i = 0; i < supplyItemIndex.size(); i++) {
-      if (mSource[i] < demandItemIndex.size()) {
+      if (mSource[i] >= 0) {
         int thisInd = supplyItemIndex.get(i);
         int thisMatchedInd = demandItemIndex.get(mSource[i]);
         if ((arrivalTimes.get(thisInd) <= departureTimes.get(thisMatchedInd)) &&
@@ -171,7 +146,44 @@ public class MatchingSamplePath {
     }
 
     isMatched = true;
-    return biparMatcher.getMatchingWeight();
+    return weight;
+  }
+
+  /**
+   * Adds to the solver an edge for every supply and demand pair whose presence intervals
+   * [arrival, departure] overlap, with the supply items as rows and the demand items as columns,
+   * each numbered in the order of allExistingItems. The items are stored in order of arrival, so a
+   * single sweep finds the pairs: when an item arrives, it overlaps exactly the items of the other
+   * kind that arrived before it and have not yet departed.
+   */
+  private void addOverlapEdges(SparseAssignmentSolver solver) {
+    ArrayList<Integer> activeSupply = new ArrayList<Integer>(), activeDemand = new ArrayList<Integer>();
+    // position of each item among the items of its kind
+    int[] position = new int[allExistingItems.size()];
+    int supplyCount = 0, demandCount = 0;
+    for (int i = 0; i < allExistingItems.size(); i++) {
+      Item item = allExistingItems.get(i);
+      boolean isSupply = item.isSod() == 1;
+      position[i] = isSupply ? supplyCount++ : demandCount++;
+      int arrival = arrivalTimes.get(i);
+      ArrayList<Integer> others = isSupply ? activeDemand : activeSupply;
+      for (int k = others.size() - 1; k >= 0; k--) {
+        int other = others.get(k);
+        if (departureTimes.get(other) < arrival) {
+          // departed, drop it by moving the last one into its place
+          others.set(k, others.get(others.size() - 1));
+          others.remove(others.size() - 1);
+          continue;
+        }
+        Item otherItem = allExistingItems.get(other);
+        if (isSupply) {
+          solver.addEdge(position[i], position[other], model.getRewardFunction().evaluate(item, otherItem));
+        } else {
+          solver.addEdge(position[other], position[i], model.getRewardFunction().evaluate(otherItem, item));
+        }
+      }
+      (isSupply ? activeSupply : activeDemand).add(i);
+    }
   }
 
   /**
@@ -303,204 +315,144 @@ public class MatchingSamplePath {
     return demandItems;
   }
 
+  /**
+   * Evaluates the dual policy, which matches the items of each period by a maximum weight
+   * assignment with the rewards net of the discounted values sf and df of the items.
+   *
+   * @param factory unused, the assignments are solved without CPLEX
+   */
   public double dualPolicyEvaluate(ItemFunction sf,
                                    ItemFunction df,
                                    CplexFactory factory)
           throws Exception {
-    if (! isSampled) {
-      throw new RuntimeException("must be sampled");
-    }
-    IloCplex cplex = factory.getCplex();
-    cplex.setOut(null);
-    IloNumVar[][] piVar;
-    ArrayList<Item> supplyItems = new ArrayList<Item>();
-    ArrayList<Item> demandItems = new ArrayList<Item>();
-    ArrayList<Integer> supplyIMap = new ArrayList<Integer>();
-    ArrayList<Integer> demandIMap = new ArrayList<Integer>();
-    boolean[] matched = new boolean[allExistingItems.size()];
-    Arrays.fill(matched, false);
-    int supplySize, demandSize;
-    double[] lb, ub, ones;
-    double coeff;
-    double[] pi;
-    double tol = 1E-5, qs, qd;
-    IloLinearNumExpr tempExp, obj;
-    Item sItem, dItem;
-    double totalReward = 0.0;
-    for (int t = 0; t <= timePeriods; t++) {
-      cplex.clearModel();
-      supplyItems.clear();
-      demandItems.clear();
-      supplyIMap.clear();
-      demandIMap.clear();
-      for (int i = 0; i < allExistingItems.size(); i++) {
-        if (! matched[i] && arrivalTimes.get(i) <= t && departureTimes.get(i) >= t) {
-          Item item = allExistingItems.get(i);
-          if (item.isSod() == 1) {
-            supplyItems.add(item);
-            supplyIMap.add(i);
-          } else {
-            demandItems.add(item);
-            demandIMap.add(i);
-          }
-        }
-      }
-      supplySize = supplyItems.size();
-      demandSize = demandItems.size();
-      piVar = new IloNumVar[supplySize][];
-      lb = new double[demandSize];
-      ub = new double[demandSize];
-      ones = new double[demandSize];
-      Arrays.fill(lb, 0.0);
-      Arrays.fill(ub, 1.0);
-      Arrays.fill(ones, 1.0);
-      for (int i = 0; i < supplySize; i++) {
-        piVar[i] = cplex.numVarArray(demandSize, lb, ub);
-        cplex.addLe(cplex.scalProd(ones, piVar[i]), 1.0);
-      }
-      for (int j = 0; j < demandSize; j++) {
-        tempExp = cplex.linearNumExpr();
-        for (int i = 0; i < supplySize; i++) {
-          tempExp.addTerm(1.0, piVar[i][j]);
-        }
-        cplex.addLe(tempExp, 1.0);
-      }
+    return dualPolicyEvaluate(sf, df);
+  }
 
-      obj = cplex.linearNumExpr();
-      for (int i = 0; i < supplySize; i++) {
-        for (int j = 0; j < demandSize; j++) {
-          sItem = supplyItems.get(i);
-          dItem = demandItems.get(j);
-          qs = model.getSupplyDepartureRate();
-          qd = model.getDemandDepartureRate();
-          coeff = model.getRewardFunction().evaluate(sItem, dItem);
-          if (t != timePeriods) {
-            coeff -= (1 - qs) * sf.evaluate(sItem) + (1 - qd) * df.evaluate(dItem);
-          }
-          obj.addTerm(coeff, piVar[i][j]);
-        }
-      }
-      cplex.addMaximize(obj);
-      cplex.solve();
-
-      for (int i = 0; i < supplySize; i++) {
-        pi = cplex.getValues(piVar[i]);
-        for (int j = 0; j < demandSize; j++) {
-          if (pi[j] > 1 - tol) {
-            matched[supplyIMap.get(i)] = true;
-            matched[demandIMap.get(j)] = true;
-            sItem = supplyItems.get(i);
-            dItem = demandItems.get(j);
-            totalReward += model.getRewardFunction().evaluate(sItem, dItem);
-          }
-        }
-      }
-    }
-    return totalReward;
+  public double dualPolicyEvaluate(ItemFunction sf,
+                                   ItemFunction df) {
+    return dualPolicy(sf, df, false);
   }
 
   public double dualPolicyMatch(ItemFunction sf,
                                 ItemFunction df)
           throws Exception {
+    double totalReward = dualPolicy(sf, df, true);
+    isMatched = true;
+    return totalReward;
+  }
+
+  /**
+   * Runs the dual policy over the sample path. Before the last period the net weights of the pairs
+   * do not depend on time, so the pool is kept in an IncrementalAssignmentSolver: arrivals,
+   * departures and the matched pairs are applied to it and the dual potentials of the previous
+   * period warm start the next one. The last period, with the plain rewards, is one assignment.
+   *
+   * @param record if set, the states and matched pairs of every period are stored
+   * @return the total reward
+   */
+  private double dualPolicy(ItemFunction sf,
+                            ItemFunction df,
+                            boolean record) {
     if (! isSampled) {
       throw new RuntimeException("must be sampled");
     }
-    IloCplex cplex = (new CplexFactory()).getCplex();
-    cplex.setOut(null);
-    IloNumVar[][] piVar;
-    ArrayList<Item> supplyItems = new ArrayList<Item>();
-    ArrayList<Item> demandItems = new ArrayList<Item>();
+    int itemCount = allExistingItems.size();
+    final double[] netValues = new double[itemCount];
+    double qs = model.getSupplyDepartureRate(), qd = model.getDemandDepartureRate();
+    for (int i = 0; i < itemCount; i++) {
+      Item item = allExistingItems.get(i);
+      netValues[i] = item.isSod() == 1 ? (1 - qs) * sf.evaluate(item) : (1 - qd) * df.evaluate(item);
+    }
+    IncrementalAssignmentSolver pool = new IncrementalAssignmentSolver(new IncrementalAssignmentSolver.Weights() {
+      @Override
+      public double weight(int rowId, int columnId) {
+        return model.getRewardFunction().evaluate(allExistingItems.get(rowId), allExistingItems.get(columnId))
+                       - netValues[rowId] - netValues[columnId];
+      }
+    });
+    boolean[] matched = new boolean[itemCount], inPool = new boolean[itemCount];
     ArrayList<Integer> supplyIMap = new ArrayList<Integer>();
     ArrayList<Integer> demandIMap = new ArrayList<Integer>();
-    boolean[] matched = new boolean[allExistingItems.size()];
-    Arrays.fill(matched, false);
-    int supplySize, demandSize;
-    double[] lb, ub, ones;
-    double coeff;
-    double[] pi;
-    double tol = 1E-5, qs, qd;
-    IloLinearNumExpr tempExp, obj;
-    Item sItem, dItem;
+    ArrayList<Pair<Integer, Integer>> pairs = new ArrayList<Pair<Integer, Integer>>();
     double totalReward = 0.0;
-    states = new ArrayList<ArrayList<Integer>>();
-    matchedPairs = new ArrayList<ArrayList<Pair<Integer, Integer>>>();
+    if (record) {
+      states = new ArrayList<ArrayList<Integer>>();
+      matchedPairs = new ArrayList<ArrayList<Pair<Integer, Integer>>>();
+    }
     for (int t = 0; t <= timePeriods; t++) {
-      cplex.clearModel();
-      supplyItems.clear();
-      demandItems.clear();
       supplyIMap.clear();
       demandIMap.clear();
-      states.add(new ArrayList<Integer>());
-      for (int i = 0; i < allExistingItems.size(); i++) {
-        if (! matched[i] && arrivalTimes.get(i) <= t && departureTimes.get(i) >= t) {
-          states.get(t).add(i);
-          Item item = allExistingItems.get(i);
-          if (item.isSod() == 1) {
-            supplyItems.add(item);
-            supplyIMap.add(i);
-          } else {
-            demandItems.add(item);
-            demandIMap.add(i);
+      if (record) {
+        states.add(new ArrayList<Integer>());
+        matchedPairs.add(new ArrayList<Pair<Integer, Integer>>());
+      }
+      for (int i = 0; i < itemCount; i++) {
+        boolean present = ! matched[i] && arrivalTimes.get(i) <= t && departureTimes.get(i) >= t;
+        if (inPool[i] && ! present) {
+          removeFromPool(pool, i);
+          inPool[i] = false;
+        }
+        if (present) {
+          if (record) {
+            states.get(t).add(i);
           }
+          (allExistingItems.get(i).isSod() == 1 ? supplyIMap : demandIMap).add(i);
         }
       }
-      supplySize = supplyItems.size();
-      demandSize = demandItems.size();
-      piVar = new IloNumVar[supplySize][];
-      lb = new double[demandSize];
-      ub = new double[demandSize];
-      ones = new double[demandSize];
-      Arrays.fill(lb, 0.0);
-      Arrays.fill(ub, 1.0);
-      Arrays.fill(ones, 1.0);
-      for (int i = 0; i < supplySize; i++) {
-        piVar[i] = cplex.numVarArray(demandSize, lb, ub);
-        cplex.addLe(cplex.scalProd(ones, piVar[i]), 1.0);
-      }
-      for (int j = 0; j < demandSize; j++) {
-        tempExp = cplex.linearNumExpr();
+      pairs.clear();
+      if (t < timePeriods) {
+        for (int i = 0; i < itemCount; i++) {
+          boolean present = ! matched[i] && arrivalTimes.get(i) <= t && departureTimes.get(i) >= t;
+          if (present && ! inPool[i]) {
+            if (allExistingItems.get(i).isSod() == 1) {
+              pool.addRow(i);
+            } else {
+              pool.addColumn(i);
+            }
+            inPool[i] = true;
+          }
+        }
+        pool.solve();
+        pairs.addAll(pool.getMatchedPairs());
+      } else {
+        int supplySize = supplyIMap.size(), demandSize = demandIMap.size();
+        double[][] w = new double[supplySize][demandSize];
         for (int i = 0; i < supplySize; i++) {
-          tempExp.addTerm(1.0, piVar[i][j]);
+          for (int j = 0; j < demandSize; j++) {
+            w[i][j] = model.getRewardFunction().evaluate(allExistingItems.get(supplyIMap.get(i)),
+                                                         allExistingItems.get(demandIMap.get(j)));
+          }
         }
-        cplex.addLe(tempExp, 1.0);
-      }
-
-      obj = cplex.linearNumExpr();
-      for (int i = 0; i < supplySize; i++) {
-        for (int j = 0; j < demandSize; j++) {
-          sItem = supplyItems.get(i);
-          dItem = demandItems.get(j);
-          qs = model.getSupplyDepartureRate();
-          qd = model.getDemandDepartureRate();
-          coeff = model.getRewardFunction().evaluate(sItem, dItem);
-          if (t != timePeriods) {
-            coeff -= (1 - qs) * sf.evaluate(sItem) + (1 - qd) * df.evaluate(dItem);
+        AssignmentSolver solver = new HungarianAssignmentSolver();
+        solver.computeMax(w);
+        int[] rowMatches = solver.getRowMatches();
+        for (int i = 0; i < supplySize; i++) {
+          if (rowMatches[i] >= 0) {
+            pairs.add(new Pair<Integer, Integer>(supplyIMap.get(i), demandIMap.get(rowMatches[i])));
           }
-          obj.addTerm(coeff, piVar[i][j]);
         }
       }
-      cplex.addMaximize(obj);
-      cplex.solve();
-
-      matchedPairs.add(new ArrayList<Pair<Integer, Integer>>());
-      for (int i = 0; i < supplySize; i++) {
-        pi = cplex.getValues(piVar[i]);
-        for (int j = 0; j < demandSize; j++) {
-          if (pi[j] > 1 - tol) {
-            matchedPairs.get(t).add(new Pair<Integer, Integer>(supplyIMap.get(i), demandIMap.get(j)));
-            matched[supplyIMap.get(i)] = true;
-            matched[demandIMap.get(j)] = true;
-            sItem = supplyItems.get(i);
-            dItem = demandItems.get(j);
-            totalReward += model.getRewardFunction().evaluate(sItem, dItem);
-          }
+      for (Pair<Integer, Integer> pair : pairs) {
+        int s = pair.getFirst(), d = pair.getSecond();
+        if (record) {
+          matchedPairs.get(t).add(pair);
         }
+        matched[s] = true;
+        matched[d] = true;
+        totalReward += model.getRewardFunction().evaluate(allExistingItems.get(s), allExistingItems.get(d));
       }
     }
-    isMatched = true;
     return totalReward;
   }
 
+  private void removeFromPool(IncrementalAssignmentSolver pool, int i) {
+    if (allExistingItems.get(i).isSod() == 1) {
+      pool.removeRow(i);
+    } else {
+      pool.removeColumn(i);
+    }
+  }
+
   public double[] getSupplyValues(CplexFactory factory)
           throws IloException {
     if (! foundValues) {
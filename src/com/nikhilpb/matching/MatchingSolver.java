@@ -1,6 +1,6 @@
 package com.nikhilpb.matching;
 
-import com.nikhilpb.util.CplexFactory;
+import com.nikhilpb.util.math.Distributions;
 
 import java.util.Random;
 
@@ -21,7 +21,7 @@ public abstract class MatchingSolver {
                             long sampleSeed,
                             SamplingPolicy samplingPolicy) {
     this.model = model;
-    this.random = new Random(sampleSeed);
+    this.random = Distributions.newRandom(sampleSeed);
     this.samplingPolicy = samplingPolicy;
     System.out.printf("sampling parameters -\npolicy: %s\nseed: %d\n\n",
                              stringFromSamplingPolicy(samplingPolicy), sampleSeed);
@@ -33,6 +33,18 @@ public abstract class MatchingSolver {
 
   public abstract ItemFunction getDemandFunction();
 
+  /**
+   * Value functions of the optimistic sampling policy, the functions of the solver unless it
+   * samples with its current iterate while reporting another policy.
+   */
+  protected ItemFunction getSamplingSupplyFunction() {
+    return getSupplyFunction();
+  }
+
+  protected ItemFunction getSamplingDemandFunction() {
+    return getDemandFunction();
+  }
+
   public enum SolverType {
     SALP_SSGD, SALP_BATCHLP, GREEDY
   }
@@ -62,7 +74,15 @@ public abstract class MatchingSolver {
   }
 
   protected MatchingSamplePath samplePathMatched(long seed) throws Exception {
-    MatchingSamplePath samplePath = new MatchingSamplePath(model, seed);
+    return samplePathMatched(seed, model);
+  }
+
+  /**
+   * Samples and matches a path on the given copy of the model, which holds the random state of
+   * the sampling, so that paths can be sampled on several threads.
+   */
+  protected MatchingSamplePath samplePathMatched(long seed, MatchingModel pathModel) throws Exception {
+    MatchingSamplePath samplePath = new MatchingSamplePath(pathModel, seed);
     samplePath.sample();
     switch (samplingPolicy) {
       case OFFLINE:
@@ -72,16 +92,27 @@ public abstract class MatchingSolver {
         samplePath.dualPolicyMatch(new ConstantItemFunction(0.), new ConstantItemFunction(0.));
         break;
       case OPTIMISTIC:
-        samplePath.dualPolicyMatch(getSupplyFunction(), getDemandFunction());
+        samplePath.dualPolicyMatch(getSamplingSupplyFunction(), getSamplingDemandFunction());
     }
     return samplePath;
   }
 
   public double evaluate(long sampleSeed) throws Exception {
-    MatchingSamplePath samplePath = samplePath(sampleSeed);
+    return evaluate(sampleSeed, model, getSupplyFunction(), getDemandFunction());
+  }
+
+  /**
+   * Evaluates the dual policy of the given value functions on a path sampled from a copy of the
+   * model, so that paths can be evaluated on several threads, or while the solver keeps changing
+   * its own functions.
+   */
+  public double evaluate(long sampleSeed,
+                         MatchingModel pathModel,
+                         ItemFunction supplyFunction,
+                         ItemFunction demandFunction) {
+    MatchingSamplePath samplePath = new MatchingSamplePath(pathModel, sampleSeed);
     samplePath.sample();
-    double reward = samplePath.dualPolicyEvaluate(getSupplyFunction(), getDemandFunction(), new CplexFactory());
-    return reward;
+    return samplePath.dualPolicyEvaluate(supplyFunction, demandFunction);
   }
 
   public static SamplingPolicy samplingPolicyFromString(String typeName) throws RuntimeException {
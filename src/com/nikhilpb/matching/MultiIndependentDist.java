@@ -3,6 +3,7 @@ package com.nikhilpb.matching;
 import java.util.Random;
 
 import com.nikhilpb.util.math.DiscreteDistribution;
+import com.nikhilpb.util.math.Distributions;
 
 /**
  * Created with IntelliJ IDEA.
@@ -69,4 +70,13 @@ public class MultiIndependentDist {
   public void setRandom(Random rnd) {
     this.random = rnd;
   }
+
+  /**
+   * @return a distribution with the same probabilities and its own random source, which is to be
+   * set by setRandom before sampling. Only reads the probabilities, so it can be called while
+   * another thread samples from this distribution.
+   */
+  public MultiIndependentDist copy() {
+    return new MultiIndependentDist(probabilities, Distributions.newRandom(0L));
+  }
 }
\ No newline at end of file
@@ -1,12 +1,18 @@
 package com.nikhilpb.matching;
 
 import com.nikhilpb.util.Pair;
-import ilog.cplex.IloCplex;
 
 import java.io.File;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Created with IntelliJ IDEA.
@@ -16,10 +22,14 @@ import java.util.Arrays;
  * To change this template use File | Settings | File Templates.
  */
 public class SsgdSolver extends MatchingSolver {
+  // checkpoints waiting for the evaluation thread before the steps wait for it
+  private static final int kMaxPendingEvaluations = 4;
   private final double eps, a, b;
   private final int sampleCount, checkPerSteps, simSteps;
   private final long simSeed;
-  private double[] kappaSupply, kappaDemand;
+  private final int batchSize, threadCount, evalThreadCount;
+  private final boolean averaging;
+  private double[] kappaSupply, kappaDemand, averageSupply, averageDemand;
   private final ItemFunctionSet basisSetSupply, basisSetDemand;
 
   public SsgdSolver(MatchingModel model,
@@ -35,55 +45,153 @@ public class SsgdSolver extends MatchingSolver {
     this.sampleCount = config.stepCountConfig;
     this.simSteps = config.simSteps;
     this.simSeed = config.simSeed;
+    this.batchSize = config.batchSize;
+    this.threadCount = config.threadCount;
+    this.averaging = config.averaging;
+    this.evalThreadCount = config.evalThreadCount;
+    if (batchSize < 1 || threadCount < 1 || evalThreadCount < 1) {
+      throw new IllegalArgumentException("batch size and thread counts must be positive");
+    }
     this.basisSetSupply = basisSetSupply;
     this.basisSetDemand = basisSetDemand;
     kappaSupply = new double[this.basisSetSupply.size()];
     Arrays.fill(kappaSupply, 0.0);
     kappaDemand = new double[this.basisSetDemand.size()];
     Arrays.fill(kappaDemand, 0.0);
+    averageSupply = new double[kappaSupply.length];
+    averageDemand = new double[kappaDemand.length];
     System.out.println();
     System.out.println("SALP with stochastic sub-gradient method");
     System.out.println();
     System.out.printf("solver parameters -\neps: %f\na: %f\nb: %f\n", eps, a, b);
-    System.out.printf("sim steps: %d\nsim seed: %d", simSteps, simSeed);
+    System.out.printf("sim steps: %d\nsim seed: %d\n", simSteps, simSeed);
+    System.out.printf("batch size: %d\nthreads: %d\naveraging: %b", batchSize, threadCount, averaging);
     System.out.println();
     initParams(model, sampleSeed, samplingPolicy);
   }
 
+  /**
+   * Each step samples and matches batchSize paths, averages their subgradients and takes one
+   * step. The paths of a batch are split into contiguous chunks, one per thread, and each chunk
+   * runs on its own copy of the model. Every path is driven by its own seed, drawn in order from
+   * the sampling seed, and the subgradients are summed in path order, so the iterates do not
+   * depend on the number of threads. With averaging, the policy of the solver is the running mean
+   * of the iterates, while the optimistic sampling keeps matching with the current iterate.
+   * <p/>
+   * Every checkPerSteps steps, the policy is evaluated on a single background thread from a
+   * snapshot of its coefficients, so the steps only wait for an evaluation when
+   * kMaxPendingEvaluations of them are already pending. The evaluations run and report in order,
+   * and solve waits for the pending ones before it returns, and returns false if any failed.
+   */
   public boolean solve() {
     double stepSize;
-    double[] sgSupply = new double[kappaSupply.length];
-    double[] sgDemand = new double[kappaDemand.length];
-    MatchingSamplePath samplePath;
-    double maxValue = 0.0;
+    final double[][] sgSupply = new double[batchSize][kappaSupply.length];
+    final double[][] sgDemand = new double[batchSize][kappaDemand.length];
+    final long[] seeds = new long[batchSize];
+    int chunkCount = Math.min(threadCount, batchSize);
+    final MatchingModel[] models = new MatchingModel[chunkCount];
+    final ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+    for (int c = 0; c < chunkCount; ++ c) {
+      final int chunk = c, start = c * batchSize / chunkCount, end = (c + 1) * batchSize / chunkCount;
+      models[c] = chunkCount == 1 ? model : model.copy();
+      tasks.add(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          for (int p = start; p < end; ++ p) {
+            try {
+              findSubgrad(samplePathMatched(seeds[p], models[chunk]), sgSupply[p], sgDemand[p]);
+            } catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+          }
+        }
+      });
+    }
+    ForkJoinPool pool = chunkCount > 1 ? new ForkJoinPool(chunkCount) : null;
+    ExecutorService evalExecutor = Executors.newSingleThreadExecutor();
+    ArrayDeque<Future<Double>> evaluations = new ArrayDeque<Future<Double>>();
+    // only touched by the evaluation thread
+    final double[] maxValue = {0.0};
+    PrintStream out = null;
     try {
-      PrintStream out = new PrintStream(new File("ssgd-results.txt"));
-      Evaluator evaluator = new Evaluator(this, out, simSteps, simSeed);
+      out = new PrintStream(new File("ssgd-results.txt"));
+      final Evaluator evaluator = new Evaluator(this, out, simSteps, simSeed, evalThreadCount);
       for (int i = 0; i < sampleCount; ++ i) {
         stepSize = a / (b + (double) i);
         if (i % checkPerSteps == 0) {
-          double value = evaluator.evaluate("sampled instance: " + i);
-          if (value >= maxValue) {
-            maxValue = value;
+          final String prefix = "sampled instance: " + i;
+          final double checkStepSize = stepSize;
+          final ItemFunction supplyFunction = basisSetSupply.getLinearCombination(
+                  (averaging ? averageSupply : kappaSupply).clone());
+          final ItemFunction demandFunction = basisSetDemand.getLinearCombination(
+                  (averaging ? averageDemand : kappaDemand).clone());
+          while (evaluations.size() >= kMaxPendingEvaluations) {
+            evaluations.poll().get();
+          }
+          evaluations.add(evalExecutor.submit(new Callable<Double>() {
+            @Override
+            public Double call() throws Exception {
+              double value = evaluator.evaluate(prefix, supplyFunction, demandFunction);
+              if (value >= maxValue[0]) {
+                maxValue[0] = value;
+              }
+              System.out.println(prefix + ", step size: " + checkStepSize + ", value: "
+                                         + value + ", max value: " + maxValue[0]);
+              return value;
+            }
+          }));
+        }
+        for (int p = 0; p < batchSize; ++ p) {
+          seeds[p] = random.nextLong();
+        }
+        if (pool == null) {
+          tasks.get(0).reinitialize();
+          tasks.get(0).invoke();
+        } else {
+          for (RecursiveAction task : tasks) {
+            task.reinitialize();
           }
-          System.out.println("sampled instance: " + i
-                                     + ", step size: " + stepSize + ", value: "
-                                     + value + ", max value: " + maxValue);
+          pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+              invokeAll(tasks);
+            }
+          });
         }
-        samplePath = samplePathMatched(random.nextLong());
-        findSubgrad(samplePath, sgSupply, sgDemand);
-        // Minimize objective, subtract sub-gradient
-        for (int j = 0; j < kappaSupply.length; ++ j) {
-          kappaSupply[j] -= stepSize * sgSupply[j];
+        // Minimize objective, subtract the mean sub-gradient of the batch
+        for (int p = 0; p < batchSize; ++ p) {
+          for (int j = 0; j < kappaSupply.length; ++ j) {
+            kappaSupply[j] -= stepSize * sgSupply[p][j] / batchSize;
+          }
+          for (int j = 0; j < kappaDemand.length; ++ j) {
+            kappaDemand[j] -= stepSize * sgDemand[p][j] / batchSize;
+          }
         }
-        for (int j = 0; j < kappaDemand.length; ++ j) {
-          kappaDemand[j] -= stepSize * sgDemand[j];
+        if (averaging) {
+          double weight = 1. / (i + 1.);
+          for (int j = 0; j < kappaSupply.length; ++ j) {
+            averageSupply[j] += weight * (kappaSupply[j] - averageSupply[j]);
+          }
+          for (int j = 0; j < kappaDemand.length; ++ j) {
+            averageDemand[j] += weight * (kappaDemand[j] - averageDemand[j]);
+          }
         }
       }
-      out.close();
-
+      evalExecutor.shutdown();
+      for (Future<Double> evaluation : evaluations) {
+        evaluation.get();
+      }
     } catch (Exception e) {
       e.printStackTrace();
+      return false;
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+      evalExecutor.shutdownNow();
+      if (out != null) {
+        out.close();
+      }
     }
     return true;
   }
@@ -100,8 +208,6 @@ public class SsgdSolver extends MatchingSolver {
     double mult;
     double qs = model.getSupplyDepartureRate(), qd = model.getDemandDepartureRate();
     try {
-      IloCplex cplex = new IloCplex();
-      cplex.setOut(null); // no printing to stdout
       for (int t = 0; t <= tp; ++ t) {
         states = samplePath.getStates(t);
         supItems.clear();
@@ -125,7 +231,7 @@ public class SsgdSolver extends MatchingSolver {
             }
           }
         }
-        AsymmetricMatcher matcher = new AsymmetricMatcher(w, cplex);
+        AsymmetricMatcher matcher = new AsymmetricMatcher(w);
         if (! matcher.solve()) {
           throw new RuntimeException("problem solving asymmetric matcher");
         }
@@ -165,10 +271,24 @@ public class SsgdSolver extends MatchingSolver {
   }
 
   public ItemFunction getSupplyFunction() {
-    return basisSetSupply.getLinearCombination(kappaSupply);
+    return basisSetSupply.getLinearCombination(averaging ? averageSupply : kappaSupply);
   }
 
   public ItemFunction getDemandFunction() {
+    return basisSetDemand.getLinearCombination(averaging ? averageDemand : kappaDemand);
+  }
+
+  /**
+   * Paths are matched with the current iterate, even with averaging, where the running mean is
+   * only the policy that is evaluated and returned.
+   */
+  @Override
+  protected ItemFunction getSamplingSupplyFunction() {
+    return basisSetSupply.getLinearCombination(kappaSupply);
+  }
+
+  @Override
+  protected ItemFunction getSamplingDemandFunction() {
     return basisSetDemand.getLinearCombination(kappaDemand);
   }
 
@@ -176,5 +296,10 @@ public class SsgdSolver extends MatchingSolver {
     public double epsConfig, aConfig, bConfig;
     public int stepCountConfig, checkPerStepsConfig, simSteps;
     public long simSeed;
+    // paths per step, threads sampling them, and Polyak averaging of the iterates
+    public int batchSize = 1, threadCount = 1;
+    public boolean averaging = false;
+    // threads of each checkpoint evaluation
+    public int evalThreadCount = 1;
   }
 }
@@ -1,6 +1,7 @@
 package com.nikhilpb.pools;
 
 import com.nikhilpb.util.CplexFactory;
+import com.nikhilpb.util.math.Distributions;
 import ilog.cplex.IloCplex;
 
 import java.util.Random;
@@ -32,7 +33,7 @@ public class Evaluator {
     NodeRewardFunction nrf = new NodeRewardFunction(model.getNodeRewardFunction().getRf(),
                                                            valueFunction,
                                                            1 - model.getDepartureRate());
-    Random svRandom = new Random(simValueSeed);
+    Random svRandom = Distributions.newRandom(simValueSeed);
     double[] value = new double[runCount];
     SampleInstance inst;
     CplexFactory factory = new CplexFactory();
@@ -5,6 +5,7 @@ import java.util.Random;
 
 import com.nikhilpb.util.CplexFactory;
 
+import com.nikhilpb.util.math.Distributions;
 import ilog.concert.IloException;
 
 public class InstanceSet {
@@ -15,7 +16,7 @@ public class InstanceSet {
   public InstanceSet(MatchingPoolsModel model,
                      long seed) {
     this.model = model;
-    random = new Random(seed);
+    random = Distributions.newRandom(seed);
   }
 
   public void sample(int sampleCount) {
@@ -3,6 +3,7 @@ package com.nikhilpb.pools;
 import com.nikhilpb.util.CplexFactory;
 import com.nikhilpb.util.PropertySet;
 import com.nikhilpb.util.XmlParser;
+import com.nikhilpb.util.math.Distributions;
 import ilog.cplex.IloCplex;
 
 import java.io.File;
@@ -160,7 +161,7 @@ public class MatchingPoolsMain2 extends XmlParser {
     System.out.println("number of sample runs is " + runCount);
     long simValueSeed = Long.parseLong(getPropertyOrDie(props, "seed"));
     System.out.println("using seed " + simValueSeed);
-    Random svRandom = new Random(simValueSeed);
+    Random svRandom = Distributions.newRandom(simValueSeed);
     double[] value = new double[runCount];
     SampleInstance inst;
     CplexFactory factory = new CplexFactory();
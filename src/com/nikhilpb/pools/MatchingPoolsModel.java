@@ -6,6 +6,7 @@ import com.nikhilpb.matching.Item;
 import com.nikhilpb.matching.MultiIndependentDist;
 import com.nikhilpb.matching.RewardFunction;
 import com.nikhilpb.matching.SeparableRewardFunction;
+import com.nikhilpb.util.math.Distributions;
 import com.nikhilpb.util.math.DistributionsCCM;
 import com.nikhilpb.util.PropertySet;
 
@@ -21,7 +22,7 @@ public class MatchingPoolsModel {
   protected double initialPopulationParameter;
 
   public void initiateRandom(long seed) {
-    random = new Random(seed);
+    random = Distributions.newRandom(seed);
   }
 
   public Random getRandom() {
@@ -53,7 +54,7 @@ public class MatchingPoolsModel {
   }
 
   public void setRandomSeed(long seed) {
-    distribution.setRandom(new Random(seed));
+    distribution.setRandom(Distributions.newRandom(seed));
   }
 
   public double getInitialPopulationParameter() {
@@ -77,7 +78,7 @@ public class MatchingPoolsModel {
         probs[i][j] = props.getDoubleDefault("sp[" + (i + 1) + "][" + (j + 1) + "]", 0.0);
       }
     }
-    random = new Random(props.getLongDefault("supply_seed", 123L));
+    random = Distributions.newRandom(props.getLongDefault("supply_seed", 123L));
     distribution = new MultiIndependentDist(probs, random);
     if (props.getStringDefault("reward_function", "separable").equals("separable")) {
       rewardFunction = new SeparableRewardFunction();
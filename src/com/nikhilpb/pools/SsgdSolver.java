@@ -1,6 +1,7 @@
 package com.nikhilpb.pools;
 
 import com.nikhilpb.util.CplexFactory;
+import com.nikhilpb.util.math.Distributions;
 import ilog.cplex.IloCplex;
 
 import java.util.ArrayList;
@@ -44,7 +45,7 @@ public class SsgdSolver {
     System.out.printf("sim steps: %d\nsim seed: %d", simSteps, simSeed);
     System.out.println();
     this.model = model;
-    this.random = new Random(sampleSeed);
+    this.random = Distributions.newRandom(sampleSeed);
     System.out.printf("sampling parameters -\nseed: %d\n\n", sampleSeed);
   }
 
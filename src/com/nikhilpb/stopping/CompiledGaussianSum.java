@@ -0,0 +1,397 @@
+package com.nikhilpb.stopping;
+
+import com.nikhilpb.adp.State;
+import com.nikhilpb.adp.StateFunction;
+
+import java.util.List;
+
+/**
+ * Weighted sum of Gaussian bumps over a set of support states,
+ * <p/>
+ * f(x) = scale sum_i w_i exp(-||A (x + queryShift) - A (y_i + supportShift)||^2 / 2)
+ * <p/>
+ * which covers the kernel and both kernel expectations: A is the transposed Cholesky factor of
+ * the matrix of MeanGaussianKernel (or I / sqrt(rho) for the plain kernel) and the shifts carry
+ * the mean increment. The support points are transformed once and stored in a flat array, so an
+ * evaluation costs O(d^2 + n d) with no d x d form per pair, and support points with zero weight
+ * can be dropped. Instances are immutable and safe for concurrent use.
+ * <p/>
+ * With a truncation tolerance tol > 0, given when the sum is built, the terms with
+ * exp(-dist^2 / 2) < tol, that is dist > sqrt(2 ln(1 / tol)), are dropped. The support points are
+ * then kept in a k-d tree in the transformed space, so a query only visits the boxes that reach
+ * within the cutoff of it. The error of each value is at most tol sum_i |w_i|, see getErrorBound.
+ */
+public class CompiledGaussianSum {
+  private static final int kLeafSize = 16;
+  // transformed query of value(x), per thread
+  private static final ThreadLocal<double[]> queryScratch = new ThreadLocal<double[]>() {
+    @Override
+    protected double[] initialValue() {
+      return new double[0];
+    }
+  };
+  private final int dimension, supportSize;
+  private final double[][] transform;
+  private final double[] queryShift;
+  private final double[] points, weights;
+  private final double cutoffSq, errorBound;
+  // k-d tree nodes, node 0 is the root and covers all points
+  private int nodeCount;
+  private int[] nodeStart, nodeEnd, leftChild, rightChild;
+  private double[] boxMin, boxMax;
+
+  /**
+   * @param transform       A
+   * @param scale           multiplies all the weights
+   * @param supportShift    added to the support states before the transform, or null
+   * @param queryShift      added to the query states before the transform, or null
+   * @param skipZeroWeights drop the support states with zero weight
+   * @param tolerance       truncation tolerance in [0, 1), 0 for an exact sum
+   */
+  public CompiledGaussianSum(double[][] transform,
+                             double scale,
+                             double[] supportShift,
+                             double[] queryShift,
+                             List<StoppingState> support,
+                             double[] weights,
+                             boolean skipZeroWeights,
+                             double tolerance) {
+    if (tolerance < 0. || tolerance >= 1.) {
+      throw new IllegalArgumentException("truncation tolerance must be in [0, 1)");
+    }
+    this.transform = transform;
+    this.queryShift = queryShift;
+    dimension = transform.length;
+    int count = 0;
+    for (int i = 0; i < support.size(); ++ i) {
+      count += (skipZeroWeights && weights[i] == 0.) ? 0 : 1;
+    }
+    supportSize = count;
+    points = new double[count * dimension];
+    this.weights = new double[count];
+    int index = 0;
+    for (int i = 0; i < support.size(); ++ i) {
+      if (skipZeroWeights && weights[i] == 0.) {
+        continue;
+      }
+      transform(support.get(i).vector, 0, supportShift, points, index * dimension);
+      this.weights[index ++] = scale * weights[i];
+    }
+    double absSum = 0.;
+    for (int i = 0; i < supportSize; ++ i) {
+      absSum += Math.abs(this.weights[i]);
+    }
+    if (tolerance > 0.) {
+      cutoffSq = 2. * Math.log(1. / tolerance);
+      errorBound = tolerance * absSum;
+      buildTree();
+    } else {
+      cutoffSq = Double.POSITIVE_INFINITY;
+      errorBound = 0.;
+    }
+  }
+
+  private void buildTree() {
+    int maxNodes = Math.max(1, 4 * supportSize / kLeafSize + 2);
+    nodeStart = new int[maxNodes];
+    nodeEnd = new int[maxNodes];
+    leftChild = new int[maxNodes];
+    rightChild = new int[maxNodes];
+    boxMin = new double[maxNodes * dimension];
+    boxMax = new double[maxNodes * dimension];
+    nodeCount = 0;
+    build(0, supportSize);
+  }
+
+  /**
+   * Builds the subtree of points start to end by splitting at the median of the widest
+   * coordinate, reordering the points and weights in place.
+   *
+   * @return the node index
+   */
+  private int build(int start, int end) {
+    int node = nodeCount ++;
+    nodeStart[node] = start;
+    nodeEnd[node] = end;
+    int box = node * dimension;
+    for (int k = 0; k < dimension; ++ k) {
+      boxMin[box + k] = Double.POSITIVE_INFINITY;
+      boxMax[box + k] = Double.NEGATIVE_INFINITY;
+    }
+    for (int i = start; i < end; ++ i) {
+      for (int k = 0; k < dimension; ++ k) {
+        boxMin[box + k] = Math.min(boxMin[box + k], points[i * dimension + k]);
+        boxMax[box + k] = Math.max(boxMax[box + k], points[i * dimension + k]);
+      }
+    }
+    if (end - start <= kLeafSize) {
+      leftChild[node] = rightChild[node] = - 1;
+      return node;
+    }
+    int splitDim = 0;
+    for (int k = 1; k < dimension; ++ k) {
+      if (boxMax[box + k] - boxMin[box + k] > boxMax[box + splitDim] - boxMin[box + splitDim]) {
+        splitDim = k;
+      }
+    }
+    int mid = (start + end) >>> 1;
+    select(start, end - 1, mid, splitDim);
+    leftChild[node] = build(start, mid);
+    rightChild[node] = build(mid, end);
+    return node;
+  }
+
+  /**
+   * Quickselect: moves the point of rank target in coordinate k among lo..hi to position target.
+   */
+  private void select(int lo, int hi, int target, int k) {
+    while (lo < hi) {
+      double pivot = points[((lo + hi) >>> 1) * dimension + k];
+      int i = lo, j = hi;
+      while (i <= j) {
+        while (points[i * dimension + k] < pivot) {
+          ++ i;
+        }
+        while (points[j * dimension + k] > pivot) {
+          -- j;
+        }
+        if (i <= j) {
+          swap(i ++, j --);
+        }
+      }
+      if (target <= j) {
+        hi = j;
+      } else if (target >= i) {
+        lo = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void swap(int i, int j) {
+    for (int k = 0; k < dimension; ++ k) {
+      double tmp = points[i * dimension + k];
+      points[i * dimension + k] = points[j * dimension + k];
+      points[j * dimension + k] = tmp;
+    }
+    double tmp = weights[i];
+    weights[i] = weights[j];
+    weights[j] = tmp;
+  }
+
+  /**
+   * Sum over the points of the subtree within the cutoff of the transformed query at qOffset.
+   */
+  private double treeSum(int node, double[] q, int qOffset) {
+    int box = node * dimension;
+    double boxDist = 0.;
+    for (int k = 0; k < dimension; ++ k) {
+      double qk = q[qOffset + k];
+      double gap = Math.max(0., Math.max(boxMin[box + k] - qk, qk - boxMax[box + k]));
+      boxDist += gap * gap;
+    }
+    if (boxDist > cutoffSq) {
+      return 0.;
+    }
+    if (leftChild[node] >= 0) {
+      return treeSum(leftChild[node], q, qOffset) + treeSum(rightChild[node], q, qOffset);
+    }
+    return scanSum(nodeStart[node], nodeEnd[node], q, qOffset);
+  }
+
+  private double scanSum(int start, int end, double[] q, int qOffset) {
+    double sum = 0.;
+    for (int i = start; i < end; ++ i) {
+      int offset = i * dimension;
+      double dist = 0.;
+      for (int k = 0; k < dimension; ++ k) {
+        double diff = q[qOffset + k] - points[offset + k];
+        dist += diff * diff;
+      }
+      if (dist <= cutoffSq) {
+        sum += weights[i] * Math.exp(- .5 * dist);
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * sum_i w_i k(y_i, x)
+   */
+  public static CompiledGaussianSum kernel(GaussianStateKernel kernel,
+                                           List<StoppingState> support,
+                                           double[] weights,
+                                           boolean skipZeroWeights,
+                                           double tolerance) {
+    int d = support.isEmpty() ? 0 : support.get(0).vector.length;
+    double[][] transform = new double[d][d];
+    for (int k = 0; k < d; ++ k) {
+      transform[k][k] = 1. / Math.sqrt(kernel.getBandWidth());
+    }
+    return new CompiledGaussianSum(transform, kernel.getPeak(), null, null, support, weights, skipZeroWeights,
+                                   tolerance);
+  }
+
+  /**
+   * sum_i w_i E k(X, y_i), X the successor of the query state
+   */
+  public static CompiledGaussianSum expectation(GaussianKernelE kernelE,
+                                                List<StoppingState> support,
+                                                double[] weights,
+                                                boolean skipZeroWeights,
+                                                double tolerance) {
+    MeanGaussianKernel mgk = kernelE.getMeanGaussianKernel();
+    return new CompiledGaussianSum(mgk.getTransform(), mgk.getScale(), null, kernelE.getMean(), support, weights,
+                                   skipZeroWeights, tolerance);
+  }
+
+  /**
+   * sum_i w_i E k(X_i, x), X_i the successor of the support state y_i
+   */
+  public static CompiledGaussianSum supportExpectation(GaussianKernelE kernelE,
+                                                       List<StoppingState> support,
+                                                       double[] weights,
+                                                       boolean skipZeroWeights,
+                                                       double tolerance) {
+    MeanGaussianKernel mgk = kernelE.getMeanGaussianKernel();
+    return new CompiledGaussianSum(mgk.getTransform(), mgk.getScale(), kernelE.getMean(), null, support, weights,
+                                   skipZeroWeights, tolerance);
+  }
+
+  /**
+   * sum_i w_i E k(X, Y_i), X and Y_i the successors of the query state and of y_i
+   */
+  public static CompiledGaussianSum doubleExpectation(GaussianKernelDoubleE kernelDoubleE,
+                                                      List<StoppingState> support,
+                                                      double[] weights,
+                                                      boolean skipZeroWeights,
+                                                      double tolerance) {
+    MeanGaussianKernel mgk = kernelDoubleE.getMeanGaussianKernel();
+    return new CompiledGaussianSum(mgk.getTransform(), mgk.getScale(), null, null, support, weights,
+                                   skipZeroWeights, tolerance);
+  }
+
+  private void transform(double[] x, int xOffset, double[] shift, double[] out, int offset) {
+    for (int k = 0; k < dimension; ++ k) {
+      double sum = 0.;
+      double[] row = transform[k];
+      for (int l = 0; l < dimension; ++ l) {
+        sum += row[l] * (shift == null ? x[xOffset + l] : x[xOffset + l] + shift[l]);
+      }
+      out[offset + k] = sum;
+    }
+  }
+
+  /**
+   * @return f(x), with a per-thread scratch for the transformed query
+   */
+  public double value(double[] x) {
+    double[] scratch = queryScratch.get();
+    if (scratch.length < dimension) {
+      scratch = new double[dimension];
+      queryScratch.set(scratch);
+    }
+    return value(x, scratch);
+  }
+
+  /**
+   * @param scratch at least dimension doubles
+   * @return f(x)
+   */
+  public double value(double[] x, double[] scratch) {
+    transform(x, 0, queryShift, scratch, 0);
+    if (nodeCount > 0) {
+      return treeSum(0, scratch, 0);
+    }
+    return scanSum(0, supportSize, scratch, 0);
+  }
+
+  /**
+   * Adds f(x_j) to out[offset + j] for the count query states stored row after row in xs. Without
+   * truncation the support points are visited once for the whole batch, with truncation each
+   * query searches the tree.
+   *
+   * @param scratch at least count * dimension doubles
+   */
+  public void addValues(double[] xs, int count, double[] out, int offset, double[] scratch) {
+    for (int j = 0; j < count; ++ j) {
+      transform(xs, j * dimension, queryShift, scratch, j * dimension);
+    }
+    if (nodeCount > 0) {
+      for (int j = 0; j < count; ++ j) {
+        out[offset + j] += treeSum(0, scratch, j * dimension);
+      }
+      return;
+    }
+    for (int i = 0; i < supportSize; ++ i) {
+      int pOffset = i * dimension;
+      double weight = weights[i];
+      for (int j = 0; j < count; ++ j) {
+        int qOffset = j * dimension;
+        double dist = 0.;
+        for (int k = 0; k < dimension; ++ k) {
+          double diff = scratch[qOffset + k] - points[pOffset + k];
+          dist += diff * diff;
+        }
+        out[offset + j] += weight * Math.exp(- .5 * dist);
+      }
+    }
+  }
+
+  /**
+   * @return the vectors of the states stored row after row, the query layout of addValues
+   */
+  public static double[] stackVectors(List<? extends State> states) {
+    if (states.isEmpty()) {
+      return new double[0];
+    }
+    int d = ((StoppingState) states.get(0)).vector.length;
+    double[] xs = new double[states.size() * d];
+    for (int j = 0; j < states.size(); ++ j) {
+      System.arraycopy(((StoppingState) states.get(j)).vector, 0, xs, j * d, d);
+    }
+    return xs;
+  }
+
+  /**
+   * @return bound on the absolute error of every value due to the truncation
+   */
+  public double getErrorBound() {
+    return errorBound;
+  }
+
+  /**
+   * Prints the truncation error bounds of the kernel functions of each period that are truncated.
+   */
+  public static void printErrorBounds(String name, List<StateFunction> functions) {
+    for (int t = 0; t < functions.size(); ++ t) {
+      StateFunction function = functions.get(t);
+      double bound;
+      if (function instanceof KernelContFunction) {
+        bound = ((KernelContFunction) function).getErrorBound();
+      } else if (function instanceof KernelContFunction2) {
+        bound = ((KernelContFunction2) function).getErrorBound();
+      } else if (function instanceof KernelStateFunction) {
+        bound = ((KernelStateFunction) function).getErrorBound();
+      } else {
+        continue;
+      }
+      if (bound == 0.) {
+        continue;
+      }
+      System.out.println("truncation error bound of the " + name + " at t = " + t + ": " + bound);
+    }
+  }
+
+  public int getDimension() {
+    return dimension;
+  }
+
+  /**
+   * @return number of support states kept
+   */
+  public int getSupportSize() {
+    return supportSize;
+  }
+}
@@ -0,0 +1,235 @@
+package com.nikhilpb.stopping;
+
+import com.nikhilpb.adp.*;
+import com.nikhilpb.util.math.Distributions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Andersen-Broadie upper bound on the value of a stopping problem from the continuation values of
+ * a policy, which stops at t when the reward h_t exceeds the continuation value C_t. Along an
+ * outer path, the value L_t of the policy started at t is h_t where the policy stops and Q_t
+ * otherwise, where Q_t is the inner simulation estimate of the reward of continuing at t and then
+ * following the policy. The martingale
+ * <p/>
+ * M_0 = 0, M_{t+1} = M_t + L_{t+1} - Q_t
+ * <p/>
+ * gives the upper bound E max_t (h_t - M_t), and L_0 is an estimate of the value of the policy.
+ * <p/>
+ * Outer paths are simulated in parallel chunks. Each outer path is driven by its own seed and its
+ * inner paths are drawn from the same stream after it, so the estimates do not depend on the
+ * number of threads. The inner paths of one (outer path, period) pair are simulated as a batch,
+ * one period at a time, so batch continuation values are evaluated over all live inner paths in
+ * one call.
+ */
+public class DualUpperBound {
+  private static final int kPathsPerChunk = 8;
+  private final StoppingModel model;
+  private final ArrayList<StateFunction> contValues;
+  private final RewardFunction rewardFunction;
+  private final int timePeriods, dimension;
+
+  /**
+   * @param contValues continuation values of the policy, indexed by time
+   */
+  public DualUpperBound(StoppingModel model, ArrayList<StateFunction> contValues) {
+    if (contValues.size() != model.getTimePeriods()) {
+      throw new IllegalArgumentException("need a continuation value for every time period");
+    }
+    this.model = model;
+    this.contValues = contValues;
+    this.rewardFunction = model.getRewardFunction();
+    timePeriods = model.getTimePeriods();
+    dimension = model.getDimension();
+  }
+
+  /**
+   * @param outerCount  number of outer paths
+   * @param innerCount  number of inner paths per outer path and period
+   * @param seed        seed of the outer paths
+   * @param threadCount number of worker threads
+   */
+  public Results estimate(int outerCount, final int innerCount, long seed, int threadCount) {
+    long startTime = System.currentTimeMillis();
+    Random random = Distributions.newRandom(seed);
+    final long[] seeds = new long[outerCount];
+    for (int i = 0; i < outerCount; ++ i) {
+      seeds[i] = random.nextLong();
+    }
+    final int chunkCount = (outerCount + kPathsPerChunk - 1) / kPathsPerChunk;
+    final Results[] chunkResults = new Results[chunkCount];
+    final ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+    for (int c = 0; c < chunkCount; ++ c) {
+      final int chunk = c;
+      tasks.add(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          Worker worker = new Worker(innerCount);
+          Results results = new Results();
+          int end = Math.min(seeds.length, (chunk + 1) * kPathsPerChunk);
+          for (int i = chunk * kPathsPerChunk; i < end; ++ i) {
+            worker.outerPath(seeds[i], results);
+          }
+          chunkResults[chunk] = results;
+        }
+      });
+    }
+    ForkJoinPool pool = new ForkJoinPool(threadCount);
+    try {
+      pool.invoke(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+    } finally {
+      pool.shutdown();
+    }
+    Results results = new Results();
+    for (Results chunk : chunkResults) {
+      results.upper.merge(chunk.upper);
+      results.lower.merge(chunk.lower);
+      results.gap.merge(chunk.gap);
+    }
+    results.innerCount = innerCount;
+    results.millis = System.currentTimeMillis() - startTime;
+    return results;
+  }
+
+  /**
+   * Simulation state of one thread: its own copy of the model and the buffers of a batch of inner
+   * paths.
+   */
+  private class Worker {
+    private final StoppingModel process = (StoppingModel) model.copy();
+    private final int innerCount;
+    private final double[][] outer = new double[timePeriods][dimension];
+    private final ArrayList<StoppingState> inner, live;
+    private final double[] increment = new double[dimension], rewards, conts;
+
+    Worker(int innerCount) {
+      this.innerCount = innerCount;
+      inner = new ArrayList<StoppingState>(innerCount);
+      for (int j = 0; j < innerCount; ++ j) {
+        inner.add(new StoppingState(new double[dimension], 0));
+      }
+      live = new ArrayList<StoppingState>(innerCount);
+      rewards = new double[innerCount];
+      conts = new double[innerCount];
+    }
+
+    void outerPath(long seed, Results results) {
+      process.reset(seed);
+      System.arraycopy(model.getInitialValue(), 0, outer[0], 0, dimension);
+      for (int t = 1; t < timePeriods; ++ t) {
+        process.nextIncrement(increment);
+        for (int k = 0; k < dimension; ++ k) {
+          outer[t][k] = outer[t - 1][k] + increment[k];
+        }
+      }
+      double martingale = 0., upper = - Double.MAX_VALUE, lower = 0., prevQ = 0.;
+      for (int t = 0; t < timePeriods; ++ t) {
+        StoppingState state = new StoppingState(outer[t], t);
+        double reward = rewardFunction.value(state, StoppingAction.STOP);
+        double q = t < timePeriods - 1 ? continuationEstimate(t) : 0.;
+        double value = reward > contValues.get(t).value(state) ? reward : q;
+        if (t == 0) {
+          lower = value;
+        } else {
+          martingale += value - prevQ;
+        }
+        upper = Math.max(upper, reward - martingale);
+        prevQ = q;
+      }
+      results.upper.add(upper, timePeriods);
+      results.lower.add(lower, timePeriods);
+      results.gap.add(upper - lower, timePeriods);
+    }
+
+    /**
+     * @return the mean reward of the inner paths that continue at t from the outer state and then
+     * follow the policy
+     */
+    private double continuationEstimate(int t) {
+      live.clear();
+      for (StoppingState state : inner) {
+        System.arraycopy(outer[t], 0, state.vector, 0, dimension);
+        live.add(state);
+      }
+      double sum = 0.;
+      for (int s = t + 1; s < timePeriods && ! live.isEmpty(); ++ s) {
+        int n = live.size();
+        for (int j = 0; j < n; ++ j) {
+          StoppingState state = live.get(j);
+          process.nextIncrement(increment);
+          for (int k = 0; k < dimension; ++ k) {
+            state.vector[k] += increment[k];
+          }
+          state.time = s;
+          rewards[j] = rewardFunction.value(state, StoppingAction.STOP);
+        }
+        evaluate(contValues.get(s), live, conts);
+        int kept = 0;
+        for (int j = 0; j < n; ++ j) {
+          if (rewards[j] > conts[j]) {
+            sum += rewards[j];
+          } else {
+            live.set(kept ++, live.get(j));
+          }
+        }
+        live.subList(kept, n).clear();
+      }
+      return sum / innerCount;
+    }
+
+    private void evaluate(StateFunction function, List<StoppingState> states, double[] out) {
+      if (function instanceof BatchStateFunction) {
+        ((BatchStateFunction) function).values(states, out, 0);
+      } else {
+        for (int j = 0; j < states.size(); ++ j) {
+          out[j] = function.value(states.get(j));
+        }
+      }
+    }
+  }
+
+  /**
+   * Per outer path statistics of the upper bound, of the policy value L_0 and of their difference,
+   * the duality gap.
+   */
+  public static class Results {
+    private final MonteCarloEval.MonteCarloResults upper = new MonteCarloEval.MonteCarloResults(),
+            lower = new MonteCarloEval.MonteCarloResults(), gap = new MonteCarloEval.MonteCarloResults();
+    private int innerCount;
+    private long millis;
+
+    public MonteCarloEval.MonteCarloResults getUpper() {
+      return upper;
+    }
+
+    public MonteCarloEval.MonteCarloResults getLower() {
+      return lower;
+    }
+
+    public MonteCarloEval.MonteCarloResults getGap() {
+      return gap;
+    }
+
+    public long getMillis() {
+      return millis;
+    }
+
+    @Override
+    public String toString() {
+      return "upper bound: " + upper.getMean() + ", standard error: " + upper.getStdErr() + ",\n" +
+                     "policy value: " + lower.getMean() + ", standard error: " + lower.getStdErr() + ",\n" +
+                     "duality gap: " + gap.getMean() + ", standard error: " + gap.getStdErr() + ",\n" +
+                     "outer paths: " + upper.getSampleCount() + ", inner paths: " + innerCount + ",\n" +
+                     "wall time: " + millis + " ms\n";
+    }
+  }
+}
@@ -20,7 +20,7 @@ public class GaussianKernelDoubleE {
    * @param peak
    */
   public GaussianKernelDoubleE(PSDMatrix sigma, double rho, double peak) {
-    meanGaussianKernel = new MeanGaussianKernel(PSDMatrix.times(sigma, 2.0), rho, peak);
+    meanGaussianKernel = new MeanGaussianKernel(sigma, 2.0, rho, peak);
   }
 
   /**
@@ -31,10 +31,17 @@ public class GaussianKernelDoubleE {
    * @return
    */
   public double eval(StoppingState xStatePrev, StoppingState yStatePrev) {
-    double[] diff = new double[xStatePrev.vector.length];
-    for (int i = 0; i < diff.length; ++ i) {
-      diff[i] = xStatePrev.vector[i] - yStatePrev.vector[i];
-    }
-    return meanGaussianKernel.eval(diff);
+    return meanGaussianKernel.eval(xStatePrev.vector, yStatePrev.vector, null);
+  }
+
+  /**
+   * Same as eval, on the state vectors.
+   */
+  public double eval(double[] xPrev, double[] yPrev) {
+    return meanGaussianKernel.eval(xPrev, yPrev, null);
+  }
+
+  public MeanGaussianKernel getMeanGaussianKernel() {
+    return meanGaussianKernel;
   }
 }
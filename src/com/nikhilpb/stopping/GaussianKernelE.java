@@ -31,10 +31,21 @@ public class GaussianKernelE {
    * @return Returns E k(X,y)
    */
   public double eval(StoppingState xStatePrev, StoppingState yState) {
-    double[] diff = new double[mean.length];
-    for (int i = 0; i < diff.length; ++ i) {
-      diff[i] = xStatePrev.vector[i] + mean[i] - yState.vector[i];
-    }
-    return meanGaussianKernel.eval(diff);
+    return meanGaussianKernel.eval(xStatePrev.vector, yState.vector, mean);
+  }
+
+  /**
+   * Same as eval, on the state vectors.
+   */
+  public double eval(double[] xPrev, double[] y) {
+    return meanGaussianKernel.eval(xPrev, y, mean);
+  }
+
+  public MeanGaussianKernel getMeanGaussianKernel() {
+    return meanGaussianKernel;
+  }
+
+  public double[] getMean() {
+    return mean;
   }
 }
@@ -42,8 +42,23 @@ public class GaussianStateKernel implements StateKernel {
     return val;
   }
 
+  /**
+   * Same as value, on the state vectors.
+   */
+  public double value(double[] x, double[] y) {
+    double val = 0.;
+    for (int i = 0; i < x.length; ++ i) {
+      val += (x[i] - y[i]) * (x[i] - y[i]);
+    }
+    return peak * Math.exp(- val / (2. * bandWidth));
+  }
+
   public double getBandWidth() {
     return bandWidth;
   }
 
+  public double getPeak() {
+    return peak;
+  }
+
 }
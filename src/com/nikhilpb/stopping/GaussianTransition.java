@@ -35,7 +35,8 @@ public class GaussianTransition implements StateDistribution {
   }
 
   public State nextSample() {
-    double[] nextState = gen.nextValue();
+    double[] nextState = new double[baseState.length];
+    gen.nextValue(nextState);
     for (int i = 0; i < nextState.length; ++ i) {
       nextState[i] += baseState[i];
     }
@@ -1,25 +1,24 @@
 package com.nikhilpb.stopping;
 
+import com.nikhilpb.adp.BatchStateFunction;
 import com.nikhilpb.adp.State;
-import com.nikhilpb.adp.StateFunction;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created with IntelliJ IDEA.
  * User: nikhilpb
  * Date: 11/11/13
  * Time: 5:46 PM
- * To change this template use File | Settings | File Templates.
+ * <p/>
+ * Evaluates b + sum_i nextLambda_i E k(X, y_i) / gamma - sum_i curLambda_i E k(X, Y_i) / gamma with
+ * the sums compiled into CompiledGaussianSums, skipping the states with zero weight.
  */
-public class KernelContFunction implements StateFunction {
-  private ArrayList<StoppingState> nextStates, curStates;
-  private double[] nextLambda, curLambda;
-  private double b, gamma;
-  private GaussianKernelE gaussianKernelE;
-  private GaussianKernelDoubleE gaussianKernelDoubleE;
-  private StoppingModel model;
+public class KernelContFunction implements BatchStateFunction {
+  private final CompiledGaussianSum nextSum, curSum;
+  private double b;
 
   public KernelContFunction(ArrayList<StoppingState> curStates,
                             ArrayList<StoppingState> nextStates,
@@ -29,35 +28,42 @@ public class KernelContFunction implements StateFunction {
                             GaussianKernelDoubleE gaussianKernelDoubleE,
                             StoppingModel model,
                             double gamma,
-                            double b) {
-    this.curStates = curStates;
-    this.nextStates = nextStates;
-    this.curLambda = curLambda;
-    this.nextLambda = nextLambda;
-    this.gaussianKernelE = gaussianKernelE;
-    this.gaussianKernelDoubleE = gaussianKernelDoubleE;
-    this.model = model;
-    this.gamma = gamma;
+                            double b,
+                            double tolerance) {
+    double[] nextWeights = new double[nextStates.size()], curWeights = new double[curStates.size()];
+    for (int i = 0; i < nextWeights.length; ++ i) {
+      nextWeights[i] = (1.0 / gamma) * nextLambda[i];
+    }
+    for (int i = 0; i < curWeights.length; ++ i) {
+      curWeights[i] = - (1.0 / gamma) * curLambda[i];
+    }
+    nextSum = CompiledGaussianSum.expectation(gaussianKernelE, nextStates, nextWeights, true, tolerance);
+    curSum = CompiledGaussianSum.doubleExpectation(gaussianKernelDoubleE, curStates, curWeights, true, tolerance);
     this.b = b;
   }
 
   @Override
   public double value(State state) {
-    double value = b;
-    StoppingState stoppingState = (StoppingState) state;
-    for (int i = 0; i < nextStates.size(); ++ i) {
-      StoppingState nState = nextStates.get(i);
-      double thisVal = (1.0 / gamma) * (nextLambda[i]) * gaussianKernelE.eval(stoppingState, nState);
-      value += thisVal;
-    }
-    for (int i = 0; i < curStates.size(); ++ i) {
-      StoppingState tState = curStates.get(i);
-      value -= (1.0 / gamma) * curLambda[i] * gaussianKernelDoubleE.eval(stoppingState, tState);
-    }
-    return value;
+    double[] x = ((StoppingState) state).vector;
+    return b + nextSum.value(x) + curSum.value(x);
+  }
+
+  @Override
+  public void values(List<? extends State> states, double[] out, int offset) {
+    double[] xs = CompiledGaussianSum.stackVectors(states), scratch = new double[xs.length];
+    Arrays.fill(out, offset, offset + states.size(), b);
+    nextSum.addValues(xs, states.size(), out, offset, scratch);
+    curSum.addValues(xs, states.size(), out, offset, scratch);
   }
 
   public void setB(double b) {
     this.b = b;
   }
+
+  /**
+   * @return bound on the absolute error of the values due to kernel truncation
+   */
+  public double getErrorBound() {
+    return nextSum.getErrorBound() + curSum.getErrorBound();
+  }
 }
@@ -1,24 +1,24 @@
 package com.nikhilpb.stopping;
 
+import com.nikhilpb.adp.BatchStateFunction;
 import com.nikhilpb.adp.State;
-import com.nikhilpb.adp.StateFunction;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created with IntelliJ IDEA.
  * User: nikhilpb
  * Date: 2/4/14
  * Time: 6:38 PM
- * To change this template use File | Settings | File Templates.
+ * <p/>
+ * Evaluates b + sum_i nextLambda_i E k(X, y_i) + sum_i curLambda_i E k(X, Y_i) with the sums
+ * compiled into CompiledGaussianSums, skipping the states with zero weight.
  */
-public class KernelContFunction2 implements StateFunction {
-  private ArrayList<StoppingState> nextStates, curStates;
-  private double[] nextLambda, curLambda;
+public class KernelContFunction2 implements BatchStateFunction {
+  private final CompiledGaussianSum nextSum, curSum;
   private double b;
-  private GaussianKernelE gaussianKernelE;
-  private GaussianKernelDoubleE gaussianKernelDoubleE;
-  private StoppingModel model;
 
   public KernelContFunction2(ArrayList<StoppingState> curStates,
                              ArrayList<StoppingState> nextStates,
@@ -27,30 +27,31 @@ public class KernelContFunction2 implements StateFunction {
                              GaussianKernelE gaussianKernelE,
                              GaussianKernelDoubleE gaussianKernelDoubleE,
                              StoppingModel model,
-                             double b) {
-    this.curStates = curStates;
-    this.nextStates = nextStates;
-    this.curLambda = curLambda;
-    this.nextLambda = nextLambda;
-    this.gaussianKernelE = gaussianKernelE;
-    this.gaussianKernelDoubleE = gaussianKernelDoubleE;
-    this.model = model;
+                             double b,
+                             double tolerance) {
+    nextSum = CompiledGaussianSum.expectation(gaussianKernelE, nextStates, nextLambda, true, tolerance);
+    curSum = CompiledGaussianSum.doubleExpectation(gaussianKernelDoubleE, curStates, curLambda, true, tolerance);
     this.b = b;
   }
 
   @Override
   public double value(State state) {
-    double value = b;
-    StoppingState stoppingState = (StoppingState) state;
-    for (int i = 0; i < nextStates.size(); ++ i) {
-      StoppingState nState = nextStates.get(i);
-      double thisVal = (nextLambda[i]) * gaussianKernelE.eval(stoppingState, nState);
-      value += thisVal;
-    }
-    for (int i = 0; i < curStates.size(); ++ i) {
-      StoppingState tState = curStates.get(i);
-      value += curLambda[i] * gaussianKernelDoubleE.eval(stoppingState, tState);
-    }
-    return value;
+    double[] x = ((StoppingState) state).vector;
+    return b + nextSum.value(x) + curSum.value(x);
   }
-}
\ No newline at end of file
+
+  @Override
+  public void values(List<? extends State> states, double[] out, int offset) {
+    double[] xs = CompiledGaussianSum.stackVectors(states), scratch = new double[xs.length];
+    Arrays.fill(out, offset, offset + states.size(), b);
+    nextSum.addValues(xs, states.size(), out, offset, scratch);
+    curSum.addValues(xs, states.size(), out, offset, scratch);
+  }
+
+  /**
+   * @return bound on the absolute error of the values due to kernel truncation
+   */
+  public double getErrorBound() {
+    return nextSum.getErrorBound() + curSum.getErrorBound();
+  }
+}
@@ -0,0 +1,189 @@
+package com.nikhilpb.stopping;
+
+import Jama.EigenvalueDecomposition;
+import com.nikhilpb.util.math.PSDMatrix;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Pairwise differences of the sampled states in the eigenbasis of the increment covariance
+ * Sigma = U diag(lambda) U'. With z = U'(x - y), the entries of all the kernel blocks are
+ * <p/>
+ * k(x, y) = peak exp(-sum_k z_k^2 / 2 rho)
+ * <p/>
+ * E k(X, Y) = peak / sqrt(prod_k (1 + 2 lambda_k / rho)) exp(-sum_k z_k^2 / 2 (2 lambda_k + rho))
+ * <p/>
+ * and E k(X, y) is the second form with lambda_k in place of 2 lambda_k and z = U'(x + mu - y).
+ * Storing the squared components z_k^2 once, the blocks of any bandwidth rho and peak follow
+ * without touching the states again, which is what a bandwidth sweep needs. The components of
+ * the pairs within a period are stored in the packed upper triangle layout of KernelQMatrix.
+ */
+public class KernelDistances {
+  private final int timePeriods, dimension;
+  private final int[] sizes;
+  private final double[] eigenvalues;
+  private final double[][] samePeriod, nextPeriod;
+
+  public KernelDistances(StoppingStateSampler sampler,
+                         int timePeriods,
+                         double[] mean,
+                         PSDMatrix sigma,
+                         int threadCount) {
+    this.timePeriods = timePeriods;
+    EigenvalueDecomposition eigen = sigma.mat().eig();
+    eigenvalues = eigen.getRealEigenvalues();
+    dimension = eigenvalues.length;
+    final double[][] basis = eigen.getV().getArray();
+    sizes = new int[timePeriods];
+    final double[][][] projected = new double[timePeriods][][];
+    for (int t = 0; t < timePeriods; ++ t) {
+      ArrayList<StoppingState> states = sampler.getStates(t);
+      sizes[t] = states.size();
+      projected[t] = new double[sizes[t]][];
+      for (int i = 0; i < sizes[t]; ++ i) {
+        projected[t][i] = project(basis, states.get(i).vector);
+      }
+    }
+    final double[] projectedMean = project(basis, mean);
+    samePeriod = new double[timePeriods][];
+    nextPeriod = new double[timePeriods - 1][];
+    final ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+    for (int t = 0; t < timePeriods; ++ t) {
+      final int period = t;
+      tasks.add(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          double[][] cur = projected[period];
+          int n = cur.length;
+          double[] same = samePeriod[period] = new double[n * (n + 1) / 2 * dimension];
+          int ind = 0;
+          for (int i = 0; i < n; ++ i) {
+            for (int j = i; j < n; ++ j) {
+              for (int k = 0; k < dimension; ++ k, ++ ind) {
+                double z = cur[i][k] - cur[j][k];
+                same[ind] = z * z;
+              }
+            }
+          }
+          if (period == timePeriods - 1) {
+            return;
+          }
+          double[][] next = projected[period + 1];
+          double[] cross = nextPeriod[period] = new double[n * next.length * dimension];
+          ind = 0;
+          for (int i = 0; i < n; ++ i) {
+            for (int j = 0; j < next.length; ++ j) {
+              for (int k = 0; k < dimension; ++ k, ++ ind) {
+                double z = cur[i][k] + projectedMean[k] - next[j][k];
+                cross[ind] = z * z;
+              }
+            }
+          }
+        }
+      });
+    }
+    ForkJoinPool pool = new ForkJoinPool(threadCount);
+    try {
+      pool.invoke(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private double[] project(double[][] basis, double[] x) {
+    double[] z = new double[dimension];
+    for (int k = 0; k < dimension; ++ k) {
+      for (int l = 0; l < dimension; ++ l) {
+        z[k] += basis[l][k] * x[l];
+      }
+    }
+    return z;
+  }
+
+  /**
+   * Writes the packed upper triangles of K_t and, for t < T - 1, D_t into kBlock and dBlock, for
+   * the rows from rowStart to rowEnd.
+   */
+  void fillSamePeriod(int t, int rowStart, int rowEnd, double bandWidth, double peak,
+                      double[] kBlock, double[] dBlock) {
+    double[] same = samePeriod[t], weights = weights(2., bandWidth);
+    double dScale = scale(2., bandWidth, peak);
+    int n = sizes[t];
+    for (int i = rowStart; i < rowEnd; ++ i) {
+      int ind = i * n - i * (i + 1) / 2 + i;
+      for (int j = i; j < n; ++ j, ++ ind) {
+        int offset = ind * dimension;
+        double kSum = 0., dSum = 0.;
+        for (int k = 0; k < dimension; ++ k) {
+          kSum += same[offset + k];
+          dSum += weights[k] * same[offset + k];
+        }
+        kBlock[ind] = peak * Math.exp(- .5 * kSum / bandWidth);
+        if (dBlock != null) {
+          dBlock[ind] = dScale * Math.exp(- .5 * dSum);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the rows from rowStart to rowEnd of E_t, row-major, into eBlock.
+   */
+  void fillNextPeriod(int t, int rowStart, int rowEnd, double bandWidth, double peak, double[] eBlock) {
+    double[] cross = nextPeriod[t], weights = weights(1., bandWidth);
+    double eScale = scale(1., bandWidth, peak);
+    int m = sizes[t + 1];
+    for (int i = rowStart; i < rowEnd; ++ i) {
+      for (int j = 0; j < m; ++ j) {
+        int ind = i * m + j, offset = ind * dimension;
+        double sum = 0.;
+        for (int k = 0; k < dimension; ++ k) {
+          sum += weights[k] * cross[offset + k];
+        }
+        eBlock[ind] = eScale * Math.exp(- .5 * sum);
+      }
+    }
+  }
+
+  /**
+   * @return 1 / (multiple lambda_k + rho), the weights of the squared components under the
+   * covariance multiple Sigma
+   */
+  private double[] weights(double multiple, double bandWidth) {
+    double[] weights = new double[dimension];
+    for (int k = 0; k < dimension; ++ k) {
+      weights[k] = 1. / (multiple * eigenvalues[k] + bandWidth);
+    }
+    return weights;
+  }
+
+  private double scale(double multiple, double bandWidth, double peak) {
+    double det = 1.;
+    for (int k = 0; k < dimension; ++ k) {
+      det *= 1. + multiple * eigenvalues[k] / bandWidth;
+    }
+    return peak / Math.sqrt(det);
+  }
+
+  public int size(int t) {
+    return sizes[t];
+  }
+
+  /**
+   * @return number of stored doubles
+   */
+  public long storedEntries() {
+    long count = 0;
+    for (int t = 0; t < timePeriods; ++ t) {
+      count += samePeriod[t].length + (t < timePeriods - 1 ? nextPeriod[t].length : 0);
+    }
+    return count;
+  }
+}
@@ -0,0 +1,271 @@
+package com.nikhilpb.stopping;
+
+import java.util.Arrays;
+
+/**
+ * Solves the offset LP of the kernel stopping solvers without an LP solver. Eliminating the slack
+ * variables leaves the convex piecewise linear function of the offsets b_0, ..., b_{T-1}
+ * <p/>
+ * F(b) = b_0 + kappa max(0, r_0 - b_0, c_0 - b_0 + b_1)
+ * + kappa / N sum_{t, i} max(0, r_{t,i} - b_t, c_{t,i} - b_t + b_{t+1})
+ * <p/>
+ * where r and c are the gaps of the stopping reward and of the continuation value to the value
+ * function at the sampled states. The dual of this LP is a min cost flow of one unit of stopping
+ * mass: from the node of period t the mass goes to the sampled states of the period, at most
+ * kappa / N to each (kappa at the base state), and from a state it either stops with gain r or
+ * continues to the node of period t + 1 with gain c. The flow is found by successive shortest
+ * paths, and b_t is the potential of the node of period t relative to the sink.
+ */
+public class KernelOffsetSolver {
+  private static final double kTol = 1E-12;
+  private static final double kUnbounded = 2.;
+  private final int timePeriods;
+  private final double kappa;
+  private final double baseStop, baseCont;
+  private final double[][] stopGaps, contGaps;
+  private final int nodeCount, sink;
+  private int arcCount;
+  private final int[] head, next, first;
+  private final double[] capacity, cost;
+  private int pathCount;
+
+  /**
+   * @param stopGaps reward minus value function at the states of periods 1 to T-1
+   * @param contGaps continuation value minus value function at the states of periods 1 to T-2
+   */
+  public KernelOffsetSolver(double kappa,
+                            double baseStop,
+                            double baseCont,
+                            double[][] stopGaps,
+                            double[][] contGaps) {
+    this.kappa = kappa;
+    this.baseStop = baseStop;
+    this.baseCont = baseCont;
+    this.stopGaps = stopGaps;
+    this.contGaps = contGaps;
+    timePeriods = stopGaps.length + 1;
+    if (contGaps.length != Math.max(0, timePeriods - 2)) {
+      throw new IllegalArgumentException("need continuation gaps for periods 1 to T-2");
+    }
+    // nodes: periods 0 to T-1, the sink, then the states in time order starting with the base
+    int stateCount = 1;
+    for (int t = 0; t < stopGaps.length; ++ t) {
+      stateCount += stopGaps[t].length;
+    }
+    sink = timePeriods;
+    nodeCount = timePeriods + 1 + stateCount;
+    int maxArcs = 6 * stateCount;
+    head = new int[maxArcs];
+    next = new int[maxArcs];
+    capacity = new double[maxArcs];
+    cost = new double[maxArcs];
+    first = new int[nodeCount];
+    Arrays.fill(first, - 1);
+    int state = timePeriods + 1;
+    for (int t = 0; t < timePeriods; ++ t) {
+      int count = t == 0 ? 1 : stopGaps[t - 1].length;
+      for (int i = 0; i < count; ++ i, ++ state) {
+        addArc(t, state, t == 0 ? kappa : kappa / count, 0.);
+        addArc(state, sink, kUnbounded, - (t == 0 ? baseStop : stopGaps[t - 1][i]));
+        if (t < timePeriods - 1) {
+          addArc(state, t + 1, kUnbounded, - (t == 0 ? baseCont : contGaps[t - 1][i]));
+        }
+      }
+    }
+  }
+
+  private void addArc(int from, int to, double cap, double arcCost) {
+    head[arcCount] = to;
+    capacity[arcCount] = cap;
+    cost[arcCount] = arcCost;
+    next[arcCount] = first[from];
+    first[from] = arcCount ++;
+    head[arcCount] = from;
+    capacity[arcCount] = 0.;
+    cost[arcCount] = - arcCost;
+    next[arcCount] = first[to];
+    first[to] = arcCount ++;
+  }
+
+  /**
+   * Computes the optimal offsets into b. Can be called once per instance.
+   *
+   * @return the optimal value
+   */
+  public double solve(double[] b) {
+    if (b.length != timePeriods) {
+      throw new IllegalArgumentException("need " + timePeriods + " offsets");
+    }
+    double[] potential = initialPotentials();
+    double[] dist = new double[nodeCount];
+    int[] predArc = new int[nodeCount];
+    Heap heap = new Heap(arcCount + nodeCount);
+    double remaining = 1.;
+    pathCount = 0;
+    while (remaining > kTol) {
+      // Dijkstra with reduced costs, which are nonnegative on the residual arcs
+      Arrays.fill(dist, Double.MAX_VALUE);
+      Arrays.fill(predArc, - 1);
+      dist[0] = 0.;
+      heap.clear();
+      heap.push(0., 0);
+      while (! heap.isEmpty()) {
+        double d = heap.topKey();
+        int u = heap.pop();
+        if (d > dist[u]) {
+          continue;
+        }
+        for (int e = first[u]; e >= 0; e = next[e]) {
+          if (capacity[e] <= kTol) {
+            continue;
+          }
+          int v = head[e];
+          double nd = d + Math.max(0., cost[e] + potential[u] - potential[v]);
+          if (nd < dist[v]) {
+            dist[v] = nd;
+            predArc[v] = e;
+            heap.push(nd, v);
+          }
+        }
+      }
+      if (dist[sink] == Double.MAX_VALUE) {
+        throw new RuntimeException("offset LP is unbounded, kappa must be at least 1");
+      }
+      double maxDist = 0.;
+      for (int v = 0; v < nodeCount; ++ v) {
+        if (dist[v] < Double.MAX_VALUE) {
+          maxDist = Math.max(maxDist, dist[v]);
+        }
+      }
+      for (int v = 0; v < nodeCount; ++ v) {
+        potential[v] += dist[v] < Double.MAX_VALUE ? dist[v] : maxDist;
+      }
+      double push = remaining;
+      for (int v = sink; v != 0; v = head[predArc[v] ^ 1]) {
+        push = Math.min(push, capacity[predArc[v]]);
+      }
+      for (int v = sink; v != 0; v = head[predArc[v] ^ 1]) {
+        capacity[predArc[v]] -= push;
+        capacity[predArc[v] ^ 1] += push;
+      }
+      remaining -= push;
+      ++ pathCount;
+    }
+    for (int t = 0; t < timePeriods; ++ t) {
+      b[t] = potential[t] - potential[sink];
+    }
+    return value(b);
+  }
+
+  /**
+   * Shortest distances from the node of period 0 on the initial graph, which is acyclic.
+   */
+  private double[] initialPotentials() {
+    double[] potential = new double[nodeCount];
+    Arrays.fill(potential, Double.MAX_VALUE);
+    potential[0] = 0.;
+    int state = timePeriods + 1;
+    for (int t = 0; t < timePeriods; ++ t) {
+      int count = t == 0 ? 1 : stopGaps[t - 1].length;
+      for (int i = 0; i < count; ++ i, ++ state) {
+        potential[state] = potential[t];
+        for (int e = first[state]; e >= 0; e = next[e]) {
+          if (capacity[e] > 0.) {
+            potential[head[e]] = Math.min(potential[head[e]], potential[state] + cost[e]);
+          }
+        }
+      }
+    }
+    return potential;
+  }
+
+  /**
+   * @return F(b)
+   */
+  public double value(double[] b) {
+    double value = b[0] + kappa * Math.max(0., Math.max(baseStop - b[0], baseCont - b[0] + b[1]));
+    for (int t = 1; t < timePeriods; ++ t) {
+      double[] stop = stopGaps[t - 1], cont = t < timePeriods - 1 ? contGaps[t - 1] : null;
+      double weight = kappa / stop.length, sum = 0.;
+      for (int i = 0; i < stop.length; ++ i) {
+        double term = Math.max(0., stop[i] - b[t]);
+        if (cont != null) {
+          term = Math.max(term, cont[i] - b[t] + b[t + 1]);
+        }
+        sum += term;
+      }
+      value += weight * sum;
+    }
+    return value;
+  }
+
+  /**
+   * @return number of augmenting paths of the last solve
+   */
+  public int getPathCount() {
+    return pathCount;
+  }
+
+  /**
+   * Binary heap of nodes keyed by distance, with lazy deletion of stale entries.
+   */
+  private static class Heap {
+    private double[] keys;
+    private int[] nodes;
+    private int size;
+
+    Heap(int capacity) {
+      keys = new double[capacity];
+      nodes = new int[capacity];
+    }
+
+    void clear() {
+      size = 0;
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    double topKey() {
+      return keys[0];
+    }
+
+    void push(double key, int node) {
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, 2 * size);
+        nodes = Arrays.copyOf(nodes, 2 * size);
+      }
+      int i = size ++;
+      while (i > 0 && keys[(i - 1) / 2] > key) {
+        keys[i] = keys[(i - 1) / 2];
+        nodes[i] = nodes[(i - 1) / 2];
+        i = (i - 1) / 2;
+      }
+      keys[i] = key;
+      nodes[i] = node;
+    }
+
+    int pop() {
+      int top = nodes[0];
+      double key = keys[-- size];
+      int node = nodes[size];
+      int i = 0;
+      while (2 * i + 1 < size) {
+        int child = 2 * i + 1;
+        if (child + 1 < size && keys[child + 1] < keys[child]) {
+          ++ child;
+        }
+        if (keys[child] >= key) {
+          break;
+        }
+        keys[i] = keys[child];
+        nodes[i] = nodes[child];
+        i = child;
+      }
+      keys[i] = key;
+      nodes[i] = node;
+      return top;
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package com.nikhilpb.stopping;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Kernel QP matrix with all blocks computed exactly. K_t and D_t are symmetric and stored as
+ * packed upper triangles, E_t is stored row-major. Blocks are assembled in parallel over tiles of
+ * rows, either from the kernels or from the KernelDistances of the states.
+ */
+public class KernelQMatrix extends KernelQuadraticForm {
+  private static final int kRowsPerTile = 32;
+  private final double[][] kBlocks, dBlocks, eBlocks;
+
+  public KernelQMatrix(StoppingStateSampler sampler,
+                       int timePeriods,
+                       final GaussianStateKernel kernel,
+                       final GaussianKernelE kernelE,
+                       final GaussianKernelDoubleE kernelDoubleE,
+                       int threadCount) {
+    super(sampler, timePeriods);
+    kBlocks = new double[timePeriods][];
+    dBlocks = new double[timePeriods - 1][];
+    eBlocks = new double[timePeriods - 1][];
+    final ArrayList<RecursiveAction> tiles = new ArrayList<RecursiveAction>();
+    for (int t = 0; t < timePeriods; ++ t) {
+      final int n = sizes[t];
+      final double[][] cur = vectors[t];
+      final double[] kBlock = kBlocks[t] = new double[n * (n + 1) / 2];
+      final double[] dBlock = t < timePeriods - 1 ? (dBlocks[t] = new double[n * (n + 1) / 2]) : null;
+      final double[][] next = t < timePeriods - 1 ? vectors[t + 1] : null;
+      final double[] eBlock = t < timePeriods - 1 ? (eBlocks[t] = new double[n * sizes[t + 1]]) : null;
+      for (int start = 0; start < n; start += kRowsPerTile) {
+        final int rowStart = start, rowEnd = Math.min(n, start + kRowsPerTile);
+        tiles.add(new RecursiveAction() {
+          @Override
+          protected void compute() {
+            for (int i = rowStart; i < rowEnd; ++ i) {
+              for (int j = i; j < n; ++ j) {
+                int ind = packedIndex(i, j, n);
+                kBlock[ind] = kernel.value(cur[i], cur[j]);
+                if (dBlock != null) {
+                  dBlock[ind] = kernelDoubleE.eval(cur[i], cur[j]);
+                }
+              }
+              if (eBlock != null) {
+                for (int j = 0; j < next.length; ++ j) {
+                  eBlock[i * next.length + j] = kernelE.eval(cur[i], next[j]);
+                }
+              }
+            }
+          }
+        });
+      }
+    }
+    invokeTiles(tiles, threadCount);
+  }
+
+  /**
+   * Builds the blocks for the bandwidth and peak from precomputed pairwise distances of the
+   * states of the sampler, as in a sweep over bandwidths.
+   */
+  public KernelQMatrix(StoppingStateSampler sampler,
+                       int timePeriods,
+                       final KernelDistances distances,
+                       final double bandWidth,
+                       final double peak,
+                       int threadCount) {
+    super(sampler, timePeriods);
+    kBlocks = new double[timePeriods][];
+    dBlocks = new double[timePeriods - 1][];
+    eBlocks = new double[timePeriods - 1][];
+    ArrayList<RecursiveAction> tiles = new ArrayList<RecursiveAction>();
+    for (int t = 0; t < timePeriods; ++ t) {
+      if (distances.size(t) != sizes[t]) {
+        throw new IllegalArgumentException("distances are not of the states of the sampler");
+      }
+      final int n = sizes[t], period = t;
+      final double[] kBlock = kBlocks[t] = new double[n * (n + 1) / 2];
+      final double[] dBlock = t < timePeriods - 1 ? (dBlocks[t] = new double[n * (n + 1) / 2]) : null;
+      final double[] eBlock = t < timePeriods - 1 ? (eBlocks[t] = new double[n * sizes[t + 1]]) : null;
+      for (int start = 0; start < n; start += kRowsPerTile) {
+        final int rowStart = start, rowEnd = Math.min(n, start + kRowsPerTile);
+        tiles.add(new RecursiveAction() {
+          @Override
+          protected void compute() {
+            distances.fillSamePeriod(period, rowStart, rowEnd, bandWidth, peak, kBlock, dBlock);
+            if (eBlock != null) {
+              distances.fillNextPeriod(period, rowStart, rowEnd, bandWidth, peak, eBlock);
+            }
+          }
+        });
+      }
+    }
+    invokeTiles(tiles, threadCount);
+  }
+
+  private static void invokeTiles(final ArrayList<RecursiveAction> tiles, int threadCount) {
+    ForkJoinPool pool = new ForkJoinPool(threadCount);
+    try {
+      pool.invoke(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          invokeAll(tiles);
+        }
+      });
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static int packedIndex(int i, int j, int n) {
+    if (i > j) {
+      int tmp = i;
+      i = j;
+      j = tmp;
+    }
+    return i * n - i * (i + 1) / 2 + j;
+  }
+
+  @Override
+  public double kernel(int t, int i, int j) {
+    return kBlocks[t][packedIndex(i, j, sizes[t])];
+  }
+
+  @Override
+  public double doubleExpectation(int t, int i, int j) {
+    return dBlocks[t][packedIndex(i, j, sizes[t])];
+  }
+
+  @Override
+  public double expectation(int t, int i, int j) {
+    return eBlocks[t][i * sizes[t + 1] + j];
+  }
+
+  @Override
+  public long storedEntries() {
+    long count = 0;
+    for (int t = 0; t < timePeriods; ++ t) {
+      count += kBlocks[t].length;
+      if (t < timePeriods - 1) {
+        count += dBlocks[t].length + eBlocks[t].length;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Writing u_t for the sum of the stopping and continuation weights of period t, the rows of
+   * Q x are K_t u_t - E_{t-1}' x_{C,t-1} for the stopping weights and
+   * K_t u_t + D_t x_{C,t} - E_{t-1}' x_{C,t-1} - E_t u_{t+1} for the continuation weights.
+   */
+  @Override
+  public void multiply(double[] x, double[] out) {
+    for (int t = 0; t < timePeriods; ++ t) {
+      int n = sizes[t], s = t == 0 ? contOffsets[0] : stopOffsets[t], c = contOffsets[t];
+      double[] kBlock = kBlocks[t];
+      for (int i = 0; i < n; ++ i) {
+        out[s + i] = 0.;
+      }
+      int ind = 0;
+      for (int i = 0; i < n; ++ i) {
+        double ui = combined(x, t, i), sum = 0.;
+        for (int j = i; j < n; ++ j, ++ ind) {
+          double k = kBlock[ind];
+          sum += k * combined(x, t, j);
+          if (j != i) {
+            out[s + j] += k * ui;
+          }
+        }
+        out[s + i] += sum;
+      }
+      if (t > 0) {
+        int prevN = sizes[t - 1], prevC = contOffsets[t - 1];
+        double[] eBlock = eBlocks[t - 1];
+        for (int i = 0; i < prevN; ++ i) {
+          double xc = x[prevC + i], sum = 0.;
+          int row = i * n;
+          for (int j = 0; j < n; ++ j) {
+            double e = eBlock[row + j];
+            out[s + j] -= e * xc;
+            sum += e * combined(x, t, j);
+          }
+          out[prevC + i] -= sum;
+        }
+      }
+      if (c >= 0) {
+        double[] dBlock = dBlocks[t];
+        if (c != s) {
+          for (int i = 0; i < n; ++ i) {
+            out[c + i] = out[s + i];
+          }
+        }
+        ind = 0;
+        for (int i = 0; i < n; ++ i) {
+          double xi = x[c + i], sum = 0.;
+          for (int j = i; j < n; ++ j, ++ ind) {
+            double d = dBlock[ind];
+            sum += d * x[c + j];
+            if (j != i) {
+              out[c + j] += d * xi;
+            }
+          }
+          out[c + i] += sum;
+        }
+      }
+    }
+  }
+}
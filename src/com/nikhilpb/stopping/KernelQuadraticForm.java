@@ -0,0 +1,110 @@
+package com.nikhilpb.stopping;
+
+import com.nikhilpb.util.math.QuadraticForm;
+
+import java.util.ArrayList;
+
+/**
+ * Quadratic term of the kernel stopping QP. The matrix is block tridiagonal in time: period t
+ * contributes the kernel block K_t (k(x_i, x_j)) and the double expectation block D_t
+ * (E k(X_i, X_j)) between its own states, and the expectation block E_t (E k(X_i, x_j)) between
+ * its states and those of period t + 1. Period 0 has the base state only. Subclasses decide how
+ * the blocks are stored.
+ * <p/>
+ * As a QuadraticForm it acts on the QP variables in the layout of the solvers: the continuation
+ * weight of the base state first, then for each period t > 0 the stopping weights followed by
+ * the continuation weights (none in the last period).
+ */
+public abstract class KernelQuadraticForm implements QuadraticForm {
+  protected final int timePeriods;
+  protected final int[] sizes;
+  protected final double[][][] vectors;
+  protected final int[] stopOffsets, contOffsets;
+  private final int variableCount;
+
+  protected KernelQuadraticForm(StoppingStateSampler sampler, int timePeriods) {
+    this.timePeriods = timePeriods;
+    sizes = new int[timePeriods];
+    vectors = new double[timePeriods][][];
+    for (int t = 0; t < timePeriods; ++ t) {
+      ArrayList<StoppingState> states = sampler.getStates(t);
+      sizes[t] = states.size();
+      vectors[t] = new double[sizes[t]][];
+      for (int i = 0; i < sizes[t]; ++ i) {
+        vectors[t][i] = states.get(i).vector;
+      }
+    }
+    stopOffsets = new int[timePeriods];
+    contOffsets = new int[timePeriods];
+    int offset = 1;
+    stopOffsets[0] = - 1;
+    for (int t = 1; t < timePeriods; ++ t) {
+      stopOffsets[t] = offset;
+      offset += sizes[t];
+      contOffsets[t] = t < timePeriods - 1 ? offset : - 1;
+      offset += t < timePeriods - 1 ? sizes[t] : 0;
+    }
+    variableCount = offset;
+  }
+
+  /**
+   * @return k(x_i, x_j) for states i and j of period t
+   */
+  public abstract double kernel(int t, int i, int j);
+
+  /**
+   * @return E k(X_i, X_j) for states i and j of period t, t < timePeriods - 1
+   */
+  public abstract double doubleExpectation(int t, int i, int j);
+
+  /**
+   * @return E k(X_i, x_j) for state i of period t and state j of period t + 1
+   */
+  public abstract double expectation(int t, int i, int j);
+
+  /**
+   * @return number of stored doubles
+   */
+  public abstract long storedEntries();
+
+  /**
+   * @return number of states in the time period
+   */
+  public int size(int t) {
+    return sizes[t];
+  }
+
+  public int getTimePeriods() {
+    return timePeriods;
+  }
+
+  /**
+   * @return index of the first stopping weight of period t > 0
+   */
+  public int stopOffset(int t) {
+    return stopOffsets[t];
+  }
+
+  /**
+   * @return index of the first continuation weight of period t, -1 in the last period
+   */
+  public int contOffset(int t) {
+    return contOffsets[t];
+  }
+
+  @Override
+  public int size() {
+    return variableCount;
+  }
+
+  /**
+   * @return sum of the stopping and continuation weights of state i of period t
+   */
+  protected double combined(double[] x, int t, int i) {
+    if (t == 0) {
+      return x[i];
+    }
+    int c = contOffsets[t];
+    return c < 0 ? x[stopOffsets[t] + i] : x[stopOffsets[t] + i] + x[c + i];
+  }
+}
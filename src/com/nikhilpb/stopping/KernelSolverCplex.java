@@ -1,7 +1,8 @@
 package com.nikhilpb.stopping;
 
 import com.nikhilpb.adp.*;
-import com.nikhilpb.util.math.PSDMatrix;
+import com.nikhilpb.util.math.AugmentedLagrangianQPSolver;
+import com.nikhilpb.util.math.ConvexSet;
 import ilog.concert.*;
 import ilog.cplex.IloCplex;
 
@@ -15,25 +16,48 @@ import java.util.List;
  * Date: 11/11/13
  * Time: 11:44 AM
  * To change this template use File | Settings | File Templates.
+ * <p/>
+ * The QP minimizes lambda' Q lambda + c' lambda over the weights of the sampled states, with Q
+ * the full qMatrix, including the -E_t coupling between consecutive periods, and c the reward
+ * term. Both backends minimize this one objective, enumerated by objectiveTerms for CPLEX; the
+ * original CPLEX model kept only the entries of Q above a tolerance, which dropped the negative
+ * coupling entries.
+ * <p/>
+ * The QP and the offset LP are solved either with CPLEX or, with the JAVA backend, with
+ * AugmentedLagrangianQPSolver and KernelOffsetSolver, which need no native libraries. The JAVA
+ * backend keeps its solution, so solving again after setGamma starts from it. With a positive
+ * feature count the kernel is replaced by a random Fourier feature approximation, which stores
+ * the Q matrix in O(N r) and evaluates the continuation values in O(r d).
  */
 public class KernelSolverCplex implements Solver {
+  /**
+   * Solver of the QP and the offset LP. Both solve the same problems.
+   */
+  public enum Backend {
+    CPLEX, JAVA
+  }
+
   protected StoppingModel model;
   protected double gamma, kappa;
   protected GaussianStateKernel kernel;
   protected int timePeriods;
   protected GaussianKernelE gaussianKernelE;
   protected GaussianKernelDoubleE gaussianKernelDoubleE;
-  protected double[][] qMat;
-  protected int[] startInd;
-  private int qSize, sampleCount;
+  protected KernelQuadraticForm qMatrix;
+  private int sampleCount;
   protected StoppingStateSampler sampler;
   private IloNumVar lambda0C, lambda0S;
   private IloNumVar[][] lambdaC, lambdaS;
   private IloNumVar[] lambdaSLast;
   private IloCplex cplex;
   private IloRange[] bConsts;
-  private static final double kTol = 1E-4;
   private double[] b;
+  private final Backend backend;
+  private AugmentedLagrangianQPSolver qpSolver;
+  private RandomFourierFeatures features;
+  private double[] meanPhases, damping;
+  private double peak;
+  private double truncationTolerance = 0.;
   ArrayList<StateFunction> contValues, valueFuns;
 
   public KernelSolverCplex(StoppingModel model,
@@ -43,61 +67,68 @@ public class KernelSolverCplex implements Solver {
                            double peak,
                            int sampleCount,
                            long sampleSeed) throws IloException {
-    this.model = model;
-    timePeriods = model.getTimePeriods();
-    this.gamma = gamma;
-    this.kappa = kappa;
+    this(model, kappa, gamma, bandWidth, peak, sampleCount, sampleSeed, Backend.CPLEX);
+  }
+
+  public KernelSolverCplex(StoppingModel model,
+                           double kappa,
+                           double gamma,
+                           double bandWidth,
+                           double peak,
+                           int sampleCount,
+                           long sampleSeed,
+                           Backend backend) throws IloException {
+    this(model, kappa, gamma, bandWidth, peak, sampleCount, sampleSeed, backend, 0);
+  }
+
+  /**
+   * @param featureCount number of random Fourier features of the low rank kernel approximation,
+   *                     0 for the exact kernel
+   */
+  public KernelSolverCplex(StoppingModel model,
+                           double kappa,
+                           double gamma,
+                           double bandWidth,
+                           double peak,
+                           int sampleCount,
+                           long sampleSeed,
+                           Backend backend,
+                           int featureCount) throws IloException {
+    this(model, kappa, gamma, bandWidth, peak, sampleCount, sampleSeed, backend, featureCount, null);
+  }
+
+  /**
+   * @param pathCache cache of the sampled paths, or null to always simulate them
+   */
+  public KernelSolverCplex(StoppingModel model,
+                           double kappa,
+                           double gamma,
+                           double bandWidth,
+                           double peak,
+                           int sampleCount,
+                           long sampleSeed,
+                           Backend backend,
+                           int featureCount,
+                           TrajectoryCache pathCache) throws IloException {
+    this.backend = backend;
+    init(model, kappa, gamma, bandWidth, peak);
     this.sampleCount = sampleCount;
-    kernel = new GaussianStateKernel(bandWidth, peak);
-    gaussianKernelE = new GaussianKernelE(model.getMeanArray(), model.getCovarMatrix(), bandWidth, peak);
-    gaussianKernelDoubleE = new GaussianKernelDoubleE(model.getCovarMatrix(), bandWidth, peak);
-    sampler = new StoppingStateSampler(model);
+    sampler = new StoppingStateSampler(model, pathCache);
     sampler.sample(sampleCount, sampleSeed);
-    startInd = new int[timePeriods];
-    for (int t = 1; t < timePeriods; ++ t) {
-      startInd[t] = 2 * sampleCount * (t - 1) + 1;
-    }
-    qSize = (2 * timePeriods - 3) * sampleCount + 1;
-    System.out.println("size of the Q matrix: " + qSize);
-    qMat = new double[qSize][qSize];
-    qMat[0][0] = kernel.value(model.getBaseState(), model.getBaseState());
-    for (int t = 1; t < timePeriods - 1; ++ t) {
-      ArrayList<StoppingState> curStates = sampler.getStates(t);
-      for (int i = startInd[t]; i < startInd[t + 1]; ++ i) {
-        for (int j = startInd[t]; j < startInd[t + 1]; ++ j) {
-          int stateInd1 = stateIndForInd(i), stateInd2 = stateIndForInd(j);
-          qMat[i][j] = kernel.value(curStates.get(stateInd1),
-                                           curStates.get(stateInd2));
-        }
-      }
-    }
-    ArrayList<StoppingState> lastStates = sampler.getStates(timePeriods - 1);
-    for (int i = startInd[timePeriods - 1]; i < startInd[timePeriods - 1] + sampleCount; ++ i) {
-      for (int j = startInd[timePeriods - 1]; j < startInd[timePeriods - 1] + sampleCount; ++ j) {
-        int stateInd1 = stateIndForInd(i), stateInd2 = stateIndForInd(j);
-        qMat[i][j] = kernel.value(lastStates.get(stateInd1),
-                                         lastStates.get(stateInd2));
-      }
+    if (featureCount > 0) {
+      features = new RandomFourierFeatures(model.getDimension(), bandWidth, peak, featureCount, sampleSeed);
+      meanPhases = features.phases(model.getMeanArray());
+      damping = features.damping(model.getCovarMatrix());
+      qMatrix = new LowRankKernelQMatrix(sampler, timePeriods, features, model.getMeanArray(),
+                                         model.getCovarMatrix());
+    } else {
+      qMatrix = new KernelQMatrix(sampler, timePeriods, kernel, gaussianKernelE, gaussianKernelDoubleE,
+                                  Runtime.getRuntime().availableProcessors());
     }
-    for (int t = 0; t < timePeriods - 1; ++ t) {
-      ArrayList<StoppingState> curStates = sampler.getStates(t), nextStates = sampler.getStates(t + 1);
-      for (int i = 0; i < curStates.size(); ++ i) {
-        for (int j = 0; j < curStates.size(); j++) {
-          int indi = indOfVar(t, i, StoppingAction.CONTINUE);
-          int indj = indOfVar(t, j, StoppingAction.CONTINUE);
-          qMat[indi][indj] += gaussianKernelDoubleE.eval(curStates.get(i), curStates.get(j));
-        }
-        for (int j = 0; j < nextStates.size(); ++ j) {
-          int indi = indOfVar(t, i, StoppingAction.CONTINUE);
-          int indjs = indOfVar(t + 1, j, StoppingAction.STOP);
-          qMat[indi][indjs] = qMat[indjs][indi] = - gaussianKernelE.eval(curStates.get(i),
-                                                                                nextStates.get(j));
-          if (t < timePeriods - 2) {
-            int indjc = indOfVar(t + 1, j, StoppingAction.CONTINUE);
-            qMat[indi][indjc] = qMat[indjc][indi] = qMat[indi][indjs];
-          }
-        }
-      }
+    System.out.println("stored entries of the Q matrix: " + qMatrix.storedEntries());
+    if (backend == Backend.JAVA) {
+      qpSolver = newQPSolver();
+      return;
     }
 
     cplex = new IloCplex();
@@ -148,40 +179,154 @@ public class KernelSolverCplex implements Solver {
         cplex.addLe(stateMass, kappa / sampleCount);
       }
     }
-    List<IloNumExpr> objTerms = new ArrayList<IloNumExpr>();
-    for (int i = 0; i < qSize; ++ i) {
-      for (int j = 0; j < qSize; ++ j) {
-        if (qMat[i][j] > kTol) {
-          objTerms.add(cplex.prod(getVarFromInd(i), getVarFromInd(j), qMat[i][j]));
-        }
-      }
-      if (actionForInd(i) == StoppingAction.STOP) {
-        int t = timePeriodForInd(i);
-        int ind = stateIndForInd(i);
-        IloNumExpr o = cplex.prod(model.getRewardFunction().value(sampler.getStates(t).get(ind),
-                                                                         StoppingAction.STOP) * - 2.0 * gamma,
-                                         getVarFromInd(i));
-        objTerms.add(o);
+    final IloNumVar[] vars = new IloNumVar[qMatrix.size()];
+    vars[0] = lambda0C;
+    for (int t = 1; t < timePeriods; ++ t) {
+      System.arraycopy(stopVars(t), 0, vars, qMatrix.stopOffset(t), sampleCount);
+      if (contVars(t) != null) {
+        System.arraycopy(contVars(t), 0, vars, qMatrix.contOffset(t), sampleCount);
       }
     }
+    final List<IloNumExpr> objTerms = new ArrayList<IloNumExpr>();
+    objectiveTerms(new ObjectiveTerms() {
+      @Override
+      public void quadratic(int row, int column, double coeff) throws IloException {
+        objTerms.add(cplex.prod(vars[row], vars[column], coeff));
+      }
+
+      @Override
+      public void linear(int index, double coeff) throws IloException {
+        objTerms.add(cplex.prod(coeff, vars[index]));
+      }
+    });
     IloNumExpr obj = cplex.sum(objTerms.toArray(new IloNumExpr[objTerms.size()]));
     cplex.addMinimize(obj);
+  }
+
+  /**
+   * JAVA backend solver on states sampled elsewhere and a Q matrix built from them for the
+   * bandwidth and peak, so that the solvers of a parameter sweep can share both.
+   */
+  public KernelSolverCplex(StoppingModel model,
+                           double kappa,
+                           double gamma,
+                           double bandWidth,
+                           double peak,
+                           StoppingStateSampler sampler,
+                           KernelQuadraticForm qMatrix) {
+    this.backend = Backend.JAVA;
+    init(model, kappa, gamma, bandWidth, peak);
+    this.sampler = sampler;
+    this.qMatrix = qMatrix;
+    sampleCount = qMatrix.size(1);
+    qpSolver = newQPSolver();
+  }
+
+  /**
+   * Sets up the parameters and the kernels, common to both ways of building the solver.
+   */
+  private void init(StoppingModel model, double kappa, double gamma, double bandWidth, double peak) {
+    this.model = model;
+    this.peak = peak;
+    timePeriods = model.getTimePeriods();
+    this.gamma = gamma;
+    this.kappa = kappa;
+    kernel = new GaussianStateKernel(bandWidth, peak);
+    gaussianKernelE = new GaussianKernelE(model.getMeanArray(), model.getCovarMatrix(), bandWidth, peak);
+    gaussianKernelDoubleE = new GaussianKernelDoubleE(model.getCovarMatrix(), bandWidth, peak);
     b = new double[timePeriods];
   }
 
+  private AugmentedLagrangianQPSolver newQPSolver() {
+    return new AugmentedLagrangianQPSolver(qMatrix, linearTerm(), massBalanceIndices(), massBalanceCoeffs(),
+                                           new double[timePeriods - 1], stateMassSet(),
+                                           new AugmentedLagrangianQPSolver.Config());
+  }
+
+  /**
+   * Sets the truncation tolerance of the kernel sums of the solution, 0 (the default) for exact
+   * sums. See CompiledGaussianSum.
+   */
+  public void setTruncationTolerance(double truncationTolerance) {
+    this.truncationTolerance = truncationTolerance;
+  }
+
+  /**
+   * Changes the weight of the reward term. Only supported by the JAVA backend, whose next solve
+   * starts from the current solution.
+   */
+  public void setGamma(double gamma) {
+    if (backend != Backend.JAVA) {
+      throw new UnsupportedOperationException("gamma can only be changed with the JAVA backend");
+    }
+    this.gamma = gamma;
+    qpSolver.setLinearTerm(linearTerm());
+  }
+
+  /**
+   * Changes the cap on the mass of the sampled states. Only supported by the JAVA backend, whose
+   * next solve starts from the current solution.
+   */
+  public void setKappa(double kappa) {
+    if (backend != Backend.JAVA) {
+      throw new UnsupportedOperationException("kappa can only be changed with the JAVA backend");
+    }
+    this.kappa = kappa;
+  }
+
+  /**
+   * @return objective of the last QP solve of the JAVA backend
+   */
+  public double getQPObjective() {
+    return qpSolver.getObjective();
+  }
+
+  /**
+   * @return solution of the last QP solve of the JAVA backend in the layout of qMatrix, not a copy
+   */
+  public double[] getQPSolution() {
+    return qpSolver.getSolution();
+  }
+
+  /**
+   * @return gradient steps of the last QP solve of the JAVA backend
+   */
+  public int getQPIterationCount() {
+    return qpSolver.getIterationCount();
+  }
+
   @Override
   public boolean solve() throws Exception {
-    boolean solved = cplex.solve();
-    if (! solved) {
-      return solved;
-    }
-    double l0C = cplex.getValue(lambda0C);
+    double l0C;
     double[][] lS = new double[timePeriods - 2][], lC = new double[timePeriods - 2][];
-    for (int t = 1; t < timePeriods - 1; ++ t) {
-      lS[t - 1] = cplex.getValues(lambdaS[t - 1]);
-      lC[t - 1] = cplex.getValues(lambdaC[t - 1]);
+    double[] lSLast;
+    if (backend == Backend.JAVA) {
+      boolean solved = qpSolver.solve();
+      System.out.println("QP " + (solved ? "solved" : "not solved") + " in " + qpSolver.getIterationCount()
+                                 + " gradient steps, objective " + qpSolver.getObjective());
+      if (! solved) {
+        return false;
+      }
+      double[] lambda = qpSolver.getSolution();
+      l0C = lambda[0];
+      for (int t = 1; t < timePeriods - 1; ++ t) {
+        lS[t - 1] = Arrays.copyOfRange(lambda, qMatrix.stopOffset(t), qMatrix.stopOffset(t) + sampleCount);
+        lC[t - 1] = Arrays.copyOfRange(lambda, qMatrix.contOffset(t), qMatrix.contOffset(t) + sampleCount);
+      }
+      int last = qMatrix.stopOffset(timePeriods - 1);
+      lSLast = Arrays.copyOfRange(lambda, last, last + sampleCount);
+    } else {
+      boolean solved = cplex.solve();
+      if (! solved) {
+        return solved;
+      }
+      l0C = cplex.getValue(lambda0C);
+      for (int t = 1; t < timePeriods - 1; ++ t) {
+        lS[t - 1] = cplex.getValues(lambdaS[t - 1]);
+        lC[t - 1] = cplex.getValues(lambdaC[t - 1]);
+      }
+      lSLast = cplex.getValues(lambdaSLast);
     }
-    double[] lSLast = cplex.getValues(lambdaSLast);
 
     contValues = new ArrayList<StateFunction>();
     for (int t = 0; t < timePeriods; ++ t) {
@@ -206,17 +351,23 @@ public class KernelSolverCplex implements Solver {
           lmdNext[i] = lSLast[i];
         }
       }
-      contValues.add(new KernelContFunction(
-                                                   sampler.getStates(t),
-                                                   sampler.getStates(t + 1),
-                                                   lmdCur,
-                                                   lmdNext,
-                                                   gaussianKernelE,
-                                                   gaussianKernelDoubleE,
-                                                   model,
-                                                   gamma,
-                                                   0.));
-      for (int i = 0; i < 20; ++ i) {
+      if (features != null) {
+        contValues.add(LowRankKernelFunction.continuation(features, sampler.getStates(t), sampler.getStates(t + 1),
+                                                          lmdCur, lmdNext, meanPhases, damping, peak, gamma, 0.));
+      } else {
+        contValues.add(new KernelContFunction(
+                                                     sampler.getStates(t),
+                                                     sampler.getStates(t + 1),
+                                                     lmdCur,
+                                                     lmdNext,
+                                                     gaussianKernelE,
+                                                     gaussianKernelDoubleE,
+                                                     model,
+                                                     gamma,
+                                                     0.,
+                                                     truncationTolerance));
+      }
+      for (int i = 0; model.getDimension() == 1 && i < 20; ++ i) {
         double price = 90.0 + i;
         double[] pVec = {Math.log(price)};
         StoppingState s = new StoppingState(pVec, t);
@@ -250,26 +401,36 @@ public class KernelSolverCplex implements Solver {
           lmdCur[i] = lC[t - 1][i] + lS[t - 1][i];
         }
       }
-      valueFuns.add(new KernelStateFunction(
-                                                   sampler.getStates(t - 1),
-                                                   sampler.getStates(t),
-                                                   lmdPrev,
-                                                   lmdCur,
-                                                   kernel,
-                                                   gaussianKernelE,
-                                                   model,
-                                                   gamma));
+      if (features != null) {
+        valueFuns.add(LowRankKernelFunction.value(features, sampler.getStates(t - 1), sampler.getStates(t),
+                                                  lmdPrev, lmdCur, meanPhases, damping, peak, gamma));
+      } else {
+        valueFuns.add(new KernelStateFunction(
+                                                     sampler.getStates(t - 1),
+                                                     sampler.getStates(t),
+                                                     lmdPrev,
+                                                     lmdCur,
+                                                     kernel,
+                                                     gaussianKernelE,
+                                                     model,
+                                                     gamma,
+                                                     truncationTolerance));
+      }
     }
 
-    b = findOffsets();
+    CompiledGaussianSum.printErrorBounds("continuation value", contValues);
+    CompiledGaussianSum.printErrorBounds("value function", valueFuns);
+    b = backend == Backend.JAVA ? findOffsetsJava() : findOffsets();
     for (int t = 0; t < timePeriods - 1; ++ t) {
       if (t == 0) {
         contValues.set(0, new ConstantStateFunction(Double.MAX_VALUE));
+      } else if (features != null) {
+        ((LowRankKernelFunction) contValues.get(t)).setB(b[t + 1]);
       } else {
         ((KernelContFunction) contValues.get(t)).setB(b[t + 1]);
       }
     }
-    return solved;
+    return true;
   }
 
   @Override
@@ -278,68 +439,169 @@ public class KernelSolverCplex implements Solver {
     return new QFunctionPolicy(model, qFunction, model.getRewardFunction(), 1.);
   }
 
-  private int timePeriodForInd(int i) {
-    if (i == 0)
-      return 0;
-    return (i - 1) / (2 * sampleCount) + 1;
-  }
+  /**
+   * Receives the terms of the objective, by the indices of the variables in the layout of qMatrix.
+   */
+  interface ObjectiveTerms {
+    public void quadratic(int row, int column, double coeff) throws IloException;
 
-  private StoppingAction actionForInd(int i) {
-    if (i == 0)
-      return StoppingAction.CONTINUE;
-    return (((i - 1) / sampleCount) % 2 == 0) ?
-                   StoppingAction.STOP : StoppingAction.CONTINUE;
+    public void linear(int index, double coeff) throws IloException;
   }
 
-  private int stateIndForInd(int i) {
-    if (timePeriodForInd(i) == 0)
-      return 0;
-    if (actionForInd(i) == StoppingAction.STOP) {
-      return i - startInd[timePeriodForInd(i)];
-    } else {
-      return i - startInd[timePeriodForInd(i)] - sampleCount;
+  /**
+   * Enumerates the nonzero terms of the objective lambda' Q lambda + c' lambda, each pair of
+   * variables once, with twice the entry of Q off the diagonal. This is the objective that
+   * AugmentedLagrangianQPSolver computes from qMatrix and linearTerm.
+   */
+  void objectiveTerms(ObjectiveTerms terms) throws IloException {
+    addQuadraticTerm(terms, 0, 0, qMatrix.kernel(0, 0, 0) + qMatrix.doubleExpectation(0, 0, 0));
+    for (int t = 1; t < timePeriods; ++ t) {
+      int s = qMatrix.stopOffset(t), c = qMatrix.contOffset(t);
+      for (int i = 0; i < sampleCount; ++ i) {
+        for (int j = i; j < sampleCount; ++ j) {
+          double k = qMatrix.kernel(t, i, j), multiplier = i == j ? 1. : 2.;
+          addQuadraticTerm(terms, s + i, s + j, multiplier * k);
+          if (c >= 0) {
+            addQuadraticTerm(terms, c + i, c + j, multiplier * (k + qMatrix.doubleExpectation(t, i, j)));
+          }
+        }
+        for (int j = 0; c >= 0 && j < sampleCount; ++ j) {
+          addQuadraticTerm(terms, s + i, c + j, 2. * qMatrix.kernel(t, i, j));
+        }
+      }
+    }
+    for (int t = 0; t < timePeriods - 1; ++ t) {
+      int cur = t == 0 ? 0 : qMatrix.contOffset(t), curCount = t == 0 ? 1 : sampleCount,
+              nextS = qMatrix.stopOffset(t + 1), nextC = qMatrix.contOffset(t + 1);
+      for (int i = 0; i < curCount; ++ i) {
+        for (int j = 0; j < sampleCount; ++ j) {
+          double e = - 2. * qMatrix.expectation(t, i, j);
+          addQuadraticTerm(terms, cur + i, nextS + j, e);
+          if (nextC >= 0) {
+            addQuadraticTerm(terms, cur + i, nextC + j, e);
+          }
+        }
+      }
+    }
+    double[] c = linearTerm();
+    for (int k = 0; k < c.length; ++ k) {
+      if (c[k] != 0.) {
+        terms.linear(k, c[k]);
+      }
     }
   }
 
-  private int indOfVar(int tp, int ind, StoppingAction action) {
-    if (tp == 0) {
-      return 0;
+  private static void addQuadraticTerm(ObjectiveTerms terms, int row, int column, double coeff)
+          throws IloException {
+    if (coeff != 0.) {
+      terms.quadratic(row, column, coeff);
     }
-    if (action == StoppingAction.STOP) {
-      return startInd[tp] + ind;
-    } else {
-      return startInd[tp] + sampleCount + ind;
+  }
+
+  private IloNumVar[] stopVars(int t) {
+    return t == timePeriods - 1 ? lambdaSLast : lambdaS[t - 1];
+  }
+
+  private IloNumVar[] contVars(int t) {
+    return t == timePeriods - 1 ? null : lambdaC[t - 1];
+  }
+
+  /**
+   * @return the linear term -2 gamma reward of the stopping weights in the layout of qMatrix
+   */
+  private double[] linearTerm() {
+    double[] c = new double[qMatrix.size()];
+    for (int t = 1; t < timePeriods; ++ t) {
+      ArrayList<StoppingState> states = sampler.getStates(t);
+      for (int i = 0; i < sampleCount; ++ i) {
+        double reward = model.getRewardFunction().value(states.get(i), StoppingAction.STOP);
+        c[qMatrix.stopOffset(t) + i] = reward * - 2.0 * gamma;
+      }
     }
+    return c;
   }
 
-  private void printQ() {
-    for (int i = 0; i < qSize; ++ i) {
-      for (int j = 0; j < qSize; ++ j) {
-        System.out.printf("%.3f ", qMat[i][j]);
+  /**
+   * Mass balance of periods 1 to T-1: the weights of period t sum to the continuation weights of
+   * period t - 1. The base period constraint is folded into the bounds of its continuation weight.
+   */
+  private int[][] massBalanceIndices() {
+    int[][] indices = new int[timePeriods - 1][];
+    for (int t = 1; t < timePeriods; ++ t) {
+      int prevCount = t == 1 ? 1 : sampleCount, curCount = t == timePeriods - 1 ? sampleCount : 2 * sampleCount;
+      int[] row = indices[t - 1] = new int[prevCount + curCount];
+      for (int i = 0; i < prevCount; ++ i) {
+        row[i] = qMatrix.contOffset(t - 1) + i;
+      }
+      for (int i = 0; i < curCount; ++ i) {
+        row[prevCount + i] = qMatrix.stopOffset(t) + i;
       }
-      System.out.println();
     }
+    return indices;
   }
 
-  private IloNumVar getVarFromInd(int i) {
-    int t = timePeriodForInd(i);
-    int ind = stateIndForInd(i);
-    StoppingAction action = actionForInd(i);
-    if (t == 0) {
-      if (action == StoppingAction.STOP) {
-        return lambda0S;
-      } else {
-        return lambda0C;
+  private double[][] massBalanceCoeffs() {
+    int[][] indices = massBalanceIndices();
+    double[][] coeffs = new double[timePeriods - 1][];
+    for (int t = 1; t < timePeriods; ++ t) {
+      int prevCount = t == 1 ? 1 : sampleCount;
+      coeffs[t - 1] = new double[indices[t - 1].length];
+      Arrays.fill(coeffs[t - 1], 1.);
+      Arrays.fill(coeffs[t - 1], 0, prevCount, - 1.);
+    }
+    return coeffs;
+  }
+
+  /**
+   * Bounds [0, 1] on all weights and kappa / N on the weight of each sampled state. The projection
+   * is separable over the pairs of stopping and continuation weights of a state.
+   */
+  private ConvexSet stateMassSet() {
+    return new ConvexSet() {
+      @Override
+      public void project(double[] x) {
+        double cap = kappa / sampleCount;
+        x[0] = Math.min(1., Math.max(0., x[0]));
+        for (int t = 1; t < timePeriods - 1; ++ t) {
+          int s = qMatrix.stopOffset(t), c = qMatrix.contOffset(t);
+          for (int i = 0; i < sampleCount; ++ i) {
+            double stop = Math.min(1., Math.max(0., x[s + i])), cont = Math.min(1., Math.max(0., x[c + i]));
+            if (stop + cont > cap) {
+              // the cap is active, project on the segment stop + cont = cap within the box
+              stop = Math.min(Math.min(1., cap), Math.max(Math.max(0., cap - 1.), .5 * (x[s + i] - x[c + i] + cap)));
+              cont = cap - stop;
+            }
+            x[s + i] = stop;
+            x[c + i] = cont;
+          }
+        }
+        int s = qMatrix.stopOffset(timePeriods - 1);
+        for (int i = 0; i < sampleCount; ++ i) {
+          x[s + i] = Math.min(Math.min(1., cap), Math.max(0., x[s + i]));
+        }
       }
-    } else if (t == timePeriods - 1) {
-      return lambdaSLast[ind];
-    } else {
-      if (action == StoppingAction.STOP) {
-        return lambdaS[t - 1][ind];
-      } else {
-        return lambdaC[t - 1][ind];
+    };
+  }
+
+  private double[] findOffsetsJava() {
+    double[][] stopGaps = new double[timePeriods - 1][sampleCount], contGaps = new double[timePeriods - 2][sampleCount];
+    for (int t = 1; t < timePeriods; ++ t) {
+      ArrayList<StoppingState> states = sampler.getStates(t);
+      for (int i = 0; i < sampleCount; ++ i) {
+        StoppingState state = states.get(i);
+        double value = valueFuns.get(t).value(state);
+        stopGaps[t - 1][i] = model.getRewardFunction().value(state, StoppingAction.STOP) - value;
+        if (t < timePeriods - 1) {
+          contGaps[t - 1][i] = contValues.get(t).value(state) - value;
+        }
       }
     }
+    double baseStop = model.getRewardFunction().value(model.getBaseState(), StoppingAction.STOP);
+    double baseCont = contValues.get(0).value(model.getBaseState());
+    KernelOffsetSolver offsetSolver = new KernelOffsetSolver(kappa, baseStop, baseCont, stopGaps, contGaps);
+    double[] offsets = b.clone();
+    offsetSolver.solve(offsets);
+    return offsets;
   }
 
   private double arraySum(double[] arr) {
@@ -32,6 +32,7 @@ public class KernelSolverCplex2 implements Solver {
   protected StoppingStateSampler sampler;
   private IloNumVar[][] lambdaCVar, lambdaVar;
   private IloCplex cplex;
+  private double truncationTolerance = 0.;
   double[] b;
   ArrayList<StateFunction> contValues, valueFuns;
 
@@ -192,6 +193,14 @@ public class KernelSolverCplex2 implements Solver {
     }
   }
 
+  /**
+   * Sets the truncation tolerance of the kernel sums of the solution, 0 (the default) for exact
+   * sums. See CompiledGaussianSum.
+   */
+  public void setTruncationTolerance(double truncationTolerance) {
+    this.truncationTolerance = truncationTolerance;
+  }
+
   @Override
   public boolean solve() throws Exception {
     boolean solved = cplex.solve();
@@ -223,7 +232,8 @@ public class KernelSolverCplex2 implements Solver {
                                                    gaussianKernelDoubleE,
                                                    model,
                                                    gamma,
-                                                   0.));
+                                                   0.,
+                                                   truncationTolerance));
     }
     valueFuns = new ArrayList<StateFunction>();
     for (int t = 0; t < timePeriods; ++ t) {
@@ -239,8 +249,11 @@ public class KernelSolverCplex2 implements Solver {
                                                    kernel,
                                                    gaussianKernelE,
                                                    model,
-                                                   gamma));
+                                                   gamma,
+                                                   truncationTolerance));
     }
+    CompiledGaussianSum.printErrorBounds("continuation value", contValues);
+    CompiledGaussianSum.printErrorBounds("value function", valueFuns);
     b = findOffsets();
     for (int t = 0; t < timePeriods - 1; ++ t) {
       if (t == 0) {
@@ -37,6 +37,7 @@ public class KernelSolverCplex3 implements Solver {
   private IloNumVar[] bVar;
   private IloNumVar[][] sVar;
   private IloCplex cplex;
+  private double truncationTolerance = 0.;
   ArrayList<StateFunction> contValues;
 
   public KernelSolverCplex3(StoppingModel model,
@@ -46,6 +47,20 @@ public class KernelSolverCplex3 implements Solver {
                             double peak,
                             int sampleCount,
                             long sampleSeed) throws IloException {
+    this(model, kappa, gamma, bandWidth, peak, sampleCount, sampleSeed, null);
+  }
+
+  /**
+   * @param pathCache cache of the sampled paths, or null to always simulate them
+   */
+  public KernelSolverCplex3(StoppingModel model,
+                            double kappa,
+                            double gamma,
+                            double bandWidth,
+                            double peak,
+                            int sampleCount,
+                            long sampleSeed,
+                            TrajectoryCache pathCache) throws IloException {
     this.model = model;
     timePeriods = model.getTimePeriods();
     this.gamma = gamma;
@@ -54,7 +69,7 @@ public class KernelSolverCplex3 implements Solver {
     kernel = new GaussianStateKernel(bandWidth, peak);
     gaussianKernelE = new GaussianKernelE(model.getMeanArray(), model.getCovarMatrix(), bandWidth, peak);
     gaussianKernelDoubleE = new GaussianKernelDoubleE(model.getCovarMatrix(), bandWidth, peak);
-    sampler = new StoppingStateSampler(model);
+    sampler = new StoppingStateSampler(model, pathCache);
     sampler.sample(sampleCount, sampleSeed);
 
     cplex = new IloCplex();
@@ -258,6 +273,14 @@ public class KernelSolverCplex3 implements Solver {
 
   }
 
+  /**
+   * Sets the truncation tolerance of the kernel sums of the solution, 0 (the default) for exact
+   * sums. See CompiledGaussianSum.
+   */
+  public void setTruncationTolerance(double truncationTolerance) {
+    this.truncationTolerance = truncationTolerance;
+  }
+
   @Override
   public boolean solve() throws Exception {
     boolean solved = cplex.solve();
@@ -289,8 +312,10 @@ public class KernelSolverCplex3 implements Solver {
                                                     gaussianKernelE,
                                                     gaussianKernelDoubleE,
                                                     model,
-                                                    b[t]));
+                                                    b[t],
+                                                    truncationTolerance));
     }
+    CompiledGaussianSum.printErrorBounds("continuation value", contValues);
     return solved;
   }
 
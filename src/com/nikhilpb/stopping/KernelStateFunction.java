@@ -1,24 +1,23 @@
 package com.nikhilpb.stopping;
 
+import com.nikhilpb.adp.BatchStateFunction;
 import com.nikhilpb.adp.State;
-import com.nikhilpb.adp.StateFunction;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created with IntelliJ IDEA.
  * User: nikhilpb
  * Date: 11/19/13
  * Time: 12:44 AM
- * To change this template use File | Settings | File Templates.
+ * <p/>
+ * Evaluates sum_i curLambda_i k(x_i, x) / gamma - sum_i prevLambda_i E k(X_i, x) / gamma with the
+ * sums compiled into CompiledGaussianSums, skipping the states with zero weight.
  */
-public class KernelStateFunction implements StateFunction {
-  private ArrayList<StoppingState> prevStates, curStates;
-  private double[] prevLambda, curLambda;
-  private GaussianStateKernel kernel;
-  GaussianKernelE gaussianKernelE;
-  private StoppingModel model;
-  private double gamma;
+public class KernelStateFunction implements BatchStateFunction {
+  private final CompiledGaussianSum curSum, prevSum;
 
   public KernelStateFunction(ArrayList<StoppingState> prevStates,
                              ArrayList<StoppingState> curStates,
@@ -27,28 +26,37 @@ public class KernelStateFunction implements StateFunction {
                              GaussianStateKernel kernel,
                              GaussianKernelE gaussianKernelE,
                              StoppingModel model,
-                             double gamma) {
-    this.prevStates = prevStates;
-    this.curStates = curStates;
-    this.prevLambda = prevLambda;
-    this.curLambda = curLambda;
-    this.kernel = kernel;
-    this.gaussianKernelE = gaussianKernelE;
-    this.model = model;
-    this.gamma = gamma;
+                             double gamma,
+                             double tolerance) {
+    double[] curWeights = new double[curStates.size()], prevWeights = new double[prevStates.size()];
+    for (int i = 0; i < curWeights.length; ++ i) {
+      curWeights[i] = (1. / gamma) * curLambda[i];
+    }
+    for (int i = 0; i < prevWeights.length; ++ i) {
+      prevWeights[i] = - (1. / gamma) * prevLambda[i];
+    }
+    curSum = CompiledGaussianSum.kernel(kernel, curStates, curWeights, true, tolerance);
+    prevSum = CompiledGaussianSum.supportExpectation(gaussianKernelE, prevStates, prevWeights, true, tolerance);
   }
 
   @Override
   public double value(State state) {
-    double value = 0.;
-    for (int i = 0; i < curStates.size(); ++ i) {
-      value += (1. / gamma) * curLambda[i] * kernel.value(curStates.get(i), state);
-    }
-    for (int i = 0; i < prevStates.size(); ++ i) {
-      State prevState = prevStates.get(i);
-      StoppingState stopState = (StoppingState) state;
-      value -= (1. / gamma) * prevLambda[i] * gaussianKernelE.eval((StoppingState) prevState, stopState);
-    }
-    return value;
+    double[] x = ((StoppingState) state).vector;
+    return curSum.value(x) + prevSum.value(x);
+  }
+
+  @Override
+  public void values(List<? extends State> states, double[] out, int offset) {
+    double[] xs = CompiledGaussianSum.stackVectors(states), scratch = new double[xs.length];
+    Arrays.fill(out, offset, offset + states.size(), 0.);
+    curSum.addValues(xs, states.size(), out, offset, scratch);
+    prevSum.addValues(xs, states.size(), out, offset, scratch);
+  }
+
+  /**
+   * @return bound on the absolute error of the values due to kernel truncation
+   */
+  public double getErrorBound() {
+    return curSum.getErrorBound() + prevSum.getErrorBound();
   }
 }
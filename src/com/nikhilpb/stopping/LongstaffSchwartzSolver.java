@@ -1,43 +1,77 @@
 package com.nikhilpb.stopping;
 
 import com.nikhilpb.adp.*;
-import com.nikhilpb.util.math.Regression;
+import com.nikhilpb.util.math.LeastSquaresAccumulator;
 
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
- * Created with IntelliJ IDEA.
- * User: nikhilpb
- * Date: 11/3/13
- * Time: 2:11 PM
- * To change this template use File | Settings | File Templates.
+ * Longstaff-Schwartz regression over the paths of a TrajectoryStore. The backward pass keeps the
+ * cash flow of every path under the policy of the later periods, so each period costs one
+ * evaluation of the reward and of the basis per path. The paths are processed in parallel chunks
+ * and a single pass over a chunk both applies the stopping decision of period t + 1 to the cash
+ * flows and evaluates the design matrix of period t. The regression sums X'X and X'y of each chunk
+ * are accumulated in the same pass and merged in chunk order, so the fit does not depend on the
+ * number of threads.
  */
 public class LongstaffSchwartzSolver implements Solver {
+  private static final int kPathsPerChunk = 4096;
   private StoppingModel model;
   private BasisSet basisSet;
   private int timePeriods;
-  ArrayList<SamplePath> samplePaths;
-  private ArrayList<ArrayList<StoppingState>> sampleStates;
+  private TrajectoryStore store;
   private double[][] coeffs;
+  private boolean inTheMoneyOnly = false;
+  private double ridge = 0.;
+  private int threadCount = Runtime.getRuntime().availableProcessors();
+  private int pathCount, chunkCount;
+  private double[] cashFlows, rewards;
+  private double[][] designs;
+  private LeastSquaresAccumulator[] partialSums;
   ArrayList<StateFunction> contValues;
 
   public LongstaffSchwartzSolver(StoppingModel model,
                                  BasisSet basisSet,
                                  long seed,
                                  int sampleCount) {
+    this(model, basisSet, seed, sampleCount, null);
+  }
+
+  /**
+   * @param pathCache cache of the sampled paths, or null to always simulate them
+   */
+  public LongstaffSchwartzSolver(StoppingModel model,
+                                 BasisSet basisSet,
+                                 long seed,
+                                 int sampleCount,
+                                 TrajectoryCache pathCache) {
     this.model = model;
     this.basisSet = basisSet;
 
-    Policy policy = new Policy() {
-      @Override
-      public Action getAction(State state) {
-        return StoppingAction.CONTINUE;
-      }
-    };
     timePeriods = model.getTimePeriods();
     System.out.println("sampling " + sampleCount + " sample paths");
-    MonteCarloEval sampler = new MonteCarloEval(model, policy, seed);
-    samplePaths = sampler.getSamplePaths(sampleCount, timePeriods);
+    store = TrajectoryStore.load(model, sampleCount, seed, pathCache);
+  }
+
+  /**
+   * If set, the continuation value of each period is regressed only on the paths where stopping
+   * has a positive reward, and the policy never stops when the reward is not positive.
+   */
+  public void setInTheMoneyOnly(boolean inTheMoneyOnly) {
+    this.inTheMoneyOnly = inTheMoneyOnly;
+  }
+
+  /**
+   * Sets the ridge penalty of the regressions, zero by default.
+   */
+  public void setRidge(double ridge) {
+    this.ridge = ridge;
+  }
+
+  public void setThreadCount(int threadCount) {
+    this.threadCount = threadCount;
   }
 
   @Override
@@ -47,41 +81,121 @@ public class LongstaffSchwartzSolver implements Solver {
     for (int t = 0; t < timePeriods; ++ t) {
       contValues.add(null);
     }
-    RewardFunction rf = model.getRewardFunction();
-    for (int t = timePeriods - 1; t >= 0; -- t) {
-      if (t == timePeriods - 1) {
-        contValues.set(t, new ConstantStateFunction(0.));
-        continue;
+    contValues.set(timePeriods - 1, new ConstantStateFunction(0.));
+    pathCount = store.getPathCount();
+    chunkCount = (pathCount + kPathsPerChunk - 1) / kPathsPerChunk;
+    cashFlows = new double[pathCount];
+    rewards = new double[pathCount];
+    designs = new double[chunkCount][];
+    partialSums = new LeastSquaresAccumulator[chunkCount];
+    ForkJoinPool pool = new ForkJoinPool(threadCount);
+    try {
+      if (timePeriods > 1) {
+        sweep(pool, - 1, timePeriods - 1, false);
+      }
+      for (int t = timePeriods - 2; t >= 0; -- t) {
+        sweep(pool, t + 1, t, t > 0);
+        if (t == 0) {
+          double meanReward = 0.;
+          for (int p = 0; p < pathCount; ++ p) {
+            meanReward += cashFlows[p];
+          }
+          meanReward = meanReward / ((double) pathCount);
+          contValues.set(0, new ConstantStateFunction(meanReward));
+        } else {
+          coeffs[t] = regress();
+          StateFunction fit = new LinCombStateFunction(coeffs[t], basisSet);
+          contValues.set(t, inTheMoneyOnly ? new InTheMoneyContFunction(fit) : fit);
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+    cashFlows = rewards = null;
+    designs = null;
+    partialSums = null;
+    return true;
+  }
+
+  /**
+   * One parallel pass over the paths. Applies the stopping decision of period decideTime, if it
+   * is not negative, to the cash flows, using the rewards and the design matrix left by the
+   * previous pass. Then evaluates the rewards of period time and, if evaluateBasis, its design
+   * matrix and the regression sums.
+   */
+  private void sweep(ForkJoinPool pool, final int decideTime, final int time, final boolean evaluateBasis) {
+    final ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+    for (int c = 0; c < chunkCount; ++ c) {
+      final int chunk = c;
+      tasks.add(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          sweepChunk(chunk, decideTime, time, evaluateBasis);
+        }
+      });
+    }
+    pool.invoke(new RecursiveAction() {
+      @Override
+      protected void compute() {
+        invokeAll(tasks);
       }
-      double[][] xData = new double[samplePaths.size()][];
-      double[] yData = new double[samplePaths.size()];
-      for (int s = 0; s < samplePaths.size(); ++ s) {
-        SamplePath sp = samplePaths.get(s);
-        ArrayList<StateAction> states = sp.stateActions;
-        State state = states.get(t).getState();
-        xData[s] = basisSet.evaluate(state);
-        for (int tt = t + 1; tt < timePeriods; tt++) {
-          State state2 = states.get(tt).getState();
-          if (rf.value(state2, StoppingAction.STOP) > contValues.get(tt).value(state2)) {
-            yData[s] = rf.value(state2, StoppingAction.STOP);
-            break;
+    });
+  }
+
+  private void sweepChunk(int chunk, int decideTime, int time, boolean evaluateBasis) {
+    int start = chunk * kPathsPerChunk, n = Math.min(pathCount, start + kPathsPerChunk) - start;
+    double[] beta = decideTime < 0 ? null : coeffs[decideTime], design = designs[chunk];
+    if (decideTime >= 0) {
+      for (int s = 0; s < n; ++ s) {
+        double cont = 0.;
+        if (beta != null) {
+          for (int j = 0; j < beta.length; ++ j) {
+            cont += beta[j] * design[j * n + s];
+          }
+          if (inTheMoneyOnly) {
+            cont = Math.max(cont, 0.);
           }
         }
+        if (rewards[start + s] > cont) {
+          cashFlows[start + s] = rewards[start + s];
+        }
+      }
+    }
+    ArrayList<StoppingState> states = new ArrayList<StoppingState>(n);
+    for (int s = 0; s < n; ++ s) {
+      states.add(store.getState(time, start + s));
+    }
+    RewardFunction rf = model.getRewardFunction();
+    for (int s = 0; s < n; ++ s) {
+      rewards[start + s] = rf.value(states.get(s), StoppingAction.STOP);
+    }
+    if (evaluateBasis) {
+      if (design == null) {
+        design = designs[chunk] = new double[basisSet.size() * n];
       }
-      if (t == 0) {
-        double meanReward = 0.;
-        for (int i = 0; i < yData.length; ++ i) {
-          meanReward += yData[i];
+      basisSet.evaluate(states, design);
+      LeastSquaresAccumulator sums = partialSums[chunk] = new LeastSquaresAccumulator(basisSet.size());
+      for (int s = 0; s < n; ++ s) {
+        if (! inTheMoneyOnly || rewards[start + s] > 0.) {
+          sums.add(design, n, s, cashFlows[start + s]);
         }
-        meanReward = meanReward / ((double) yData.length);
-        contValues.set(0, new ConstantStateFunction(meanReward));
-      } else {
-        coeffs[t] = Regression.LinLeastSq(xData, yData);
-        contValues.set(t, new LinCombStateFunction(coeffs[t], basisSet));
       }
     }
+  }
 
-    return true;
+  /**
+   * Regresses the cash flows on the design matrix of the last pass, over the in the money paths
+   * only if so configured.
+   */
+  private double[] regress() {
+    LeastSquaresAccumulator sums = new LeastSquaresAccumulator(basisSet.size());
+    for (int c = 0; c < chunkCount; ++ c) {
+      sums.merge(partialSums[c]);
+    }
+    if (sums.getCount() == 0) {
+      return new double[basisSet.size()];
+    }
+    return sums.solve(ridge);
   }
 
   @Override
@@ -89,4 +203,22 @@ public class LongstaffSchwartzSolver implements Solver {
     QFunction qFunction = new TimeDepQFunction(contValues);
     return new QFunctionPolicy(model, qFunction, model.getRewardFunction(), 1.);
   }
+
+  /**
+   * Continuation value of a fit on the in the money paths. The fit says nothing about the other
+   * states, so it is floored at zero, which keeps the policy from stopping for no reward and does
+   * not change any decision where the reward is positive.
+   */
+  private static class InTheMoneyContFunction implements StateFunction {
+    private final StateFunction fit;
+
+    InTheMoneyContFunction(StateFunction fit) {
+      this.fit = fit;
+    }
+
+    @Override
+    public double value(State state) {
+      return Math.max(fit.value(state), 0.);
+    }
+  }
 }
@@ -0,0 +1,129 @@
+package com.nikhilpb.stopping;
+
+import com.nikhilpb.adp.State;
+import com.nikhilpb.adp.StateFunction;
+
+import java.util.ArrayList;
+
+/**
+ * Continuation or value function of the kernel solvers in random feature form,
+ * <p/>
+ * f(x) = b + w'phi(x) + v'phi(x + mu)
+ * <p/>
+ * The sums over the sampled states collapse into the weight vectors w and v when the function is
+ * built, so an evaluation costs O(r d) however many states there are. Safe for concurrent use.
+ */
+public class LowRankKernelFunction implements StateFunction {
+  private final RandomFourierFeatures features;
+  private final double[] weights, shiftedWeights, meanPhases;
+  private final double scale;
+  private double b;
+
+  /**
+   * @param weights        w, of length 2r
+   * @param shiftedWeights v, of length 2r, or null if zero
+   * @param meanPhases     phases of mu
+   */
+  public LowRankKernelFunction(RandomFourierFeatures features,
+                               double[] weights,
+                               double[] shiftedWeights,
+                               double[] meanPhases,
+                               double peak,
+                               double b) {
+    this.features = features;
+    this.weights = weights;
+    this.shiftedWeights = shiftedWeights;
+    this.meanPhases = meanPhases;
+    this.b = b;
+    scale = Math.sqrt(peak / features.getFeatureCount());
+  }
+
+  /**
+   * Low rank version of KernelContFunction: sum_i nextLambda_i E k(X, y_i) / gamma -
+   * sum_i curLambda_i E k(X, Y_i) / gamma + b, where X and Y_i are the successors of the state
+   * and of the states of the current period.
+   *
+   * @param damping feature damping under the increment covariance, of length r
+   */
+  public static LowRankKernelFunction continuation(RandomFourierFeatures features,
+                                                   ArrayList<StoppingState> curStates,
+                                                   ArrayList<StoppingState> nextStates,
+                                                   double[] curLambda,
+                                                   double[] nextLambda,
+                                                   double[] meanPhases,
+                                                   double[] damping,
+                                                   double peak,
+                                                   double gamma,
+                                                   double b) {
+    int r = features.getFeatureCount();
+    double[] shifted = weightedSum(features, nextStates, nextLambda, null, 1. / gamma);
+    double[] weights = weightedSum(features, curStates, curLambda, null, - 1. / gamma);
+    for (int k = 0; k < 2 * r; ++ k) {
+      shifted[k] *= damping[k % r];
+      weights[k] *= damping[k % r] * damping[k % r];
+    }
+    return new LowRankKernelFunction(features, weights, shifted, meanPhases, peak, b);
+  }
+
+  /**
+   * Low rank version of KernelStateFunction: sum_i curLambda_i k(x_i, x) / gamma -
+   * sum_i prevLambda_i E k(X_i, x) / gamma, where X_i are the successors of the states of the
+   * previous period.
+   */
+  public static LowRankKernelFunction value(RandomFourierFeatures features,
+                                            ArrayList<StoppingState> prevStates,
+                                            ArrayList<StoppingState> curStates,
+                                            double[] prevLambda,
+                                            double[] curLambda,
+                                            double[] meanPhases,
+                                            double[] damping,
+                                            double peak,
+                                            double gamma) {
+    int r = features.getFeatureCount();
+    double[] weights = weightedSum(features, curStates, curLambda, null, 1. / gamma);
+    double[] prev = weightedSum(features, prevStates, prevLambda, meanPhases, 1. / gamma);
+    for (int k = 0; k < 2 * r; ++ k) {
+      weights[k] -= damping[k % r] * prev[k];
+    }
+    return new LowRankKernelFunction(features, weights, null, meanPhases, peak, 0.);
+  }
+
+  private static double[] weightedSum(RandomFourierFeatures features,
+                                      ArrayList<StoppingState> states,
+                                      double[] lambda,
+                                      double[] shiftPhases,
+                                      double multiplier) {
+    int width = 2 * features.getFeatureCount();
+    double[] sum = new double[width], phi = new double[width];
+    for (int i = 0; i < states.size(); ++ i) {
+      if (lambda[i] == 0.) {
+        continue;
+      }
+      features.features(states.get(i).vector, shiftPhases, phi, 0);
+      for (int k = 0; k < width; ++ k) {
+        sum[k] += multiplier * lambda[i] * phi[k];
+      }
+    }
+    return sum;
+  }
+
+  @Override
+  public double value(State state) {
+    double[] x = ((StoppingState) state).vector;
+    int r = features.getFeatureCount();
+    double sum = 0.;
+    for (int j = 0; j < r; ++ j) {
+      double phase = features.phase(j, x);
+      sum += weights[j] * Math.cos(phase) + weights[r + j] * Math.sin(phase);
+      if (shiftedWeights != null) {
+        double shifted = phase + meanPhases[j];
+        sum += shiftedWeights[j] * Math.cos(shifted) + shiftedWeights[r + j] * Math.sin(shifted);
+      }
+    }
+    return b + scale * sum;
+  }
+
+  public void setB(double b) {
+    this.b = b;
+  }
+}
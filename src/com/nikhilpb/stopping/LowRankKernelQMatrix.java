@@ -0,0 +1,149 @@
+package com.nikhilpb.stopping;
+
+import com.nikhilpb.util.math.PSDMatrix;
+
+/**
+ * Kernel QP matrix in factored form from random Fourier features. With Phi_t the feature matrix
+ * of the states of period t, Phi_t^mu that of the states shifted by the mean increment and Lambda
+ * the feature damping under the increment covariance, the blocks are
+ * <p/>
+ * K_t = Phi_t Phi_t', D_t = Phi_t Lambda^2 Phi_t', E_t = Phi_t^mu Lambda Phi_{t+1}'
+ * <p/>
+ * so only O(N r) numbers are stored and a product with the matrix costs O(N r). The products use
+ * scratch space of the object, so multiply must not be called concurrently.
+ */
+public class LowRankKernelQMatrix extends KernelQuadraticForm {
+  private final int width;
+  private final double[][] phi, phiShifted;
+  private final double[] damping, dampingSq;
+  private final double[][] stateSums, contSums, contShiftedSums;
+  private final double[] p, q;
+
+  public LowRankKernelQMatrix(StoppingStateSampler sampler,
+                              int timePeriods,
+                              RandomFourierFeatures features,
+                              double[] mean,
+                              PSDMatrix sigma) {
+    super(sampler, timePeriods);
+    int r = features.getFeatureCount();
+    width = 2 * r;
+    double[] meanPhases = features.phases(mean), rDamping = features.damping(sigma);
+    damping = new double[width];
+    dampingSq = new double[width];
+    for (int k = 0; k < width; ++ k) {
+      damping[k] = rDamping[k % r];
+      dampingSq[k] = damping[k] * damping[k];
+    }
+    phi = new double[timePeriods][];
+    phiShifted = new double[timePeriods - 1][];
+    for (int t = 0; t < timePeriods; ++ t) {
+      phi[t] = new double[sizes[t] * width];
+      if (t < timePeriods - 1) {
+        phiShifted[t] = new double[sizes[t] * width];
+      }
+      for (int i = 0; i < sizes[t]; ++ i) {
+        features.features(vectors[t][i], null, phi[t], i * width);
+        if (t < timePeriods - 1) {
+          features.features(vectors[t][i], meanPhases, phiShifted[t], i * width);
+        }
+      }
+    }
+    stateSums = new double[timePeriods][width];
+    contSums = new double[timePeriods][width];
+    contShiftedSums = new double[timePeriods][width];
+    p = new double[width];
+    q = new double[width];
+  }
+
+  @Override
+  public double kernel(int t, int i, int j) {
+    return dot(phi[t], i, phi[t], j, null);
+  }
+
+  @Override
+  public double doubleExpectation(int t, int i, int j) {
+    return dot(phi[t], i, phi[t], j, dampingSq);
+  }
+
+  @Override
+  public double expectation(int t, int i, int j) {
+    return dot(phiShifted[t], i, phi[t + 1], j, damping);
+  }
+
+  private double dot(double[] a, int i, double[] b, int j, double[] weights) {
+    double sum = 0.;
+    int rowA = i * width, rowB = j * width;
+    for (int k = 0; k < width; ++ k) {
+      sum += (weights == null ? 1. : weights[k]) * a[rowA + k] * b[rowB + k];
+    }
+    return sum;
+  }
+
+  @Override
+  public long storedEntries() {
+    long count = 0;
+    for (int t = 0; t < timePeriods; ++ t) {
+      count += phi[t].length + (t < timePeriods - 1 ? phiShifted[t].length : 0);
+    }
+    return count;
+  }
+
+  /**
+   * With u_t the combined weights, F_t = Phi_t'u_t, H_t = Phi_t'x_{C,t} and G_t = Phi_t^mu'x_{C,t},
+   * the stopping rows of period t are Phi_t (F_t - Lambda G_{t-1}) and the continuation rows add
+   * Phi_t Lambda^2 H_t - Phi_t^mu Lambda F_{t+1}.
+   */
+  @Override
+  public void multiply(double[] x, double[] out) {
+    for (int t = 0; t < timePeriods; ++ t) {
+      int n = sizes[t], c = contOffsets[t];
+      double[] f = stateSums[t], h = contSums[t], g = contShiftedSums[t];
+      for (int k = 0; k < width; ++ k) {
+        f[k] = h[k] = g[k] = 0.;
+      }
+      for (int i = 0; i < n; ++ i) {
+        double u = combined(x, t, i), xc = c < 0 ? 0. : x[c + i];
+        int row = i * width;
+        for (int k = 0; k < width; ++ k) {
+          f[k] += u * phi[t][row + k];
+        }
+        if (c >= 0) {
+          for (int k = 0; k < width; ++ k) {
+            h[k] += xc * phi[t][row + k];
+            g[k] += xc * phiShifted[t][row + k];
+          }
+        }
+      }
+    }
+    for (int t = 0; t < timePeriods; ++ t) {
+      int n = sizes[t], s = stopOffsets[t], c = contOffsets[t];
+      for (int k = 0; k < width; ++ k) {
+        p[k] = stateSums[t][k] - (t > 0 ? damping[k] * contShiftedSums[t - 1][k] : 0.);
+      }
+      if (t > 0) {
+        for (int i = 0; i < n; ++ i) {
+          out[s + i] = dot(phi[t], i, p);
+        }
+      }
+      if (c >= 0) {
+        double[] next = stateSums[t + 1];
+        for (int k = 0; k < width; ++ k) {
+          p[k] += dampingSq[k] * contSums[t][k];
+          q[k] = damping[k] * next[k];
+        }
+        for (int i = 0; i < n; ++ i) {
+          out[c + i] = dot(phi[t], i, p) - dot(phiShifted[t], i, q);
+        }
+      }
+    }
+  }
+
+  private double dot(double[] a, int i, double[] v) {
+    double sum = 0.;
+    int row = i * width;
+    for (int k = 0; k < width; ++ k) {
+      sum += a[row + k] * v[k];
+    }
+    return sum;
+  }
+}
@@ -1,8 +1,13 @@
 package com.nikhilpb.stopping;
 
+import Jama.CholeskyDecomposition;
 import Jama.Matrix;
 import com.nikhilpb.util.math.PSDMatrix;
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Created with IntelliJ IDEA.
  * User: nikhilpb
@@ -11,35 +16,68 @@ import com.nikhilpb.util.math.PSDMatrix;
  * To change this template use File | Settings | File Templates.
  */
 public class MeanGaussianKernel {
-  private PSDMatrix sigma;
-  private double[][] sigmaHat;
-  private double rho, scale, peak;
-  private int size;
+  private static final int kCacheCapacity = 256;
+  // access ordered, guarded by itself
+  private static final LinkedHashMap<Key, Constants> cache = new LinkedHashMap<Key, Constants>(16, .75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, Constants> eldest) {
+      return size() > kCacheCapacity;
+    }
+  };
+  private final double[][] sigmaHat, transform;
+  private final double[] packedSigmaHat;
+  private final double scale;
+  private final int size;
 
   public MeanGaussianKernel(PSDMatrix sigma, double rho, double peak) {
-    this.rho = rho;
-    this.sigma = sigma;
-    this.peak = peak;
-    init();
-  }
-
-  private void init() {
-    Matrix sigmaMat = sigma.mat().copy();
-    size = sigmaMat.getColumnDimension();
-    Matrix scaledSigmaMat = sigmaMat.times(1. / rho);
-    scale = Matrix.identity(size, size)
-                    .plus(scaledSigmaMat).det();
-    scale = peak / Math.sqrt(scale);
-    Matrix sigmaInv = sigmaMat.inverse();
-    Matrix mat = sigmaInv.plus(Matrix.identity(size, size)
-                                       .times(1. / rho))
-                         .inverse();
-    Matrix mat2 = sigmaInv.copy()
-                          .times(mat)
-                          .times(sigmaInv)
-                          .times(- 1.)
-                          .plus(sigmaInv);
-    sigmaHat = mat2.getArray();
+    this(sigma, 1., rho, peak);
+  }
+
+  /**
+   * Kernel for the covariance multiple * sigma. The constants are looked up in an LRU cache of
+   * the last kCacheCapacity parameters, shared by all instances and threads, keyed by the entries
+   * of sigma, the multiple, rho and peak, and only computed on a miss.
+   */
+  public MeanGaussianKernel(PSDMatrix sigma, double multiple, double rho, double peak) {
+    Key key = new Key(sigma.mat().getArray(), multiple, rho, peak);
+    Constants constants;
+    synchronized (cache) {
+      constants = cache.get(key);
+    }
+    if (constants == null) {
+      constants = new Constants(sigma.mat(), multiple, rho, peak);
+      synchronized (cache) {
+        Constants existing = cache.get(key);
+        if (existing != null) {
+          constants = existing;
+        } else {
+          cache.put(key, constants);
+        }
+      }
+    }
+    sigmaHat = constants.sigmaHat;
+    transform = constants.transform;
+    packedSigmaHat = constants.packedSigmaHat;
+    scale = constants.scale;
+    size = sigmaHat.length;
+  }
+
+  /**
+   * Drops all the cached constants.
+   */
+  public static void clearCache() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  /**
+   * @return the number of cached constants
+   */
+  public static int cacheSize() {
+    synchronized (cache) {
+      return cache.size();
+    }
   }
 
   public double eval(double[] mu) {
@@ -51,4 +89,112 @@ public class MeanGaussianKernel {
     }
     return Math.exp(ip * - .5) * scale;
   }
+
+  /**
+   * Same as eval(x + shift - y), without scratch space. The quadratic form runs over the packed
+   * upper triangle of sigmaHat.
+   *
+   * @param shift added to x, or null for none
+   */
+  public double eval(double[] x, double[] y, double[] shift) {
+    double ip = 0.;
+    int ind = 0;
+    for (int i = 0; i < size; ++ i) {
+      double di = x[i] - y[i] + (shift == null ? 0. : shift[i]), row = packedSigmaHat[ind ++] * di;
+      for (int j = i + 1; j < size; ++ j) {
+        row += 2. * packedSigmaHat[ind ++] * (x[j] - y[j] + (shift == null ? 0. : shift[j]));
+      }
+      ip += di * row;
+    }
+    return Math.exp(ip * - .5) * scale;
+  }
+
+  /**
+   * @return the matrix of the quadratic form, (Sigma + rho I)^-1. Shared, must not be modified.
+   */
+  public double[][] getSigmaHat() {
+    return sigmaHat;
+  }
+
+  /**
+   * @return the transpose of the Cholesky factor L of sigmaHat, so that eval(mu) is
+   * scale exp(-||L' mu||^2 / 2). Shared, must not be modified.
+   */
+  public double[][] getTransform() {
+    return transform;
+  }
+
+  public double getScale() {
+    return scale;
+  }
+
+  private static final class Key {
+    private final double[][] sigma;
+    private final double multiple, rho, peak;
+    private final int hash;
+
+    Key(double[][] sigma, double multiple, double rho, double peak) {
+      this.sigma = new double[sigma.length][];
+      for (int i = 0; i < sigma.length; ++ i) {
+        this.sigma[i] = sigma[i].clone();
+      }
+      this.multiple = multiple;
+      this.rho = rho;
+      this.peak = peak;
+      hash = 31 * (31 * (31 * Arrays.deepHashCode(this.sigma) + Double.valueOf(multiple).hashCode())
+                           + Double.valueOf(rho).hashCode()) + Double.valueOf(peak).hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return Double.compare(multiple, key.multiple) == 0 && Double.compare(rho, key.rho) == 0
+                     && Double.compare(peak, key.peak) == 0 && Arrays.deepEquals(sigma, key.sigma);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /**
+   * sigmaHat = (multiple Sigma + rho I)^-1 and scale = peak / sqrt(det(I + multiple Sigma / rho)),
+   * both from multiple Sigma + rho I, which is positive definite even when Sigma is singular.
+   */
+  private static final class Constants {
+    private final double[][] sigmaHat, transform;
+    private final double[] packedSigmaHat;
+    private final double scale;
+
+    Constants(Matrix sigma, double multiple, double rho, double peak) {
+      int size = sigma.getColumnDimension();
+      Matrix shifted = sigma.times(multiple).plus(Matrix.identity(size, size).times(rho));
+      CholeskyDecomposition cholesky = new CholeskyDecomposition(shifted);
+      if (! cholesky.isSPD()) {
+        throw new IllegalArgumentException("covariance matrix is not PSD");
+      }
+      double[][] l = cholesky.getL().getArray();
+      double det = 1.;
+      for (int i = 0; i < size; ++ i) {
+        det *= l[i][i] * l[i][i] / rho;
+      }
+      scale = peak / Math.sqrt(det);
+      // the solve of the bundled Jama is off for some inputs, so invert through LU
+      Matrix inverse = shifted.inverse();
+      // symmetrize the round-off of the inverse before factoring
+      sigmaHat = inverse.plus(inverse.transpose()).times(.5).getArray();
+      transform = new CholeskyDecomposition(new Matrix(sigmaHat)).getL().transpose().getArray();
+      packedSigmaHat = new double[size * (size + 1) / 2];
+      int ind = 0;
+      for (int i = 0; i < size; ++ i) {
+        for (int j = i; j < size; ++ j) {
+          packedSigmaHat[ind ++] = sigmaHat[i][j];
+        }
+      }
+    }
+  }
 }
@@ -1,7 +1,9 @@
 package com.nikhilpb.stopping;
 
+import com.nikhilpb.adp.BatchStateFunction;
 import com.nikhilpb.adp.State;
-import com.nikhilpb.adp.StateFunction;
+
+import java.util.List;
 
 /**
  * Created with IntelliJ IDEA.
@@ -10,7 +12,7 @@ import com.nikhilpb.adp.StateFunction;
  * Time: 8:53 PM
  * To change this template use File | Settings | File Templates.
  */
-public class PolyStateFunction implements StateFunction {
+public class PolyStateFunction implements BatchStateFunction {
   private int degree;
   private int index;
 
@@ -22,7 +24,47 @@ public class PolyStateFunction implements StateFunction {
   @Override
   public double value(State state) {
     StoppingState stoppingState = (StoppingState) state;
-    return Math.pow(stoppingState.vector[index], (double) degree);
+    return power(stoppingState.vector[index]);
+  }
+
+  @Override
+  public void values(List<? extends State> states, double[] out, int offset) {
+    int n = states.size();
+    switch (degree) {
+      case 0:
+        for (int i = 0; i < n; ++ i) {
+          out[offset + i] = 1.;
+        }
+        break;
+      case 1:
+        for (int i = 0; i < n; ++ i) {
+          out[offset + i] = ((StoppingState) states.get(i)).vector[index];
+        }
+        break;
+      case 2:
+        for (int i = 0; i < n; ++ i) {
+          double x = ((StoppingState) states.get(i)).vector[index];
+          out[offset + i] = x * x;
+        }
+        break;
+      default:
+        for (int i = 0; i < n; ++ i) {
+          out[offset + i] = Math.pow(((StoppingState) states.get(i)).vector[index], (double) degree);
+        }
+    }
+  }
+
+  private double power(double x) {
+    switch (degree) {
+      case 0:
+        return 1.;
+      case 1:
+        return x;
+      case 2:
+        return x * x;
+      default:
+        return Math.pow(x, (double) degree);
+    }
   }
 
   @Override
@@ -0,0 +1,39 @@
+package com.nikhilpb.stopping;
+
+import com.nikhilpb.adp.State;
+import com.nikhilpb.adp.StateFunction;
+
+/**
+ * Sum over the assets of the drift adjusted prices exp(x_i - t (mu_i + sigma_ii / 2)). Under the
+ * Gaussian log-price increments of the stopping model this is a martingale, so its expectation at
+ * any bounded stopping time is its initial value, which makes it a control variate for payoffs
+ * that grow with the prices.
+ */
+public class PriceMartingaleFunction implements StateFunction {
+  private final double[] drift;
+  private final double expectation;
+
+  public PriceMartingaleFunction(StoppingModel model) {
+    double[] mean = model.getMeanArray();
+    double[][] covar = model.getCovarMatrix().mat().getArray();
+    drift = new double[mean.length];
+    for (int i = 0; i < drift.length; ++ i) {
+      drift[i] = mean[i] + .5 * covar[i][i];
+    }
+    expectation = value(model.getBaseState());
+  }
+
+  @Override
+  public double value(State state) {
+    StoppingState stoppingState = (StoppingState) state;
+    double value = 0.;
+    for (int i = 0; i < drift.length; ++ i) {
+      value += Math.exp(stoppingState.vector[i] - stoppingState.time * drift[i]);
+    }
+    return value;
+  }
+
+  public double getExpectation() {
+    return expectation;
+  }
+}
@@ -0,0 +1,107 @@
+package com.nikhilpb.stopping;
+
+import com.nikhilpb.util.math.Distributions;
+import com.nikhilpb.util.math.PSDMatrix;
+
+import java.util.Random;
+
+/**
+ * Random Fourier features of the Gaussian kernel k(x, y) = peak exp(-||x - y||^2 / 2 rho). With
+ * frequencies w_j drawn from N(0, I / rho), the feature vector
+ * <p/>
+ * phi(x) = sqrt(peak / r) (cos(w_1'x), ..., cos(w_r'x), sin(w_1'x), ..., sin(w_r'x))
+ * <p/>
+ * satisfies E phi(x)'phi(y) = k(x, y). The expectations of the features under a Gaussian shift
+ * are closed form: if Z is N(0, Sigma) then E phi_j(x + Z) = exp(-w_j'Sigma w_j / 2) phi_j(x), so
+ * the kernel expectations of GaussianKernelE and GaussianKernelDoubleE become diagonally damped
+ * inner products of features.
+ */
+public class RandomFourierFeatures {
+  private final int dimension, featureCount;
+  private final double[] frequencies;
+  private final double scale;
+
+  /**
+   * @param bandWidth rho, as in GaussianStateKernel
+   */
+  public RandomFourierFeatures(int dimension, double bandWidth, double peak, int featureCount, long seed) {
+    if (featureCount <= 0) {
+      throw new IllegalArgumentException("need a positive number of features");
+    }
+    this.dimension = dimension;
+    this.featureCount = featureCount;
+    scale = Math.sqrt(peak / featureCount);
+    frequencies = new double[featureCount * dimension];
+    Random random = Distributions.newRandom(seed);
+    double std = 1. / Math.sqrt(bandWidth);
+    for (int i = 0; i < frequencies.length; ++ i) {
+      frequencies[i] = std * random.nextGaussian();
+    }
+  }
+
+  /**
+   * @return r, the feature vectors have length 2r
+   */
+  public int getFeatureCount() {
+    return featureCount;
+  }
+
+  public int getDimension() {
+    return dimension;
+  }
+
+  /**
+   * @return w_j'x
+   */
+  public double phase(int j, double[] x) {
+    double sum = 0.;
+    int offset = j * dimension;
+    for (int k = 0; k < dimension; ++ k) {
+      sum += frequencies[offset + k] * x[k];
+    }
+    return sum;
+  }
+
+  /**
+   * @return w_j'x for all j
+   */
+  public double[] phases(double[] x) {
+    double[] out = new double[featureCount];
+    for (int j = 0; j < featureCount; ++ j) {
+      out[j] = phase(j, x);
+    }
+    return out;
+  }
+
+  /**
+   * Writes phi(x + shift) into out at the offset, where shiftPhases are the phases of the shift
+   * or null for no shift.
+   */
+  public void features(double[] x, double[] shiftPhases, double[] out, int offset) {
+    for (int j = 0; j < featureCount; ++ j) {
+      double phase = phase(j, x) + (shiftPhases == null ? 0. : shiftPhases[j]);
+      out[offset + j] = scale * Math.cos(phase);
+      out[offset + featureCount + j] = scale * Math.sin(phase);
+    }
+  }
+
+  /**
+   * @return exp(-w_j'Sigma w_j / 2) for all j, the damping of the features under an N(0, Sigma)
+   * shift
+   */
+  public double[] damping(PSDMatrix sigma) {
+    double[][] sigmaArray = sigma.mat().getArray();
+    double[] out = new double[featureCount];
+    for (int j = 0; j < featureCount; ++ j) {
+      int offset = j * dimension;
+      double quad = 0.;
+      for (int k = 0; k < dimension; ++ k) {
+        for (int l = 0; l < dimension; ++ l) {
+          quad += frequencies[offset + k] * sigmaArray[k][l] * frequencies[offset + l];
+        }
+      }
+      out[j] = Math.exp(- .5 * quad);
+    }
+    return out;
+  }
+}
@@ -3,7 +3,11 @@ package com.nikhilpb.stopping;
 import com.nikhilpb.adp.*;
 import com.nikhilpb.util.Experiment;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Created with IntelliJ IDEA.
@@ -11,6 +15,15 @@ import java.util.ArrayList;
  * Date: 4/23/14
  * Time: 11:34 AM
  * To change this template use File | Settings | File Templates.
+ * <p/>
+ * The sweep command solves the kernel stopping QP with the JAVA backend of KernelSolverCplex over
+ * a grid of bandwidths, kappas and gammas. The states are sampled once and their pairwise
+ * distances computed once, from which the Q matrix of each bandwidth is built. The bandwidths are
+ * solved in parallel, and for each one the kappas and gammas are visited in a serpentine order so
+ * that every QP starts from the solution of a neighbouring grid point. Every policy is evaluated
+ * on the same evaluation seed and all the grid points go into one csv table. For a 1-d model, the
+ * continuation values of every grid point on a grid of prices can go into a second table, in the
+ * rows of the plot command prefixed by the grid point.
  */
 public class StoppingExperiment extends Experiment {
   private StoppingModel model;
@@ -21,6 +34,7 @@ public class StoppingExperiment extends Experiment {
   private Policy policy;
 
   private static Experiment instance = null;
+  private static String name = "stopping";
 
   public static Experiment getInstance() {
     if (instance == null) {
@@ -29,5 +43,179 @@ public class StoppingExperiment extends Experiment {
     return instance;
   }
 
+  public static void register() {
+    registerExperiment(name, getInstance());
+  }
+
+  private StoppingExperiment() {
+    CommandProcessor modelProcessor = new CommandProcessor() {
+      @Override
+      public boolean processCommand(Properties props) throws Exception {
+        return modelCommand(props);
+      }
+    };
+    registerCommand("model", modelProcessor);
+
+    CommandProcessor sweepProcessor = new CommandProcessor() {
+      @Override
+      public boolean processCommand(Properties props) throws Exception {
+        return sweepCommand(props);
+      }
+    };
+    registerCommand("sweep", sweepProcessor);
+  }
+
+  private boolean modelCommand(Properties props) {
+    model = StoppingMain.createModel(props);
+    rewardFunction = model.getRewardFunction();
+    return true;
+  }
+
+  private boolean sweepCommand(Properties props) throws Exception {
+    if (model == null) {
+      throw new RuntimeException("model must be initialized");
+    }
+    int sampleCount = Integer.parseInt(getPropertyOrDie(props, "sample_count"));
+    long seed = Long.parseLong(getPropertyOrDie(props, "seed"));
+    final double peak = Double.parseDouble(getPropertyOrDie(props, "peak"));
+    final double[] bandWidths = parseList(getPropertyOrDie(props, "bandwidths")),
+            kappas = parseList(getPropertyOrDie(props, "kappas")),
+            gammas = parseList(getPropertyOrDie(props, "gammas"));
+    final int evalCount = Integer.parseInt(getPropertyOrDie(props, "eval_count"));
+    final long evalSeed = Long.parseLong(getPropertyOrDie(props, "eval_seed"));
+    int threadCount = Integer.parseInt(props.getProperty("threads", "1"));
+    String fileName = getPropertyOrDie(props, "filename");
+    String curvesFileName = props.getProperty("curves_filename");
+    final double[] prices = curvesFileName == null ? null : new double[]{
+            Double.parseDouble(getPropertyOrDie(props, "low-price")),
+            Double.parseDouble(getPropertyOrDie(props, "high-price")),
+            Double.parseDouble(getPropertyOrDie(props, "delta"))};
+
+    TrajectoryCache pathCache = null;
+    if (props.containsKey("path_cache")) {
+      pathCache = new TrajectoryCache(props.getProperty("path_cache"));
+    }
+    final StoppingStateSampler sampler = new StoppingStateSampler(model, pathCache);
+    sampler.sample(sampleCount, seed);
+    final KernelDistances distances = new KernelDistances(sampler, model.getTimePeriods(), model.getMeanArray(),
+                                                          model.getCovarMatrix(), threadCount);
+    System.out.println("stored entries of the distances: " + distances.storedEntries());
+    final String[][][] rows = new String[bandWidths.length][][];
+    final String[][][][] curves = new String[bandWidths.length][kappas.length][gammas.length][];
+    final ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+    for (int b = 0; b < bandWidths.length; ++ b) {
+      final int index = b;
+      tasks.add(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          try {
+            rows[index] = sweepBandWidth(sampler, distances, bandWidths[index], peak, kappas, gammas,
+                                         evalCount, evalSeed, prices, curves[index]);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+    }
+    ForkJoinPool pool = new ForkJoinPool(threadCount);
+    try {
+      pool.invoke(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+    } finally {
+      pool.shutdown();
+    }
+    PrintWriter writer = new PrintWriter("results/" + fileName, "UTF-8");
+    writer.println("bandwidth,kappa,gamma,solved,objective,iterations,solve_millis,value,std_err");
+    for (String[][] bandWidthRows : rows) {
+      for (String[] kappaRows : bandWidthRows) {
+        for (String row : kappaRows) {
+          writer.println(row);
+        }
+      }
+    }
+    writer.close();
+    System.out.println("wrote " + bandWidths.length * kappas.length * gammas.length + " grid points to results/"
+                               + fileName);
+    if (curvesFileName != null) {
+      writer = new PrintWriter("results/" + curvesFileName, "UTF-8");
+      writer.println("bandwidth,kappa,gamma,period,price,continuation_value");
+      for (int b = 0; b < bandWidths.length; ++ b) {
+        for (int k = 0; k < kappas.length; ++ k) {
+          for (int g = 0; g < gammas.length; ++ g) {
+            for (String row : curves[b][k][g]) {
+              writer.println(bandWidths[b] + "," + kappas[k] + "," + gammas[g] + "," + row);
+            }
+          }
+        }
+      }
+      writer.close();
+      System.out.println("wrote the continuation values to results/" + curvesFileName);
+    }
+    return true;
+  }
 
+  /**
+   * Solves all the kappas and gammas of one bandwidth on one warm-started solver.
+   *
+   * @param prices low price, high price and price step of the continuation value curves, or null
+   * @param curves filled with the curve rows of each kappa and gamma, empty if not solved
+   * @return the table rows, indexed by kappa and gamma
+   */
+  private String[][] sweepBandWidth(StoppingStateSampler sampler,
+                                    KernelDistances distances,
+                                    double bandWidth,
+                                    double peak,
+                                    double[] kappas,
+                                    double[] gammas,
+                                    int evalCount,
+                                    long evalSeed,
+                                    double[] prices,
+                                    String[][][] curves) throws Exception {
+    int timePeriods = model.getTimePeriods();
+    KernelQMatrix qMatrix = new KernelQMatrix(sampler, timePeriods, distances, bandWidth, peak, 1);
+    KernelSolverCplex kernelSolver = new KernelSolverCplex(model, kappas[0], gammas[0], bandWidth, peak, sampler,
+                                                           qMatrix);
+    StoppingModel evalModel = (StoppingModel) model.copy();
+    String[][] rows = new String[kappas.length][gammas.length];
+    for (int k = 0; k < kappas.length; ++ k) {
+      kernelSolver.setKappa(kappas[k]);
+      for (int step = 0; step < gammas.length; ++ step) {
+        int g = k % 2 == 0 ? step : gammas.length - 1 - step;
+        kernelSolver.setGamma(gammas[g]);
+        long startTime = System.currentTimeMillis();
+        boolean solved = kernelSolver.solve();
+        long millis = System.currentTimeMillis() - startTime;
+        double value = Double.NaN, stdErr = Double.NaN;
+        curves[k][g] = new String[0];
+        if (solved) {
+          MonteCarloEval.MonteCarloResults results = new MonteCarloEval(evalModel, kernelSolver.getPolicy(), evalSeed)
+                                                             .eval(evalCount, timePeriods);
+          value = results.getMean();
+          stdErr = results.getStdErr();
+          if (prices != null) {
+            QFunctionPolicy kernelPolicy = (QFunctionPolicy) kernelSolver.getPolicy();
+            TimeDepQFunction qFunction = (TimeDepQFunction) kernelPolicy.getqFunction();
+            curves[k][g] = qFunction.continuationCurves(model, prices[0], prices[1], prices[2]).toArray(curves[k][g]);
+          }
+        }
+        rows[k][g] = bandWidth + "," + kappas[k] + "," + gammas[g] + "," + solved + ","
+                             + kernelSolver.getQPObjective() + "," + kernelSolver.getQPIterationCount() + ","
+                             + millis + "," + value + "," + stdErr;
+      }
+    }
+    return rows;
+  }
+
+  private static double[] parseList(String list) {
+    String[] parts = list.split(",");
+    double[] values = new double[parts.length];
+    for (int i = 0; i < parts.length; ++ i) {
+      values[i] = Double.parseDouble(parts[i].trim());
+    }
+    return values;
+  }
 }
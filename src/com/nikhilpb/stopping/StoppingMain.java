@@ -58,6 +58,14 @@ public class StoppingMain extends XmlParser {
     };
     registerCommand("eval", evalProcessor);
 
+    CommandProcessor dualProcessor = new CommandProcessor() {
+      @Override
+      public boolean processCommand(Properties props) throws Exception {
+        return dualCommand(props);
+      }
+    };
+    registerCommand("dual", dualProcessor);
+
     CommandProcessor plotProcessor = new CommandProcessor() {
       @Override
       public boolean processCommand(Properties props) throws Exception {
@@ -70,6 +78,15 @@ public class StoppingMain extends XmlParser {
   }
 
   public static boolean modelCommand(Properties props) {
+    model = createModel(props);
+    rewardFunction = model.getRewardFunction();
+    return true;
+  }
+
+  /**
+   * Builds the model described by the properties of a model command.
+   */
+  public static StoppingModel createModel(Properties props) {
     double S = Math.log(Double.parseDouble(getPropertyOrDie(props, "S")));
     double delta = Double.parseDouble(getPropertyOrDie(props, "delta"));
     double sigma = Double.parseDouble(getPropertyOrDie(props, "sigma"));
@@ -93,6 +110,7 @@ public class StoppingMain extends XmlParser {
     Matrix mu = new Matrix(muArray);
     PSDMatrix covar = new PSDMatrix(sigmaArray);
     String rewardType = getPropertyOrDie(props, "reward_type");
+    RewardFunction rewardFunction;
     if (rewardType.equals("max-call")) {
       rewardFunction = new MaxCallReward(K, r);
     } else if (rewardType.equals("max-put")) {
@@ -103,8 +121,7 @@ public class StoppingMain extends XmlParser {
       throw new RuntimeException("unkown reward function");
     }
     long seed = Long.parseLong(getPropertyOrDie(props, "seed"));
-    model = new StoppingModel(mu, covar, initValue, timPeriods, rewardFunction, seed);
-    return true;
+    return new StoppingModel(mu, covar, initValue, timPeriods, rewardFunction, seed);
   }
 
   public static boolean basisCommand(Properties props) {
@@ -133,10 +150,20 @@ public class StoppingMain extends XmlParser {
       throw new RuntimeException("model must be initialized");
     }
     String solverType = getPropertyOrDie(props, "type");
+    TrajectoryCache pathCache = null;
+    if (props.containsKey("path_cache")) {
+      pathCache = new TrajectoryCache(props.getProperty("path_cache"));
+    }
     if (solverType.equals("ls")) {
       int sampleCount = Integer.parseInt(getPropertyOrDie(props, "sample_count"));
       long seed = Long.parseLong(getPropertyOrDie(props, "seed"));
-      solver = new LongstaffSchwartzSolver(model, basisSet, seed, sampleCount);
+      LongstaffSchwartzSolver lsSolver = new LongstaffSchwartzSolver(model, basisSet, seed, sampleCount, pathCache);
+      lsSolver.setInTheMoneyOnly(Boolean.parseBoolean(props.getProperty("itm", "false")));
+      lsSolver.setRidge(Double.parseDouble(props.getProperty("ridge", "0")));
+      if (props.containsKey("threads")) {
+        lsSolver.setThreadCount(Integer.parseInt(props.getProperty("threads")));
+      }
+      solver = lsSolver;
     } else if (solverType.equals("kernel")) {
       int sampleCount = Integer.parseInt(getPropertyOrDie(props, "sample_count"));
       long seed = Long.parseLong(getPropertyOrDie(props, "seed"));
@@ -144,8 +171,23 @@ public class StoppingMain extends XmlParser {
       double kappa = Double.parseDouble(getPropertyOrDie(props, "kappa"));
       double bandwidth = Double.parseDouble(getPropertyOrDie(props, "bandwidth"));
       double peak = getDoublePropertyOrDie(props, "peak");
+      double kernelTol = Double.parseDouble(props.getProperty("kernel_tol", "0"));
       try {
-        solver = new KernelSolverCplex3(model, kappa, gamma, bandwidth, peak, sampleCount, seed);
+        if (props.getProperty("backend", "cplex").equals("java")) {
+          System.err.println("warning: backend=java solves the formulation of KernelSolverCplex, "
+                                     + "not the KernelSolverCplex3 one of the cplex backend");
+          int featureCount = Integer.parseInt(props.getProperty("features", "0"));
+          KernelSolverCplex kernelSolver = new KernelSolverCplex(model, kappa, gamma, bandwidth, peak, sampleCount,
+                                                                 seed, KernelSolverCplex.Backend.JAVA, featureCount,
+                                                                 pathCache);
+          kernelSolver.setTruncationTolerance(kernelTol);
+          solver = kernelSolver;
+        } else {
+          KernelSolverCplex3 kernelSolver = new KernelSolverCplex3(model, kappa, gamma, bandwidth, peak, sampleCount,
+                                                                   seed, pathCache);
+          kernelSolver.setTruncationTolerance(kernelTol);
+          solver = kernelSolver;
+        }
       } catch (Exception e) {
         e.printStackTrace();
       }
@@ -169,12 +211,80 @@ public class StoppingMain extends XmlParser {
     int sampleCount = Integer.parseInt(getPropertyOrDie(props, "sample_count"));
     long seed = Long.parseLong(getPropertyOrDie(props, "seed"));
     System.out.println("sampling " + sampleCount + " sample paths");
+    int threadCount = Integer.parseInt(props.getProperty("threads", "1"));
+    QFunctionPolicy cachedPolicy = null;
+    if (props.containsKey("cache_resolution")) {
+      if (!(policy instanceof QFunctionPolicy)) {
+        throw new RuntimeException("policy must be a qfunction type");
+      }
+      cachedPolicy = (QFunctionPolicy) policy;
+      double resolution = Double.parseDouble(props.getProperty("cache_resolution"));
+      int cacheSize = Integer.parseInt(props.getProperty("cache_size", "100000"));
+      cachedPolicy.enableCache(new StoppingStateQuantizer(resolution), cacheSize);
+    }
     MonteCarloEval sampler = new MonteCarloEval(model, policy, seed);
-    MonteCarloEval.MonteCarloResults mcEval = sampler.eval(sampleCount, model.getTimePeriods());
+    String varianceReduction = props.getProperty("variance_reduction");
+    if (varianceReduction != null) {
+      MonteCarloEval.VarianceReducedResults vrEval;
+      if (varianceReduction.equals("antithetic")) {
+        vrEval = sampler.evalAntithetic(sampleCount / 2, model.getTimePeriods());
+      } else if (varianceReduction.equals("control")) {
+        PriceMartingaleFunction control = new PriceMartingaleFunction(model);
+        vrEval = sampler.evalControlVariate(sampleCount, model.getTimePeriods(), control, control.getExpectation());
+      } else {
+        throw new RuntimeException("unknown variance reduction: " + varianceReduction);
+      }
+      System.out.println(vrEval.toString());
+      printCacheStats(cachedPolicy);
+      return true;
+    }
+    MonteCarloEval.MonteCarloResults mcEval;
+    if (props.containsKey("abs_tol") || props.containsKey("rel_tol") || props.containsKey("max_millis")) {
+      MonteCarloEval.ToleranceConfig config = new MonteCarloEval.ToleranceConfig();
+      config.absTol = Double.parseDouble(props.getProperty("abs_tol", "0"));
+      config.relTol = Double.parseDouble(props.getProperty("rel_tol", "0"));
+      config.maxMillis = Long.parseLong(props.getProperty("max_millis", Long.toString(Long.MAX_VALUE)));
+      config.batchSize = Integer.parseInt(props.getProperty("batch_size", "1000"));
+      config.maxPaths = sampleCount;
+      config.threadCount = threadCount;
+      mcEval = sampler.evalToTolerance(model.getTimePeriods(), config);
+      System.out.println("used " + mcEval.getSampleCount() + " sample paths");
+    } else if (threadCount > 1) {
+      mcEval = sampler.evalParallel(sampleCount, model.getTimePeriods(), threadCount);
+    } else {
+      mcEval = sampler.eval(sampleCount, model.getTimePeriods());
+    }
     System.out.println(mcEval.toString());
+    printCacheStats(cachedPolicy);
     return true;
   }
 
+  protected static boolean dualCommand(Properties props) {
+    if (model == null || policy == null) {
+      throw new RuntimeException("model and policy must be initialized");
+    }
+    if (!(policy instanceof QFunctionPolicy)
+            || !(((QFunctionPolicy) policy).getqFunction() instanceof TimeDepQFunction)) {
+      throw new RuntimeException("policy must be a qfunction type");
+    }
+    int outerCount = Integer.parseInt(getPropertyOrDie(props, "outer_count"));
+    int innerCount = Integer.parseInt(getPropertyOrDie(props, "inner_count"));
+    long seed = Long.parseLong(getPropertyOrDie(props, "seed"));
+    int threadCount = Integer.parseInt(props.getProperty("threads", "1"));
+    TimeDepQFunction qFunction = (TimeDepQFunction) ((QFunctionPolicy) policy).getqFunction();
+    DualUpperBound dual = new DualUpperBound(model, qFunction.getContValues());
+    System.out.println("sampling " + outerCount + " outer paths with " + innerCount + " inner paths each");
+    System.out.println(dual.estimate(outerCount, innerCount, seed, threadCount).toString());
+    return true;
+  }
+
+  private static void printCacheStats(QFunctionPolicy cachedPolicy) {
+    if (cachedPolicy != null) {
+      System.out.println("policy cache hits: " + cachedPolicy.getCacheHits()
+                                 + ", misses: " + cachedPolicy.getCacheMisses());
+    }
+  }
+
   protected static boolean plotCommand(Properties props) {
     if (model == null || policy == null) {
       throw new RuntimeException("model and policy must be initialized");
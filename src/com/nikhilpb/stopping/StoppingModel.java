@@ -48,6 +48,27 @@ public class StoppingModel extends MarkovDecisionProcess {
     gaussianVectorGen.resetSeed(seed);
   }
 
+  @Override
+  public void reset(long seed, boolean antithetic) {
+    gaussianVectorGen.resetSeed(seed, antithetic);
+  }
+
+  public MarkovDecisionProcess copy() {
+    return new StoppingModel(meanMatrix, covarMatrix, initialValue, timePeriods, rewardFunction, 0L);
+  }
+
+  /**
+   * Draws the next increment of the state vector into out, from the same stream that the
+   * transitions returned by getDistribution use.
+   */
+  public void nextIncrement(double[] out) {
+    gaussianVectorGen.nextValue(out);
+  }
+
+  public double[] getInitialValue() {
+    return initialValue;
+  }
+
   public State getBaseState() {
     return (State) new StoppingState(initialValue, 0);
   }
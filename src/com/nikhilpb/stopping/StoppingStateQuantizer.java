@@ -0,0 +1,65 @@
+package com.nikhilpb.stopping;
+
+import com.nikhilpb.adp.State;
+import com.nikhilpb.adp.StateQuantizer;
+
+import java.util.Arrays;
+
+/**
+ * Quantizes the vector of a stopping state to a grid of the given resolution, separately for
+ * every time period.
+ */
+public class StoppingStateQuantizer implements StateQuantizer {
+  private final double resolution;
+
+  public StoppingStateQuantizer(double resolution) {
+    if (resolution <= 0.) {
+      throw new IllegalArgumentException("resolution must be positive");
+    }
+    this.resolution = resolution;
+  }
+
+  @Override
+  public Object key(State state) {
+    StoppingState stoppingState = (StoppingState) state;
+    long[] cells = new long[stoppingState.vector.length];
+    for (int i = 0; i < cells.length; ++ i) {
+      cells[i] = (long) Math.floor(stoppingState.vector[i] / resolution);
+    }
+    return new Key(stoppingState.time, cells);
+  }
+
+  @Override
+  public State center(State state) {
+    StoppingState stoppingState = (StoppingState) state;
+    double[] vector = new double[stoppingState.vector.length];
+    for (int i = 0; i < vector.length; ++ i) {
+      vector[i] = (Math.floor(stoppingState.vector[i] / resolution) + .5) * resolution;
+    }
+    return new StoppingState(vector, stoppingState.time);
+  }
+
+  private static class Key {
+    private final int time;
+    private final long[] cells;
+
+    Key(int time, long[] cells) {
+      this.time = time;
+      this.cells = cells;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return time == other.time && Arrays.equals(cells, other.cells);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * time + Arrays.hashCode(cells);
+    }
+  }
+}
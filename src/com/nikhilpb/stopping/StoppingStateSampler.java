@@ -1,7 +1,5 @@
 package com.nikhilpb.stopping;
 
-import com.nikhilpb.adp.*;
-
 import java.util.ArrayList;
 
 /**
@@ -13,39 +11,55 @@ import java.util.ArrayList;
  */
 public class StoppingStateSampler {
   private StoppingModel model;
-  private Policy policy;
-  private ArrayList<SamplePath> samplePaths;
+  private TrajectoryStore store;
   private ArrayList<ArrayList<StoppingState>> states;
+  private TrajectoryCache pathCache;
   private int timePeriods;
 
   public StoppingStateSampler(StoppingModel model) {
+    this(model, null);
+  }
+
+  /**
+   * @param pathCache cache of the sampled paths, or null to always simulate them
+   */
+  public StoppingStateSampler(StoppingModel model, TrajectoryCache pathCache) {
     this.model = model;
-    policy = new Policy() {
-      @Override
-      public Action getAction(State state) {
-        return StoppingAction.CONTINUE;
-      }
-    };
+    this.pathCache = pathCache;
     timePeriods = model.getTimePeriods();
   }
 
-  public void sample(int sampleCount, long seed) {
-    MonteCarloEval sampler = new MonteCarloEval(model, policy, seed);
-    samplePaths = sampler.getSamplePaths(sampleCount, timePeriods);
-    System.out.println(samplePaths.get(0).toString());
+  public synchronized void sample(int sampleCount, long seed) {
+    store = TrajectoryStore.load(model, sampleCount, seed, pathCache);
     states = new ArrayList<ArrayList<StoppingState>>();
     for (int t = 0; t < timePeriods; ++ t) {
-      states.add(new ArrayList<StoppingState>());
+      states.add(null);
     }
-    states.get(0).add((StoppingState) model.getBaseState());
-    for (SamplePath sp : samplePaths) {
-      for (int t = 1; t < timePeriods; ++ t) {
-        states.get(t).add((StoppingState) sp.stateActions.get(t).getState());
+  }
+
+  /**
+   * The states of a time period are created on first use. Safe to call from several threads, e.g.
+   * by the solvers of a sweep that share the sampler.
+   *
+   * @return the base state at time 0, and the sampled states of all the paths otherwise
+   */
+  public synchronized ArrayList<StoppingState> getStates(int time) {
+    if (states.get(time) == null) {
+      if (time == 0) {
+        ArrayList<StoppingState> baseStates = new ArrayList<StoppingState>();
+        baseStates.add((StoppingState) model.getBaseState());
+        states.set(0, baseStates);
+      } else {
+        states.set(time, store.getStates(time));
       }
     }
+    return states.get(time);
   }
 
-  public ArrayList<StoppingState> getStates(int time) {
-    return states.get(time);
+  /**
+   * @return the sampled paths, for reading the states without creating state objects
+   */
+  public synchronized TrajectoryStore getStore() {
+    return store;
   }
 }
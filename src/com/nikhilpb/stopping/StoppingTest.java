@@ -2,9 +2,13 @@ package com.nikhilpb.stopping;
 
 import Jama.Matrix;
 import com.nikhilpb.adp.*;
+import com.nikhilpb.util.math.Distributions;
 import com.nikhilpb.util.math.PSDMatrix;
+import com.nikhilpb.util.math.Regression;
 import org.junit.Test;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.util.ArrayList;
 
 /**
@@ -77,9 +81,673 @@ public class StoppingTest {
     PSDMatrix sigmaHalf = PSDMatrix.times(sigma, 0.5);
     GaussianKernelDoubleE gaussianKernelDoubleE = new GaussianKernelDoubleE(sigmaHalf, bw, 1.);
     assert Math.abs(gaussianKernelDoubleE.eval(xState, yState) - 0.569607) < kTol;
+    assert new MeanGaussianKernel(sigma, bw, 1.).getSigmaHat() == mgk.getSigmaHat();
+    assert Math.abs(mgk.eval(yVec, xVec, null) - 0.569607) < kTol;
+    assert Math.abs(gaussianKernelE.eval(xVec, yVec) - 0.569607) < kTol;
+    // a long sweep of bandwidths keeps a bounded number of constants
+    for (int i = 0; i < 1000; ++ i) {
+      new MeanGaussianKernel(sigma, 1. + .001 * i, 1.);
+    }
+    assert MeanGaussianKernel.cacheSize() <= 256;
+    assert new MeanGaussianKernel(sigma, 1. + .999, 1.).getSigmaHat()
+            == new MeanGaussianKernel(sigma, 1. + .999, 1.).getSigmaHat();
+  }
+
+  @Test
+  public void parallelEvalTest() throws Exception {
+    Policy policy = new Policy() {
+      @Override
+      public Action getAction(State state) {
+        StoppingState stoppingState = (StoppingState) state;
+        if (stoppingState.vector[0] + stoppingState.vector[1] >= 3.) {
+          return StoppingAction.STOP;
+        }
+        return StoppingAction.CONTINUE;
+      }
+    };
+    StoppingModel callModel = new StoppingModel(new Matrix(kMeanArray), new PSDMatrix(kCovArray), kInitValue,
+                                                kTimePeriods, new MaxCallReward(1., 0.), kSeed);
+    MonteCarloEval.MonteCarloResults serial = new MonteCarloEval(callModel, policy, kSeed).eval(500, kTimePeriods);
+    assert serial.getMean() > 0.;
+    for (int threads = 1; threads <= 4; ++ threads) {
+      MonteCarloEval.MonteCarloResults parallel =
+              new MonteCarloEval(callModel, policy, kSeed).evalParallel(500, kTimePeriods, threads);
+      assert serial.getMean() == parallel.getMean();
+      assert serial.getStd() == parallel.getStd();
+      assert serial.getSampleCount() == parallel.getSampleCount();
+    }
+    ArrayList<SamplePath> paths = new MonteCarloEval(callModel, policy, kSeed).getSamplePaths(500, kTimePeriods);
+    double sum = 0., sumSq = 0.;
+    for (SamplePath path : paths) {
+      sum += path.reward;
+      sumSq += path.reward * path.reward;
+    }
+    double mean = sum / paths.size();
+    assert serial.getSampleCount() == 500;
+    assert approxEqual(serial.getMean(), mean);
+    assert approxEqual(serial.getStd(), Math.sqrt(sumSq / paths.size() - mean * mean));
+  }
+
+  @Test
+  public void toleranceEvalTest() throws Exception {
+    StoppingModel callModel = new StoppingModel(new Matrix(kMeanArray), new PSDMatrix(kCovArray), kInitValue,
+                                                kTimePeriods, new MaxCallReward(1., 0.), kSeed);
+    Policy policy = new Policy() {
+      @Override
+      public Action getAction(State state) {
+        StoppingState stoppingState = (StoppingState) state;
+        if (stoppingState.vector[0] + stoppingState.vector[1] >= 3.) {
+          return StoppingAction.STOP;
+        }
+        return StoppingAction.CONTINUE;
+      }
+    };
+    MonteCarloEval.ToleranceConfig config = new MonteCarloEval.ToleranceConfig();
+    config.batchSize = 100;
+    config.maxPaths = 5000;
+    config.absTol = 1e-2;
+    MonteCarloEval.MonteCarloResults results = new MonteCarloEval(callModel, policy, kSeed)
+                                                       .evalToTolerance(kTimePeriods, config);
+    assert results.getStd() > 0.;
+    assert results.getSampleCount() % config.batchSize == 0;
+    assert results.getSampleCount() == config.maxPaths || results.getStdErr() <= config.absTol;
+    config.absTol = 1e-12;
+    results = new MonteCarloEval(callModel, policy, kSeed).evalToTolerance(kTimePeriods, config);
+    assert results.getSampleCount() == config.maxPaths;
+  }
+
+  @Test
+  public void varianceReductionTest() throws Exception {
+    StoppingModel callModel = new StoppingModel(new Matrix(kMeanArray), new PSDMatrix(kCovArray), kInitValue,
+                                                kTimePeriods, new MaxCallReward(1., 0.), kSeed);
+    Policy policy = new Policy() {
+      @Override
+      public Action getAction(State state) {
+        StoppingState stoppingState = (StoppingState) state;
+        if (stoppingState.vector[0] + stoppingState.vector[1] >= 3.) {
+          return StoppingAction.STOP;
+        }
+        return StoppingAction.CONTINUE;
+      }
+    };
+    Policy stopLater = new Policy() {
+      @Override
+      public Action getAction(State state) {
+        StoppingState stoppingState = (StoppingState) state;
+        if (stoppingState.vector[0] + stoppingState.vector[1] >= 4.) {
+          return StoppingAction.STOP;
+        }
+        return StoppingAction.CONTINUE;
+      }
+    };
+    MonteCarloEval.VarianceReducedResults antithetic =
+            new MonteCarloEval(callModel, policy, kSeed).evalAntithetic(1000, kTimePeriods);
+    assert antithetic.getPathsCount() == 2000;
+    assert antithetic.getVarianceReduction() > 1.;
+    PriceMartingaleFunction control = new PriceMartingaleFunction(callModel);
+    assert approxEqual(control.getExpectation(), 2.);
+    MonteCarloEval.VarianceReducedResults controlled = new MonteCarloEval(callModel, policy, kSeed)
+            .evalControlVariate(2000, kTimePeriods, control, control.getExpectation());
+    assert controlled.getVarianceReduction() > 1.;
+    MonteCarloEval.VarianceReducedResults crn =
+            new MonteCarloEval(callModel, policy, kSeed).compare(stopLater, 1000, kTimePeriods);
+    assert crn.getVarianceReduction() > 1.;
+  }
+
+  @Test
+  public void commonRandomNumbersTest() throws Exception {
+    StoppingModel callModel = new StoppingModel(new Matrix(kMeanArray), new PSDMatrix(kCovArray), kInitValue,
+                                                kTimePeriods, new MaxCallReward(1., 0.), kSeed);
+    Policy stopEarly = new Policy() {
+      @Override
+      public Action getAction(State state) {
+        return ((StoppingState) state).time >= 1 ? StoppingAction.STOP : StoppingAction.CONTINUE;
+      }
+    };
+    Policy stopLate = new Policy() {
+      @Override
+      public Action getAction(State state) {
+        return ((StoppingState) state).time >= 2 ? StoppingAction.STOP : StoppingAction.CONTINUE;
+      }
+    };
+    // a policy against itself on common seeds differs by exactly zero on every path
+    MonteCarloEval.VarianceReducedResults self =
+            new MonteCarloEval(callModel, stopEarly, kSeed).compare(stopEarly, 300, kTimePeriods);
+    assert self.getMean() == 0.;
+    assert self.getStdErr() == 0.;
+    assert self.getPathsCount() == 600;
+    // the seeds are drawn as in eval, so the difference is that of the two plain evaluations
+    MonteCarloEval.VarianceReducedResults crn =
+            new MonteCarloEval(callModel, stopEarly, kSeed).compare(stopLate, 300, kTimePeriods);
+    MonteCarloEval.MonteCarloResults early = new MonteCarloEval(callModel, stopEarly, kSeed).eval(300, kTimePeriods);
+    MonteCarloEval.MonteCarloResults late = new MonteCarloEval(callModel, stopLate, kSeed).eval(300, kTimePeriods);
+    assert approxEqual(crn.getMean(), early.getMean() - late.getMean());
+    assert approxEqual(crn.getPlainStdErr(),
+                       Math.sqrt(early.getStdErr() * early.getStdErr() + late.getStdErr() * late.getStdErr()));
+    assert crn.getStdErr() < crn.getPlainStdErr();
+  }
+
+  @Test
+  public void batchBasisTest() throws Exception {
+    BasisSet basisSet = new BasisSet();
+    basisSet.add(new ConstantStateFunction(1.));
+    for (int d = 1; d <= 3; ++ d) {
+      basisSet.add(new PolyStateFunction(d, 0));
+      basisSet.add(new PolyStateFunction(d, 1));
+    }
+    basisSet.add(new ExpSquareStateFunction());
+    ArrayList<StoppingState> states = new ArrayList<StoppingState>();
+    for (int s = 0; s < 5; ++ s) {
+      double[] vector = {.5 * s - 1., 1. - .3 * s};
+      states.add(new StoppingState(vector, 1));
+    }
+    double[] design = basisSet.evaluate(states);
+    double[] coeffs = new double[basisSet.size()];
+    for (int j = 0; j < coeffs.length; ++ j) {
+      coeffs[j] = j - 2.;
+    }
+    LinCombStateFunction linComb = new LinCombStateFunction(coeffs, basisSet);
+    double[] linCombValues = new double[states.size()];
+    linComb.values(states, linCombValues, 0);
+    for (int s = 0; s < states.size(); ++ s) {
+      double[] row = basisSet.evaluate(states.get(s));
+      for (int j = 0; j < row.length; ++ j) {
+        assert design[j * states.size() + s] == row[j];
+      }
+      assert approxEqual(linCombValues[s], linComb.value(states.get(s)));
+    }
+  }
+
+  @Test
+  public void policyCacheTest() throws Exception {
+    ArrayList<StateFunction> contValues = new ArrayList<StateFunction>();
+    for (int t = 0; t < kTimePeriods; ++ t) {
+      contValues.add(new ConstantStateFunction(2.));
+    }
+    QFunctionPolicy policy = new QFunctionPolicy(model, new TimeDepQFunction(contValues),
+                                                 new MaxCallReward(1., 0.), 1.);
+    double[] lowVec = {0., 0.}, highVec = {2., 0.}, nearHighVec = {2.01, 0.};
+    StoppingState low = new StoppingState(lowVec, 1), high = new StoppingState(highVec, 1),
+            nearHigh = new StoppingState(nearHighVec, 1);
+    assert policy.getAction(low) == StoppingAction.CONTINUE;
+    assert policy.getAction(high) == StoppingAction.STOP;
+    policy.enableCache(new StoppingStateQuantizer(.1), 1);
+    assert policy.getAction(high) == StoppingAction.STOP;
+    assert policy.getAction(nearHigh) == StoppingAction.STOP;
+    assert policy.getCacheHits() == 1 && policy.getCacheMisses() == 1;
+    assert policy.getAction(low) == StoppingAction.CONTINUE;
+    assert policy.getAction(high) == StoppingAction.STOP;
+    assert policy.getCacheHits() == 1 && policy.getCacheMisses() == 3;
+    // decisions are taken at the cell centres, so they are the same whatever the visiting order
+    StoppingStateQuantizer quantizer = new StoppingStateQuantizer(.5);
+    QFunctionPolicy uncached = new QFunctionPolicy(model, new TimeDepQFunction(contValues),
+                                                   new MaxCallReward(1., 0.), 1.);
+    policy.enableCache(quantizer, 1000);
+    ArrayList<SamplePath> paths = new MonteCarloEval(model, uncached, kSeed).getSamplePaths(200, kTimePeriods);
+    for (SamplePath path : paths) {
+      for (StateAction stateAction : path.stateActions) {
+        State state = stateAction.getState();
+        assert policy.getAction(state) == uncached.getAction(quantizer.center(state));
+      }
+    }
+    policy.enableCache(quantizer, 4);
+    MonteCarloEval.MonteCarloResults serial = new MonteCarloEval(model, policy, kSeed).eval(500, kTimePeriods);
+    policy.enableCache(quantizer, 4);
+    MonteCarloEval.MonteCarloResults parallel =
+            new MonteCarloEval(model, policy, kSeed).evalParallel(500, kTimePeriods, 3);
+    assert serial.getMean() == parallel.getMean();
+  }
+
+  @Test
+  public void longstaffSchwartzTest() throws Exception {
+    double[][] covArray = {{.1, .05}, {.05, .1}};
+    int timePeriods = 5, pathCount = 5000;
+    StoppingModel callModel = new StoppingModel(new Matrix(2, 1), new PSDMatrix(covArray), kInitValue,
+                                                timePeriods, new MaxCallReward(1.05, 0.), kSeed);
+    BasisSet basisSet = new BasisSet();
+    basisSet.add(new ConstantStateFunction(1.));
+    for (int d = 1; d <= 2; ++ d) {
+      basisSet.add(new PolyStateFunction(d, 0));
+      basisSet.add(new PolyStateFunction(d, 1));
+    }
+    LongstaffSchwartzSolver solver = new LongstaffSchwartzSolver(callModel, basisSet, kSeed, pathCount);
+    solver.setThreadCount(3);
+    solver.solve();
+    // the same regressions with the cash flows found by rescanning the later periods of each path
+    TrajectoryStore store = TrajectoryStore.load(callModel, pathCount, kSeed, null);
+    RewardFunction rf = callModel.getRewardFunction();
+    for (int t = 1; t < timePeriods - 1; ++ t) {
+      ArrayList<StoppingState> states = store.getStates(t);
+      double[] yData = new double[pathCount];
+      for (int s = 0; s < pathCount; ++ s) {
+        for (int tt = t + 1; tt < timePeriods; ++ tt) {
+          StoppingState state = store.getState(tt, s);
+          if (rf.value(state, StoppingAction.STOP) > solver.contValues.get(tt).value(state)) {
+            yData[s] = rf.value(state, StoppingAction.STOP);
+            break;
+          }
+        }
+      }
+      StateFunction fit = basisSet.getLinComb(Regression.LinLeastSq(basisSet.evaluate(states), pathCount, yData));
+      for (int s = 0; s < pathCount; s += 250) {
+        assert approxEqual(fit.value(states.get(s)), solver.contValues.get(t).value(states.get(s)));
+      }
+    }
+    solver.setInTheMoneyOnly(true);
+    solver.solve();
+    for (int t = 1; t < timePeriods - 1; ++ t) {
+      for (int s = 0; s < pathCount; s += 250) {
+        assert solver.contValues.get(t).value(store.getState(t, s)) >= 0.;
+      }
+    }
+  }
+
+  @Test
+  public void dualUpperBoundTest() throws Exception {
+    double[][] covArray = {{.1, .05}, {.05, .1}};
+    StoppingModel callModel = new StoppingModel(new Matrix(2, 1), new PSDMatrix(covArray), kInitValue,
+                                                4, new MaxCallReward(1.05, 0.), kSeed);
+    BasisSet basisSet = new BasisSet();
+    basisSet.add(new ConstantStateFunction(1.));
+    basisSet.add(new PolyStateFunction(1, 0));
+    basisSet.add(new PolyStateFunction(1, 1));
+    LongstaffSchwartzSolver solver = new LongstaffSchwartzSolver(callModel, basisSet, kSeed, 2000);
+    solver.solve();
+    DualUpperBound dual = new DualUpperBound(callModel, solver.contValues);
+    DualUpperBound.Results results = dual.estimate(50, 40, kSeed, 1);
+    DualUpperBound.Results parallelResults = dual.estimate(50, 40, kSeed, 3);
+    assert results.getUpper().getMean() == parallelResults.getUpper().getMean();
+    assert results.getGap().getMean() == parallelResults.getGap().getMean();
+    assert results.getUpper().getSampleCount() == 50;
+    // along every outer path the bound at the stopping time of the policy is its value L_0
+    assert results.getGap().getMin() > - 1E-9;
+    // for the policy that never stops the martingale is zero and the bound is E max_t h_t
+    ArrayList<StateFunction> neverStop = new ArrayList<StateFunction>();
+    for (int t = 0; t < 4; ++ t) {
+      neverStop.add(new ConstantStateFunction(Double.MAX_VALUE));
+    }
+    DualUpperBound.Results trivial = new DualUpperBound(callModel, neverStop).estimate(20, 10, kSeed, 2);
+    assert trivial.getLower().getMean() == 0.;
+    // the outer paths of the estimate: one seed each from the seed, then the increments
+    java.util.Random random = Distributions.newRandom(kSeed);
+    StoppingModel process = (StoppingModel) callModel.copy();
+    double[] increment = new double[2];
+    double maxRewardSum = 0.;
+    for (int i = 0; i < 20; ++ i) {
+      process.reset(random.nextLong());
+      double[] vector = callModel.getInitialValue().clone();
+      double maxReward = callModel.getRewardFunction().value(new StoppingState(vector, 0), StoppingAction.STOP);
+      for (int t = 1; t < 4; ++ t) {
+        process.nextIncrement(increment);
+        for (int k = 0; k < 2; ++ k) {
+          vector[k] += increment[k];
+        }
+        maxReward = Math.max(maxReward,
+                             callModel.getRewardFunction().value(new StoppingState(vector, t), StoppingAction.STOP));
+      }
+      maxRewardSum += maxReward;
+    }
+    assert Math.abs(trivial.getUpper().getMean() - maxRewardSum / 20) < 1E-12 * (1. + maxRewardSum);
+  }
+
+  @Test
+  public void trajectoryStoreTest() throws Exception {
+    Policy policy = new Policy() {
+      @Override
+      public Action getAction(State state) {
+        return StoppingAction.CONTINUE;
+      }
+    };
+    ArrayList<SamplePath> paths = new MonteCarloEval(model, policy, kSeed).getSamplePaths(20, kTimePeriods);
+    TrajectoryStore store = TrajectoryStore.sample(model, 20, kSeed);
+    for (int p = 0; p < paths.size(); ++ p) {
+      for (int t = 0; t < kTimePeriods; ++ t) {
+        StoppingState state = (StoppingState) paths.get(p).stateActions.get(t).getState();
+        for (int i = 0; i < state.vector.length; ++ i) {
+          assert store.get(t, p, i) == state.vector[i];
+        }
+        assert store.getState(t, p).time == t;
+      }
+    }
+    assert TrajectoryStore.size(20, kTimePeriods, 2) == 20 * kTimePeriods * 2;
+    boolean rejected = false;
+    try {
+      TrajectoryStore.size(1 << 20, 1 << 10, 4);
+    } catch (IllegalArgumentException e) {
+      rejected = true;
+    }
+    assert rejected;
+  }
+
+  @Test
+  public void trajectoryCacheTest() throws Exception {
+    File dir = Files.createTempDirectory("paths").toFile();
+    TrajectoryCache cache = new TrajectoryCache(dir.getPath());
+    try {
+      TrajectoryStore sampled = TrajectoryStore.load(model, 20, kSeed, cache);
+      assert dir.listFiles().length == 1;
+      TrajectoryStore mapped = TrajectoryStore.load(model, 20, kSeed, cache);
+      assert mapped.getBuffer().isDirect();
+      assert mapped.getPathCount() == 20 && mapped.getTimePeriods() == kTimePeriods;
+      assert mapped.getBuffer().equals(sampled.getBuffer());
+      assert TrajectoryCache.key(model, 20, kSeed) != TrajectoryCache.key(model, 20, kSeed + 1);
+      assert ! TrajectoryStore.load(model, 20, kSeed, null).getBuffer().isDirect();
+      // a directory in the place of the file makes the move fail, which leaves no temporary file
+      File blocker = new File(dir, String.format("paths-%016x.bin", TrajectoryCache.key(model, 30, kSeed)));
+      assert blocker.mkdir();
+      assert TrajectoryStore.load(model, 30, kSeed, cache).getPathCount() == 30;
+      assert dir.listFiles().length == 2;
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void kernelQMatrixTest() throws Exception {
+    PSDMatrix sigma = new PSDMatrix(kCovArray);
+    double[] mean = {1., 1.};
+    GaussianStateKernel kernel = new GaussianStateKernel(2., 1.);
+    GaussianKernelE kernelE = new GaussianKernelE(mean, sigma, 2., 1.);
+    GaussianKernelDoubleE kernelDoubleE = new GaussianKernelDoubleE(sigma, 2., 1.);
+    StoppingStateSampler sampler = new StoppingStateSampler(model);
+    sampler.sample(40, kSeed);
+    KernelQMatrix qMatrix = new KernelQMatrix(sampler, kTimePeriods, kernel, kernelE, kernelDoubleE, 3);
+    for (int t = 0; t < kTimePeriods; ++ t) {
+      ArrayList<StoppingState> cur = sampler.getStates(t);
+      assert qMatrix.size(t) == cur.size();
+      for (int i = 0; i < cur.size(); ++ i) {
+        for (int j = 0; j < cur.size(); ++ j) {
+          assert qMatrix.kernel(t, i, j) == kernel.value(cur.get(i), cur.get(j));
+          if (t < kTimePeriods - 1) {
+            assert qMatrix.doubleExpectation(t, i, j) == kernelDoubleE.eval(cur.get(i), cur.get(j))
+                   || qMatrix.doubleExpectation(t, i, j) == kernelDoubleE.eval(cur.get(j), cur.get(i));
+          }
+        }
+        if (t < kTimePeriods - 1) {
+          ArrayList<StoppingState> next = sampler.getStates(t + 1);
+          for (int j = 0; j < next.size(); ++ j) {
+            assert qMatrix.expectation(t, i, j) == kernelE.eval(cur.get(i), next.get(j));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void kernelDistancesTest() throws Exception {
+    PSDMatrix sigma = new PSDMatrix(kCovArray);
+    double[] mean = {1., 1.};
+    StoppingStateSampler sampler = new StoppingStateSampler(model);
+    sampler.sample(30, kSeed);
+    KernelDistances distances = new KernelDistances(sampler, kTimePeriods, mean, sigma, 2);
+    for (double bandWidth : new double[]{.5, 2.}) {
+      KernelQMatrix exact = new KernelQMatrix(sampler, kTimePeriods, new GaussianStateKernel(bandWidth, 3.),
+                                              new GaussianKernelE(mean, sigma, bandWidth, 3.),
+                                              new GaussianKernelDoubleE(sigma, bandWidth, 3.), 1);
+      KernelQMatrix swept = new KernelQMatrix(sampler, kTimePeriods, distances, bandWidth, 3., 2);
+      for (int t = 0; t < kTimePeriods; ++ t) {
+        for (int i = 0; i < swept.size(t); ++ i) {
+          for (int j = 0; j < swept.size(t); ++ j) {
+            assert Math.abs(swept.kernel(t, i, j) - exact.kernel(t, i, j)) < 1E-10;
+            if (t < kTimePeriods - 1) {
+              assert Math.abs(swept.doubleExpectation(t, i, j) - exact.doubleExpectation(t, i, j)) < 1E-10;
+            }
+          }
+          for (int j = 0; t < kTimePeriods - 1 && j < swept.size(t + 1); ++ j) {
+            assert Math.abs(swept.expectation(t, i, j) - exact.expectation(t, i, j)) < 1E-10;
+          }
+        }
+      }
+    }
+  }
+
+  private static class ExpSquareStateFunction implements StateFunction {
+    @Override
+    public double value(State state) {
+      double[] vector = ((StoppingState) state).vector;
+      return Math.exp(- vector[0] * vector[0]);
+    }
   }
 
   private static boolean approxEqual(double val1, double val2) {
     return Math.abs(val1 - val2) < kTol;
   }
+
+  @Test
+  public void javaBackendTest() throws Exception {
+    StoppingModel callModel = new StoppingModel(new Matrix(kMeanArray), new PSDMatrix(kCovArray), kInitValue,
+                                                kTimePeriods, new MaxCallReward(1., 0.), kSeed);
+    PSDMatrix sigma = new PSDMatrix(kCovArray);
+    double[] mean = {1., 1.};
+    GaussianStateKernel kernel = new GaussianStateKernel(2., 1.);
+    StoppingStateSampler sampler = new StoppingStateSampler(callModel);
+    sampler.sample(15, kSeed);
+    KernelQMatrix qMatrix = new KernelQMatrix(sampler, kTimePeriods, kernel, new GaussianKernelE(mean, sigma, 2., 1.),
+                                              new GaussianKernelDoubleE(sigma, 2., 1.), 2);
+    checkQuadraticForm(qMatrix);
+
+    KernelSolverCplex solver = new KernelSolverCplex(callModel, 2., 1., 2., 1., 15, kSeed,
+                                                     KernelSolverCplex.Backend.JAVA);
+    boolean solved = solver.solve();
+    assert solved;
+    MonteCarloEval.MonteCarloResults results =
+            new MonteCarloEval(callModel, solver.getPolicy(), kSeed).eval(200, kTimePeriods);
+    assert results.getMean() >= 0. && ! Double.isNaN(results.getMean());
+    solver.setGamma(2.);
+    solved = solver.solve();
+    assert solved;
+  }
+
+  @Test
+  public void objectiveTermsTest() throws Exception {
+    StoppingModel callModel = new StoppingModel(new Matrix(kMeanArray), new PSDMatrix(kCovArray), kInitValue,
+                                                kTimePeriods, new MaxCallReward(1., 0.), kSeed);
+    KernelSolverCplex solver = new KernelSolverCplex(callModel, 2., 1., 2., 1., 6, kSeed,
+                                                     KernelSolverCplex.Backend.JAVA);
+    boolean solved = solver.solve();
+    assert solved;
+    // the terms of the CPLEX model at the solution of the JAVA backend
+    final double[] x = solver.getQPSolution();
+    final double[] sums = {0., 0.};
+    solver.objectiveTerms(new KernelSolverCplex.ObjectiveTerms() {
+      @Override
+      public void quadratic(int row, int column, double coeff) {
+        sums[0] += coeff * x[row] * x[column];
+        sums[1] += Math.min(coeff * x[row] * x[column], 0.);
+      }
+
+      @Override
+      public void linear(int index, double coeff) {
+        sums[0] += coeff * x[index];
+      }
+    });
+    assert Math.abs(sums[0] - solver.getQPObjective()) < 1E-9 * (1. + Math.abs(sums[0]));
+    // the coupling terms contribute
+    assert sums[1] < - 1E-6;
+  }
+
+  @Test
+  public void offsetSolverTest() throws Exception {
+    java.util.Random random = new java.util.Random(kSeed);
+    double[][] stopGaps = new double[3][20], contGaps = new double[2][20];
+    for (int t = 0; t < 3; ++ t) {
+      for (int i = 0; i < 20; ++ i) {
+        stopGaps[t][i] = random.nextGaussian();
+        if (t < 2) {
+          contGaps[t][i] = random.nextGaussian();
+        }
+      }
+    }
+    KernelOffsetSolver solver = new KernelOffsetSolver(2., .5, .3, stopGaps, contGaps);
+    double[] b = new double[4];
+    double optimum = solver.solve(b);
+    assert Math.abs(optimum - solver.value(b)) < kTol;
+    double[] trial = new double[4];
+    for (int k = 0; k < 2000; ++ k) {
+      double scale = k % 2 == 0 ? .01 : 1.;
+      for (int t = 0; t < 4; ++ t) {
+        trial[t] = b[t] + scale * random.nextGaussian();
+      }
+      assert solver.value(trial) >= optimum - 1E-9;
+    }
+  }
+
+  /**
+   * Compares x'Qx from multiply with the sum over the blocks for a random x.
+   */
+  private static void checkQuadraticForm(KernelQuadraticForm qMatrix) {
+    java.util.Random random = new java.util.Random(kSeed);
+    double[] x = new double[qMatrix.size()], qx = new double[qMatrix.size()];
+    for (int i = 0; i < x.length; ++ i) {
+      x[i] = random.nextDouble();
+    }
+    qMatrix.multiply(x, qx);
+    double quad = 0., expected = 0.;
+    for (int i = 0; i < x.length; ++ i) {
+      quad += x[i] * qx[i];
+    }
+    for (int t = 0; t < kTimePeriods; ++ t) {
+      int n = qMatrix.size(t);
+      double[] u = combinedWeights(qMatrix, x, t);
+      for (int i = 0; i < n; ++ i) {
+        for (int j = 0; j < n; ++ j) {
+          expected += u[i] * u[j] * qMatrix.kernel(t, i, j);
+        }
+      }
+      if (t < kTimePeriods - 1) {
+        int c = qMatrix.contOffset(t);
+        double[] uNext = combinedWeights(qMatrix, x, t + 1);
+        for (int i = 0; i < n; ++ i) {
+          for (int j = 0; j < n; ++ j) {
+            expected += x[c + i] * x[c + j] * qMatrix.doubleExpectation(t, i, j);
+          }
+          for (int j = 0; j < uNext.length; ++ j) {
+            expected -= 2. * x[c + i] * uNext[j] * qMatrix.expectation(t, i, j);
+          }
+        }
+      }
+    }
+    assert Math.abs(quad - expected) < kTol * Math.abs(expected);
+  }
+
+  private static double[] combinedWeights(KernelQuadraticForm qMatrix, double[] x, int t) {
+    if (t == 0) {
+      double[] u = {x[0]};
+      return u;
+    }
+    double[] u = new double[qMatrix.size(t)];
+    for (int i = 0; i < u.length; ++ i) {
+      u[i] = x[qMatrix.stopOffset(t) + i] + (qMatrix.contOffset(t) < 0 ? 0. : x[qMatrix.contOffset(t) + i]);
+    }
+    return u;
+  }
+
+  @Test
+  public void lowRankKernelTest() throws Exception {
+    StoppingModel callModel = new StoppingModel(new Matrix(kMeanArray), new PSDMatrix(kCovArray), kInitValue,
+                                                kTimePeriods, new MaxCallReward(1., 0.), kSeed);
+    PSDMatrix sigma = new PSDMatrix(kCovArray);
+    double[] mean = {1., 1.};
+    GaussianStateKernel kernel = new GaussianStateKernel(2., 1.);
+    GaussianKernelE kernelE = new GaussianKernelE(mean, sigma, 2., 1.);
+    GaussianKernelDoubleE kernelDoubleE = new GaussianKernelDoubleE(sigma, 2., 1.);
+    StoppingStateSampler sampler = new StoppingStateSampler(callModel);
+    sampler.sample(15, kSeed);
+    RandomFourierFeatures features = new RandomFourierFeatures(2, 2., 1., 5000, kSeed);
+    LowRankKernelQMatrix lowRank = new LowRankKernelQMatrix(sampler, kTimePeriods, features, mean, sigma);
+    KernelQMatrix exact = new KernelQMatrix(sampler, kTimePeriods, kernel, kernelE, kernelDoubleE, 2);
+    assert lowRank.storedEntries() == (1 + 15 + 15 + 1 + 15) * 2 * 5000;
+    for (int t = 0; t < kTimePeriods; ++ t) {
+      for (int i = 0; i < exact.size(t); ++ i) {
+        for (int j = 0; j < exact.size(t); ++ j) {
+          assert Math.abs(lowRank.kernel(t, i, j) - exact.kernel(t, i, j)) < .05;
+          if (t < kTimePeriods - 1) {
+            assert Math.abs(lowRank.doubleExpectation(t, i, j) - exact.doubleExpectation(t, i, j)) < .05;
+          }
+        }
+        for (int j = 0; t < kTimePeriods - 1 && j < exact.size(t + 1); ++ j) {
+          assert Math.abs(lowRank.expectation(t, i, j) - exact.expectation(t, i, j)) < .05;
+        }
+      }
+    }
+    checkQuadraticForm(lowRank);
+
+    KernelSolverCplex solver = new KernelSolverCplex(callModel, 2., 1., 2., 1., 15, kSeed,
+                                                     KernelSolverCplex.Backend.JAVA, 200);
+    boolean solved = solver.solve();
+    assert solved;
+    MonteCarloEval.MonteCarloResults results =
+            new MonteCarloEval(callModel, solver.getPolicy(), kSeed).eval(200, kTimePeriods);
+    assert results.getMean() >= 0. && ! Double.isNaN(results.getMean());
+  }
+
+  @Test
+  public void compiledKernelSumTest() throws Exception {
+    PSDMatrix sigma = new PSDMatrix(kCovArray);
+    double[] mean = {1., 1.};
+    GaussianStateKernel kernel = new GaussianStateKernel(2., 1.5);
+    GaussianKernelE kernelE = new GaussianKernelE(mean, sigma, 2., 1.5);
+    GaussianKernelDoubleE kernelDoubleE = new GaussianKernelDoubleE(sigma, 2., 1.5);
+    StoppingStateSampler sampler = new StoppingStateSampler(model);
+    sampler.sample(30, kSeed);
+    ArrayList<StoppingState> cur = sampler.getStates(1), next = sampler.getStates(2);
+    double[] curLambda = new double[30], nextLambda = new double[30];
+    for (int i = 0; i < 30; ++ i) {
+      curLambda[i] = i % 3 == 0 ? 0. : .01 * i;
+      nextLambda[i] = i % 2 == 0 ? 0. : .02 * i;
+    }
+    KernelContFunction contFunction = new KernelContFunction(cur, next, curLambda, nextLambda, kernelE,
+                                                             kernelDoubleE, model, 2., .3, 0.);
+    KernelStateFunction stateFunction = new KernelStateFunction(cur, next, curLambda, nextLambda, kernel,
+                                                                kernelE, model, 2., 0.);
+    ArrayList<StoppingState> queries = sampler.getStates(2);
+    double[] contBatch = new double[queries.size() + 1], stateBatch = new double[queries.size() + 1];
+    contFunction.values(queries, contBatch, 1);
+    stateFunction.values(queries, stateBatch, 1);
+    for (int j = 0; j < queries.size(); ++ j) {
+      StoppingState x = queries.get(j);
+      double cont = .3, value = 0.;
+      for (int i = 0; i < 30; ++ i) {
+        cont += nextLambda[i] * kernelE.eval(x, next.get(i)) / 2. - curLambda[i] * kernelDoubleE.eval(x, cur.get(i)) / 2.;
+        value += nextLambda[i] * kernel.value(next.get(i), x) / 2. - curLambda[i] * kernelE.eval(cur.get(i), x) / 2.;
+      }
+      assert Math.abs(contFunction.value(x) - cont) < 1E-10;
+      assert Math.abs(stateFunction.value(x) - value) < 1E-10;
+      assert Math.abs(contBatch[j + 1] - contFunction.value(x)) < 1E-12;
+      assert Math.abs(stateBatch[j + 1] - stateFunction.value(x)) < 1E-12;
+    }
+    assert CompiledGaussianSum.expectation(kernelE, next, nextLambda, true, 0.).getSupportSize() == 15;
+    assert CompiledGaussianSum.expectation(kernelE, next, nextLambda, false, 0.).getSupportSize() == 30;
+  }
+
+  @Test
+  public void truncatedKernelSumTest() throws Exception {
+    StoppingStateSampler sampler = new StoppingStateSampler(model);
+    sampler.sample(500, kSeed);
+    ArrayList<StoppingState> support = sampler.getStates(2), queries = sampler.getStates(1);
+    double[] weights = new double[support.size()];
+    for (int i = 0; i < weights.length; ++ i) {
+      weights[i] = (i % 5) - 1.5;
+    }
+    GaussianStateKernel kernel = new GaussianStateKernel(.05, 1.);
+    CompiledGaussianSum exact = CompiledGaussianSum.kernel(kernel, support, weights, true, 0.);
+    CompiledGaussianSum truncated = CompiledGaussianSum.kernel(kernel, support, weights, true, 1E-6);
+    assert exact.getErrorBound() == 0.;
+    assert truncated.getErrorBound() > 0. && truncated.getErrorBound() < 1E-3;
+    double[] xs = CompiledGaussianSum.stackVectors(queries), scratch = new double[xs.length];
+    double[] batch = new double[queries.size()];
+    truncated.addValues(xs, queries.size(), batch, 0, scratch);
+    double maxValue = 0.;
+    for (int j = 0; j < queries.size(); ++ j) {
+      double value = exact.value(queries.get(j).vector, scratch);
+      maxValue = Math.max(maxValue, Math.abs(value));
+      assert Math.abs(truncated.value(queries.get(j).vector, scratch) - value) <= truncated.getErrorBound();
+      assert truncated.value(queries.get(j).vector) == truncated.value(queries.get(j).vector, scratch);
+      assert Math.abs(batch[j] - value) <= truncated.getErrorBound();
+    }
+    assert maxValue > 1.;
+  }
 }
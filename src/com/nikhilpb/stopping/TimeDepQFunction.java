@@ -20,6 +20,10 @@ public class TimeDepQFunction implements QFunction {
     this.contValues = contValues;
   }
 
+  public ArrayList<StateFunction> getContValues() {
+    return contValues;
+  }
+
   /**
    * @param state
    * @param action
@@ -49,26 +53,40 @@ public class TimeDepQFunction implements QFunction {
                              double lowPrice,
                              double highPrice,
                              double delta) {
-    final int timePeriods = model.getTimePeriods();
-    int dimension = model.getDimension();
-    if (dimension > 1) {
-      throw new RuntimeException("dimension should be 1");
-    }
+    ArrayList<String> rows = continuationCurves(model, lowPrice, highPrice, delta);
     try {
       PrintWriter writer = new PrintWriter("results/" + fileName, "UTF-8");
-      int pointCount = (int) Math.floor((highPrice - lowPrice) / delta);
-      for (int t = 1; t < timePeriods - 1; ++ t) {
-        for (int p = 0; p <= pointCount; ++ p) {
-          double price = lowPrice + p * delta;
-          double[] stateVec = {Math.log(price)};
-          StoppingState stoppingState = new StoppingState(stateVec, t);
-          double val = contValues.get(t).value(stoppingState);
-          writer.println(t + "," + price + "," + val);
-        }
+      for (String row : rows) {
+        writer.println(row);
       }
       writer.close();
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
+
+  /**
+   * Continuation values of periods 1 to T - 2 on a grid of prices. Only valid for 1-d model.
+   *
+   * @return rows "period,price,value"
+   */
+  public ArrayList<String> continuationCurves(StoppingModel model,
+                                             double lowPrice,
+                                             double highPrice,
+                                             double delta) {
+    if (model.getDimension() > 1) {
+      throw new RuntimeException("dimension should be 1");
+    }
+    ArrayList<String> rows = new ArrayList<String>();
+    int pointCount = (int) Math.floor((highPrice - lowPrice) / delta);
+    for (int t = 1; t < model.getTimePeriods() - 1; ++ t) {
+      for (int p = 0; p <= pointCount; ++ p) {
+        double price = lowPrice + p * delta;
+        double[] stateVec = {Math.log(price)};
+        StoppingState stoppingState = new StoppingState(stateVec, t);
+        rows.add(t + "," + price + "," + contValues.get(t).value(stoppingState));
+      }
+    }
+    return rows;
+  }
 }
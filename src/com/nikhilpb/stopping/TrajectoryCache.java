@@ -0,0 +1,180 @@
+package com.nikhilpb.stopping;
+
+import com.nikhilpb.util.math.Distributions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk cache of simulated trajectories. Each file holds the paths of one model, seed, path
+ * count and generator type, identified by a hash of all of them. Files are written once and
+ * memory-mapped read-only afterwards, so repeated runs skip the simulation and concurrent JVMs
+ * share the data through the page cache. Files are little endian with a fixed size header. Paths
+ * that do not fit in one mapping are simulated and not cached.
+ */
+public final class TrajectoryCache {
+  private static final long kMagic = 0x5041544843414348L;
+  // part of the key, bump it when the layout of the files changes so that old files are not read
+  private static final long kFormatVersion = 1;
+  private static final int kHeaderBytes = 64;
+  private static final int kWriteChunk = 1 << 16;
+  private final String directory;
+
+  /**
+   * @param directory where the cache files are kept, created on the first write
+   */
+  public TrajectoryCache(String directory) {
+    if (directory == null) {
+      throw new IllegalArgumentException("directory must not be null");
+    }
+    this.directory = directory;
+  }
+
+  public String getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Returns the paths from the cache file if there is a valid one, and otherwise simulates them
+   * and writes the file. Falls back to simulation if the cache cannot be read or written.
+   */
+  public TrajectoryStore get(StoppingModel model, int pathCount, long seed) {
+    long bytes = kHeaderBytes + 8L * TrajectoryStore.size(pathCount, model.getTimePeriods(), model.getDimension());
+    if (bytes > Integer.MAX_VALUE) {
+      System.err.println("not caching " + pathCount + " sample paths, " + bytes + " bytes do not fit in one mapping");
+      return TrajectoryStore.sample(model, pathCount, seed);
+    }
+    long key = key(model, pathCount, seed);
+    File file = new File(directory, String.format("paths-%016x.bin", key));
+    if (file.exists()) {
+      try {
+        TrajectoryStore store = map(file, key);
+        if (store != null) {
+          System.out.println("mapped " + pathCount + " sample paths from " + file.getPath());
+          return store;
+        }
+      } catch (IOException e) {
+        System.err.println("could not read path cache " + file.getPath() + ": " + e.getMessage());
+      }
+    }
+    TrajectoryStore store = TrajectoryStore.sample(model, pathCount, seed);
+    try {
+      write(store, key, file);
+    } catch (IOException e) {
+      System.err.println("could not write path cache " + file.getPath() + ": " + e.getMessage());
+    }
+    return store;
+  }
+
+  /**
+   * @return the hash identifying the paths of the model with the seed and path count
+   */
+  public static long key(StoppingModel model, int pathCount, long seed) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    int n = model.getDimension();
+    ByteBuffer bytes = ByteBuffer.allocate(8 * (6 + n * (n + 2)));
+    bytes.putLong(pathCount).putLong(seed).putLong(model.getTimePeriods()).putLong(n);
+    bytes.putLong(Distributions.getRandomType().ordinal());
+    bytes.putLong(kFormatVersion);
+    double[] mean = model.getMeanArray(), initialValue = model.getInitialValue();
+    double[][] covar = model.getCovarMatrix().mat().getArray();
+    for (int i = 0; i < n; ++ i) {
+      bytes.putDouble(mean[i]).putDouble(initialValue[i]);
+      for (int j = 0; j < n; ++ j) {
+        bytes.putDouble(covar[i][j]);
+      }
+    }
+    return ByteBuffer.wrap(digest.digest(bytes.array())).getLong();
+  }
+
+  private static TrajectoryStore map(File file, long key) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() < kHeaderBytes || channel.size() > Integer.MAX_VALUE) {
+        return null;
+      }
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      mapped.order(ByteOrder.LITTLE_ENDIAN);
+      if (mapped.getLong(0) != kMagic || mapped.getLong(8) != key) {
+        return null;
+      }
+      int pathCount = (int) mapped.getLong(16);
+      int timePeriods = (int) mapped.getLong(24);
+      int dimension = (int) mapped.getLong(32);
+      long size = (long) pathCount * timePeriods * dimension;
+      if (channel.size() != kHeaderBytes + 8 * size) {
+        return null;
+      }
+      mapped.position(kHeaderBytes);
+      DoubleBuffer data = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+      return new TrajectoryStore(pathCount, timePeriods, dimension, data);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private void write(TrajectoryStore store, long key, File file) throws IOException {
+    File dir = new File(directory);
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("could not create " + directory);
+    }
+    File tmpFile = File.createTempFile("paths-", ".tmp", dir);
+    boolean moved = false;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+      try {
+        FileChannel channel = raf.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(kHeaderBytes).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(kMagic).putLong(key).putLong(store.getPathCount()).putLong(store.getTimePeriods())
+                .putLong(store.getDimension());
+        header.clear();
+        while (header.hasRemaining()) {
+          channel.write(header);
+        }
+        DoubleBuffer data = store.getBuffer();
+        ByteBuffer chunk = ByteBuffer.allocate(8 * kWriteChunk).order(ByteOrder.LITTLE_ENDIAN);
+        for (int start = 0; start < data.capacity(); start += kWriteChunk) {
+          int end = Math.min(data.capacity(), start + kWriteChunk);
+          chunk.clear();
+          for (int i = start; i < end; ++ i) {
+            chunk.putDouble(data.get(i));
+          }
+          chunk.flip();
+          while (chunk.hasRemaining()) {
+            channel.write(chunk);
+          }
+        }
+        channel.force(false);
+      } finally {
+        raf.close();
+      }
+      try {
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      moved = true;
+    } finally {
+      if (!moved) {
+        tmpFile.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package com.nikhilpb.stopping;
+
+import com.nikhilpb.util.math.Distributions;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Sample paths of a stopping model under the continue-only policy, held in one contiguous array.
+ * The layout is time major: the state of path p at time t occupies dimension entries starting at
+ * offset(t, p), so all the states of one time period are adjacent. Paths are simulated with the
+ * same seeds as MonteCarloEval.getSamplePaths, so both produce identical states. The data is held
+ * in a buffer, which is either on the heap or a memory-mapped TrajectoryCache file.
+ */
+public class TrajectoryStore {
+  private final int pathCount, timePeriods, dimension;
+  private final DoubleBuffer data;
+
+  public TrajectoryStore(int pathCount, int timePeriods, int dimension, DoubleBuffer data) {
+    if (data.capacity() != size(pathCount, timePeriods, dimension)) {
+      throw new IllegalArgumentException("data size does not match the dimensions");
+    }
+    this.pathCount = pathCount;
+    this.timePeriods = timePeriods;
+    this.dimension = dimension;
+    this.data = data;
+  }
+
+  /**
+   * Returns pathCount paths of the model, from the cache if there is one and by simulation
+   * otherwise.
+   *
+   * @param cache the path cache, or null
+   */
+  public static TrajectoryStore load(StoppingModel model, int pathCount, long seed, TrajectoryCache cache) {
+    if (cache == null) {
+      return sample(model, pathCount, seed);
+    }
+    return cache.get(model, pathCount, seed);
+  }
+
+  /**
+   * Simulates pathCount paths of the model over all its time periods.
+   */
+  public static TrajectoryStore sample(StoppingModel model, int pathCount, long seed) {
+    int timePeriods = model.getTimePeriods(), dimension = model.getDimension();
+    double[] data = new double[size(pathCount, timePeriods, dimension)];
+    double[] initialValue = model.getInitialValue();
+    double[] increment = new double[dimension];
+    Random random = Distributions.newRandom(seed);
+    for (int p = 0; p < pathCount; ++ p) {
+      model.reset(random.nextLong());
+      System.arraycopy(initialValue, 0, data, p * dimension, dimension);
+      for (int t = 1; t < timePeriods; ++ t) {
+        model.nextIncrement(increment);
+        int cur = (t * pathCount + p) * dimension, prev = cur - pathCount * dimension;
+        for (int i = 0; i < dimension; ++ i) {
+          data[cur + i] = increment[i] + data[prev + i];
+        }
+      }
+    }
+    return new TrajectoryStore(pathCount, timePeriods, dimension, DoubleBuffer.wrap(data));
+  }
+
+  /**
+   * @return the number of doubles in a store of the given dimensions
+   * @throws IllegalArgumentException if they do not fit in one array or buffer
+   */
+  public static int size(int pathCount, int timePeriods, int dimension) {
+    long size = (long) pathCount * timePeriods * dimension;
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("a store of " + pathCount + " paths of " + timePeriods + " periods in "
+                                                 + dimension + " dimensions has more than "
+                                                 + Integer.MAX_VALUE + " entries");
+    }
+    return (int) size;
+  }
+
+  public int offset(int time, int path) {
+    return (time * pathCount + path) * dimension;
+  }
+
+  public double get(int time, int path, int i) {
+    return data.get(offset(time, path) + i);
+  }
+
+  /**
+   * Copies the vector of the path at the time into out.
+   */
+  public void getVector(int time, int path, double[] out) {
+    int offset = offset(time, path);
+    for (int i = 0; i < dimension; ++ i) {
+      out[i] = data.get(offset + i);
+    }
+  }
+
+  /**
+   * @return a read-only view of the backing buffer, indexed through offset
+   */
+  public DoubleBuffer getBuffer() {
+    return data.asReadOnlyBuffer();
+  }
+
+  /**
+   * @return a new state holding a copy of the vector of the path at the time
+   */
+  public StoppingState getState(int time, int path) {
+    double[] vector = new double[dimension];
+    getVector(time, path, vector);
+    return new StoppingState(vector, time);
+  }
+
+  /**
+   * @return new states for all the paths at the time
+   */
+  public ArrayList<StoppingState> getStates(int time) {
+    ArrayList<StoppingState> states = new ArrayList<StoppingState>(pathCount);
+    for (int p = 0; p < pathCount; ++ p) {
+      states.add(getState(time, p));
+    }
+    return states;
+  }
+
+  public int getPathCount() {
+    return pathCount;
+  }
+
+  public int getTimePeriods() {
+    return timePeriods;
+  }
+
+  public int getDimension() {
+    return dimension;
+  }
+}
@@ -3,6 +3,7 @@ package com.nikhilpb.util;
 import com.nikhilpb.abtesting.ABTestingExperiment;
 import com.nikhilpb.doe.DoeExperiment;
 import com.nikhilpb.matching.MatchingExperiment;
+import com.nikhilpb.stopping.StoppingExperiment;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -165,6 +166,7 @@ public abstract class Experiment {
     DoeExperiment.register();
     MatchingExperiment.register();
     ABTestingExperiment.register();
+    StoppingExperiment.register();
 
     String experimentName = args[0];
     Experiment experiment = experiments.get(experimentName);
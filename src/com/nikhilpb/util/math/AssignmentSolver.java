@@ -0,0 +1,44 @@
+package com.nikhilpb.util.math;
+
+/**
+ * An engine for finding a maximum-weight matching in a complete bipartite graph with rows
+ * <i>S</i> and columns <i>T</i> of possibly different sizes. Unlike a BipartiteMatcher, the
+ * matching need not be perfect: a pair (<i>i</i>, <i>j</i>) is matched only if its weight
+ * <i>w<sub>ij</sub></i> is positive, and rows and columns may be left unmatched. This is the
+ * integral solution of the assignment LP
+ * <p/>
+ * max sum_ij w_ij pi_ij, sum_j pi_ij &lt;= 1, sum_i pi_ij &lt;= 1, pi_ij &gt;= 0.
+ */
+public interface AssignmentSolver {
+  /**
+   * Computes a maximum-weight matching for the weight matrix w, with one row per element of
+   * <i>S</i>. All the rows must have the same length.
+   *
+   * @param w the weight matrix
+   * @return the weight of the matching
+   */
+  public double computeMax(double[][] w);
+
+  /**
+   * Return the computed matching as an array arr with one entry per row, where arr[i] = j if
+   * (i, j) is in the matching and arr[i] = -1 if row i is unmatched.
+   *
+   * @return the computed matching, valid until the next call of computeMax
+   */
+  public int[] getRowMatches();
+
+  /**
+   * Return the computed matching as an array arr with one entry per column, where arr[j] = i if
+   * (i, j) is in the matching and arr[j] = -1 if column j is unmatched.
+   *
+   * @return the computed matching, valid until the next call of computeMax
+   */
+  public int[] getColumnMatches();
+
+  /**
+   * Return the weight of the computed matching.
+   *
+   * @return the weight
+   */
+  public double getMatchingWeight();
+}
@@ -0,0 +1,284 @@
+package com.nikhilpb.util.math;
+
+/**
+ * Pure Java solver for convex QPs of the form
+ *
+ *   minimize x' Q x + c' x  s.t.  A x = b, x in X
+ *
+ * where X is a convex set with a cheap projection and A has a few sparse rows. The equalities are
+ * handled with an augmented Lagrangian, and each subproblem over X is solved with accelerated
+ * projected gradient steps with adaptive restarts. The solver keeps its iterate and multipliers,
+ * so solving again after changing the linear term starts warm. All work arrays are allocated in
+ * the constructor.
+ */
+public class AugmentedLagrangianQPSolver {
+  private static final int kPowerIterations = 50;
+
+  public static class Config {
+    /**
+     * tolerance on the equality residual and on the projected gradient
+     */
+    public double tol = 1e-6;
+    /**
+     * initial penalty, relative to the largest eigenvalue of Q
+     */
+    public double rho = 1.;
+    public int maxOuterIterations = 50;
+    public int maxInnerIterations = 10000;
+  }
+
+  private final QuadraticForm q;
+  private final double[] c;
+  private final int[][] rowIndices;
+  private final double[][] rowCoeffs;
+  private final double[] rhs;
+  private final ConvexSet set;
+  private final Config config;
+  private final int n, m;
+  private final double[] x, y, xPrev, grad, qx, mult, residual, weights;
+  private final double qNorm, aNorm;
+  private double rho;
+  private int iterationCount;
+
+  /**
+   * @param q          quadratic term
+   * @param c          linear term, copied
+   * @param rowIndices nonzero columns of each equality row
+   * @param rowCoeffs  coefficients of each equality row
+   * @param rhs        right hand sides of the equalities
+   * @param set        the set X
+   */
+  public AugmentedLagrangianQPSolver(QuadraticForm q,
+                                     double[] c,
+                                     int[][] rowIndices,
+                                     double[][] rowCoeffs,
+                                     double[] rhs,
+                                     ConvexSet set,
+                                     Config config) {
+    if (c.length != q.size() || rowIndices.length != rowCoeffs.length || rowIndices.length != rhs.length) {
+      throw new IllegalArgumentException("inconsistent QP dimensions");
+    }
+    this.q = q;
+    this.c = c.clone();
+    this.rowIndices = rowIndices;
+    this.rowCoeffs = rowCoeffs;
+    this.rhs = rhs;
+    this.set = set;
+    this.config = config;
+    n = q.size();
+    m = rhs.length;
+    x = new double[n];
+    y = new double[n];
+    xPrev = new double[n];
+    grad = new double[n];
+    qx = new double[n];
+    mult = new double[m];
+    residual = new double[m];
+    weights = new double[m];
+    qNorm = 2. * largestEigenvalue();
+    aNorm = largestRowGram();
+    rho = config.rho * Math.max(qNorm, 1e-12);
+    set.project(x);
+  }
+
+  /**
+   * Replaces the linear term. The next solve starts from the current solution and multipliers.
+   */
+  public void setLinearTerm(double[] linearTerm) {
+    System.arraycopy(linearTerm, 0, c, 0, n);
+  }
+
+  /**
+   * Sets the starting point of the next solve.
+   */
+  public void setStart(double[] start) {
+    System.arraycopy(start, 0, x, 0, n);
+    set.project(x);
+  }
+
+  /**
+   * Solves the QP starting from the current point.
+   *
+   * @return true if the tolerances were met
+   */
+  public boolean solve() {
+    iterationCount = 0;
+    double lastInfeasibility = Double.MAX_VALUE;
+    for (int outer = 0; outer < config.maxOuterIterations; ++ outer) {
+      boolean innerConverged = minimizeLagrangian();
+      double infeasibility = residual(x);
+      if (infeasibility <= config.tol && innerConverged) {
+        return true;
+      }
+      for (int k = 0; k < m; ++ k) {
+        mult[k] += rho * residual[k];
+      }
+      // only a lack of progress towards feasibility calls for a larger penalty
+      if (infeasibility > config.tol && infeasibility > .25 * lastInfeasibility) {
+        rho *= 10.;
+      }
+      lastInfeasibility = infeasibility;
+    }
+    return false;
+  }
+
+  /**
+   * Accelerated projected gradient on the augmented Lagrangian with gradient based restarts.
+   */
+  private boolean minimizeLagrangian() {
+    double step = 1. / (qNorm + rho * aNorm);
+    System.arraycopy(x, 0, y, 0, n);
+    double theta = 1.;
+    for (int iter = 0; iter < config.maxInnerIterations; ++ iter) {
+      ++ iterationCount;
+      gradient(y);
+      System.arraycopy(x, 0, xPrev, 0, n);
+      for (int i = 0; i < n; ++ i) {
+        x[i] = y[i] - step * grad[i];
+      }
+      set.project(x);
+      double moved = 0., restart = 0.;
+      for (int i = 0; i < n; ++ i) {
+        double d = x[i] - xPrev[i];
+        moved = Math.max(moved, Math.abs(x[i] - y[i]));
+        restart += (y[i] - x[i]) * d;
+      }
+      if (moved <= config.tol * step) {
+        return true;
+      }
+      if (restart > 0.) {
+        theta = 1.;
+        System.arraycopy(x, 0, y, 0, n);
+        continue;
+      }
+      double nextTheta = .5 * (1. + Math.sqrt(1. + 4. * theta * theta));
+      double momentum = (theta - 1.) / nextTheta;
+      for (int i = 0; i < n; ++ i) {
+        y[i] = x[i] + momentum * (x[i] - xPrev[i]);
+      }
+      theta = nextTheta;
+    }
+    return false;
+  }
+
+  private void gradient(double[] point) {
+    q.multiply(point, qx);
+    residual(point);
+    for (int k = 0; k < m; ++ k) {
+      weights[k] = mult[k] + rho * residual[k];
+    }
+    for (int i = 0; i < n; ++ i) {
+      grad[i] = 2. * qx[i] + c[i];
+    }
+    for (int k = 0; k < m; ++ k) {
+      int[] ind = rowIndices[k];
+      double[] coeff = rowCoeffs[k];
+      for (int l = 0; l < ind.length; ++ l) {
+        grad[ind[l]] += weights[k] * coeff[l];
+      }
+    }
+  }
+
+  /**
+   * Fills residual with A point - b.
+   *
+   * @return the largest absolute residual
+   */
+  private double residual(double[] point) {
+    double max = 0.;
+    for (int k = 0; k < m; ++ k) {
+      int[] ind = rowIndices[k];
+      double[] coeff = rowCoeffs[k];
+      double sum = - rhs[k];
+      for (int l = 0; l < ind.length; ++ l) {
+        sum += coeff[l] * point[ind[l]];
+      }
+      residual[k] = sum;
+      max = Math.max(max, Math.abs(sum));
+    }
+    return max;
+  }
+
+  /**
+   * Power iteration for the largest eigenvalue of Q, padded by a few percent since it is used as
+   * a step size bound.
+   */
+  private double largestEigenvalue() {
+    double[] v = y, w = qx;
+    for (int i = 0; i < n; ++ i) {
+      v[i] = 1. + (i % 7) * .1;
+    }
+    double lambda = 0.;
+    for (int iter = 0; iter < kPowerIterations; ++ iter) {
+      double norm = 0.;
+      for (int i = 0; i < n; ++ i) {
+        norm += v[i] * v[i];
+      }
+      norm = Math.sqrt(norm);
+      if (norm == 0.) {
+        return 0.;
+      }
+      for (int i = 0; i < n; ++ i) {
+        v[i] /= norm;
+      }
+      q.multiply(v, w);
+      lambda = 0.;
+      for (int i = 0; i < n; ++ i) {
+        lambda += v[i] * w[i];
+      }
+      System.arraycopy(w, 0, v, 0, n);
+    }
+    return 1.05 * Math.abs(lambda);
+  }
+
+  /**
+   * Bound on the largest eigenvalue of A'A from the row norms and overlaps (Gershgorin on AA').
+   */
+  private double largestRowGram() {
+    double[] colSum = new double[n];
+    for (int k = 0; k < m; ++ k) {
+      for (int l = 0; l < rowIndices[k].length; ++ l) {
+        colSum[rowIndices[k][l]] += Math.abs(rowCoeffs[k][l]);
+      }
+    }
+    double max = 0.;
+    for (int k = 0; k < m; ++ k) {
+      double sum = 0.;
+      for (int l = 0; l < rowIndices[k].length; ++ l) {
+        sum += Math.abs(rowCoeffs[k][l]) * colSum[rowIndices[k][l]];
+      }
+      max = Math.max(max, sum);
+    }
+    return max;
+  }
+
+  /**
+   * @return the current iterate, not a copy
+   */
+  public double[] getSolution() {
+    return x;
+  }
+
+  public double[] getMultipliers() {
+    return mult;
+  }
+
+  /**
+   * @return x' Q x + c' x at the current iterate
+   */
+  public double getObjective() {
+    q.multiply(x, qx);
+    double value = 0.;
+    for (int i = 0; i < n; ++ i) {
+      value += x[i] * (qx[i] + c[i]);
+    }
+    return value;
+  }
+
+  /**
+   * @return number of gradient steps of the last solve
+   */
+  public int getIterationCount() {
+    return iterationCount;
+  }
+}
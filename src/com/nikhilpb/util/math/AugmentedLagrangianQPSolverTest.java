@@ -0,0 +1,93 @@
+package com.nikhilpb.util.math;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Projection on the probability simplex, whose solution is known in closed form, solved cold and
+ * warm started.
+ */
+public class AugmentedLagrangianQPSolverTest {
+  private static final int kSize = 50;
+  private static final double kTol = 1E-4;
+
+  @Test
+  public void testSimplexProjection() throws Exception {
+    QuadraticForm identity = new QuadraticForm() {
+      @Override
+      public int size() {
+        return kSize;
+      }
+
+      @Override
+      public void multiply(double[] x, double[] out) {
+        System.arraycopy(x, 0, out, 0, kSize);
+      }
+    };
+    ConvexSet unitBox = new ConvexSet() {
+      @Override
+      public void project(double[] x) {
+        for (int i = 0; i < x.length; ++ i) {
+          x[i] = Math.min(1., Math.max(0., x[i]));
+        }
+      }
+    };
+    int[][] indices = {new int[kSize]};
+    double[][] coeffs = {new double[kSize]};
+    for (int i = 0; i < kSize; ++ i) {
+      indices[0][i] = i;
+      coeffs[0][i] = 1.;
+    }
+    double[] rhs = {1.};
+    Random random = new Random(1l);
+    double[] point = new double[kSize];
+    for (int i = 0; i < kSize; ++ i) {
+      point[i] = random.nextGaussian() * .2;
+    }
+    AugmentedLagrangianQPSolver solver = new AugmentedLagrangianQPSolver(identity, linearTerm(point), indices,
+                                                                         coeffs, rhs, unitBox,
+                                                                         new AugmentedLagrangianQPSolver.Config());
+    boolean solved = solver.solve();
+    assert solved;
+    checkProjection(solver.getSolution(), point);
+    int coldIterations = solver.getIterationCount();
+    for (int i = 0; i < kSize; ++ i) {
+      point[i] += random.nextGaussian() * .001;
+    }
+    solver.setLinearTerm(linearTerm(point));
+    solved = solver.solve();
+    assert solved;
+    checkProjection(solver.getSolution(), point);
+    assert solver.getIterationCount() < coldIterations;
+  }
+
+  /**
+   * ||x - point||^2 = x'x - 2 point'x + const
+   */
+  private static double[] linearTerm(double[] point) {
+    double[] c = new double[point.length];
+    for (int i = 0; i < point.length; ++ i) {
+      c[i] = - 2. * point[i];
+    }
+    return c;
+  }
+
+  private static void checkProjection(double[] x, double[] point) {
+    double[] sorted = point.clone();
+    Arrays.sort(sorted);
+    double sum = 0., shift = 0.;
+    for (int k = sorted.length - 1; k >= 0; -- k) {
+      sum += sorted[k];
+      double candidate = (sum - 1.) / (sorted.length - k);
+      if (k == 0 || sorted[k - 1] <= candidate) {
+        shift = candidate;
+        break;
+      }
+    }
+    for (int i = 0; i < x.length; ++ i) {
+      assert Math.abs(x[i] - Math.max(0., point[i] - shift)) < kTol;
+    }
+  }
+}
@@ -0,0 +1,11 @@
+package com.nikhilpb.util.math;
+
+/**
+ * Closed convex set with a cheap Euclidean projection.
+ */
+public interface ConvexSet {
+  /**
+   * Replaces x by its Euclidean projection on the set.
+   */
+  public void project(double[] x);
+}
@@ -12,10 +12,59 @@ import java.util.Random;
  * To change this template use File | Settings | File Templates.
  */
 public final class Distributions {
+  public enum RandomType {
+    JAVA, XOROSHIRO
+  }
+
+  private static RandomType randomType = randomTypeFromString(System.getProperty("rng", "java"));
+
+  public static RandomType randomTypeFromString(String typeName) {
+    if (typeName.equals("java")) {
+      return RandomType.JAVA;
+    } else if (typeName.equals("xoroshiro")) {
+      return RandomType.XOROSHIRO;
+    } else {
+      throw new RuntimeException("unknown random type: " + typeName);
+    }
+  }
+
+  /**
+   * Sets the generator returned by newRandom. The default is java.util.Random, which keeps
+   * earlier results reproducible; it can also be chosen with the rng system property.
+   */
+  public static void setRandomType(RandomType type) {
+    randomType = type;
+  }
+
+  public static RandomType getRandomType() {
+    return randomType;
+  }
+
+  /**
+   * Source of randomness for all the samplers.
+   *
+   * @param seed the seed
+   * @return a new generator of the configured type
+   */
+  public static Random newRandom(long seed) {
+    switch (randomType) {
+      case XOROSHIRO:
+        return new FastRandom(seed);
+      default:
+        return new Random(seed);
+    }
+  }
+
+  /**
+   * Multivariate Gaussian generator. The square root of the covariance is kept as a flat row-major
+   * array and draws are written into a caller supplied buffer, so sampling allocates nothing.
+   */
   public static class GaussianVectorGen {
-    private Matrix mean, sqrtSigma;
+    private Matrix mean;
+    private double[] meanArray, sqrtSigma, normals;
     private Random random;
     private int size;
+    private boolean antithetic = false;
 
     public GaussianVectorGen(Matrix mean, PSDMatrix sigma, long seed) {
       if (mean.getColumnDimension() != 1) {
@@ -23,27 +72,39 @@ public final class Distributions {
       }
 
       this.mean = mean;
-      sqrtSigma = sigma.sqrt();
-      if (sqrtSigma.getRowDimension() != mean.getRowDimension())
+      Matrix sqrtMat = sigma.sqrt();
+      if (sqrtMat.getRowDimension() != mean.getRowDimension())
         throw new IllegalArgumentException("mean and sigma dimensions don't match");
-      size = sqrtSigma.getRowDimension();
-      random = new Random(seed);
+      size = sqrtMat.getRowDimension();
+      meanArray = mean.getColumnPackedCopy();
+      sqrtSigma = sqrtMat.getRowPackedCopy();
+      normals = new double[size];
+      random = newRandom(seed);
     }
 
-    private Matrix standardNormal() {
-      double[][] outVec = new double[mean.getRowDimension()][1];
-      for (int i = 0; i < outVec.length; ++ i) {
-        outVec[i][0] = random.nextGaussian();
-      }
-      return new Matrix(outVec);
+    public double[] nextValue() {
+      double[] out = new double[size];
+      nextValue(out);
+      return out;
     }
 
-    public double[] nextValue() {
-      Matrix out = standardNormal();
-      out = sqrtSigma.times(out);
-      out = out.plus(mean);
-      out = out.transpose();
-      return out.getArray()[0];
+    /**
+     * Fills out with the next draw. Not safe to share between threads.
+     *
+     * @param out buffer of length size
+     */
+    public void nextValue(double[] out) {
+      for (int i = 0; i < size; ++ i) {
+        normals[i] = antithetic ? - random.nextGaussian() : random.nextGaussian();
+      }
+      for (int i = 0; i < size; ++ i) {
+        double s = 0.;
+        int offset = i * size;
+        for (int k = 0; k < size; ++ k) {
+          s += sqrtSigma[offset + k] * normals[k];
+        }
+        out[i] = s + meanArray[i];
+      }
     }
 
     public int size() {
@@ -51,7 +112,16 @@ public final class Distributions {
     }
 
     public void resetSeed(long seed) {
-      random = new Random(seed);
+      resetSeed(seed, false);
+    }
+
+    /**
+     * Resets the seed. With antithetic set, every standard normal draw is negated, so that the
+     * stream mirrors the one of the same seed around the mean.
+     */
+    public void resetSeed(long seed, boolean antithetic) {
+      random = newRandom(seed);
+      this.antithetic = antithetic;
     }
 
     public Matrix getMean() {
@@ -3,6 +3,8 @@ package com.nikhilpb.util.math;
 import Jama.Matrix;
 import org.junit.Test;
 
+import java.util.Random;
+
 /**
  * Created with IntelliJ IDEA.
  * User: nikhilpb
@@ -40,4 +42,26 @@ public class DistributionsTest {
     assert Math.abs(sumsq[1] - sigmaVec[1][1]) < kTol;
     assert Math.abs(cov - sigmaVec[0][1]) < kTol;
   }
+
+  @Test
+  public void testMatchesMatrixGen() throws Exception {
+    double[][] meanVec = {{1.}, {0.}, {-2.}}, sigmaVec = {{5., 1., .5}, {1., 1., .2}, {.5, .2, 2.}};
+    Matrix mean = new Matrix(meanVec);
+    PSDMatrix sigma = new PSDMatrix(sigmaVec);
+    Distributions.GaussianVectorGen gen = new Distributions.GaussianVectorGen(mean, sigma, 7l);
+    Random random = new Random(7l);
+    Matrix sqrtSigma = sigma.sqrt();
+    double[] sample = new double[3];
+    for (int t = 0; t < 100; ++ t) {
+      gen.nextValue(sample);
+      double[][] normals = new double[3][1];
+      for (int i = 0; i < 3; ++ i) {
+        normals[i][0] = random.nextGaussian();
+      }
+      double[] expected = sqrtSigma.times(new Matrix(normals)).plus(mean).getColumnPackedCopy();
+      for (int i = 0; i < 3; ++ i) {
+        assert sample[i] == expected[i];
+      }
+    }
+  }
 }
@@ -0,0 +1,59 @@
+package com.nikhilpb.util.math;
+
+import org.junit.Test;
+
+/**
+ * Moments and tails of the ziggurat normals and stream independence of FastRandom.
+ */
+public class FastRandomTest {
+  private static final int kSampleCount = 1000000;
+  private static final double kTol = 0.01;
+
+  @Test
+  public void testGaussian() throws Exception {
+    FastRandom random = new FastRandom(1l);
+    double sum = 0., sumSq = 0., sumFourth = 0.;
+    int beyondOne = 0, beyondTwo = 0, beyondThree = 0;
+    for (int i = 0; i < kSampleCount; ++ i) {
+      double x = random.nextGaussian();
+      sum += x;
+      sumSq += x * x;
+      sumFourth += x * x * x * x;
+      double abs = Math.abs(x);
+      beyondOne += abs > 1. ? 1 : 0;
+      beyondTwo += abs > 2. ? 1 : 0;
+      beyondThree += abs > 3.5 ? 1 : 0;
+    }
+    double n = (double) kSampleCount;
+    assert Math.abs(sum / n) < kTol;
+    assert Math.abs(sumSq / n - 1.) < kTol;
+    assert Math.abs(sumFourth / n - 3.) < 5 * kTol;
+    assert Math.abs(beyondOne / n - 0.3173) < 2e-3;
+    assert Math.abs(beyondTwo / n - 0.0455) < 1e-3;
+    assert Math.abs(beyondThree / n - 4.65e-4) < 1e-4;
+  }
+
+  @Test
+  public void testStreams() throws Exception {
+    FastRandom random = new FastRandom(1l), same = new FastRandom(1l);
+    for (int i = 0; i < 100; ++ i) {
+      assert random.nextLong() == same.nextLong();
+    }
+    FastRandom jumped = random.copy();
+    jumped.jump();
+    FastRandom split = random.split();
+    int equal = 0;
+    for (int i = 0; i < 1000; ++ i) {
+      long value = random.nextLong();
+      equal += (value == jumped.nextLong() ? 1 : 0) + (value == split.nextLong() ? 1 : 0);
+    }
+    assert equal == 0;
+    double sum = 0.;
+    for (int i = 0; i < kSampleCount; ++ i) {
+      double u = random.nextDouble();
+      assert u >= 0. && u < 1.;
+      sum += u;
+    }
+    assert Math.abs(sum / kSampleCount - .5) < kTol;
+  }
+}
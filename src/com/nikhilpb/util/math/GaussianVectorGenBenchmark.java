@@ -0,0 +1,54 @@
+package com.nikhilpb.util.math;
+
+import Jama.Matrix;
+
+import java.util.Random;
+
+/**
+ * Timing comparison of GaussianVectorGen against the Jama Matrix based sampling it replaced.
+ * Usage: GaussianVectorGenBenchmark [dimension] [draws]
+ */
+public class GaussianVectorGenBenchmark {
+  private static final int kWarmupRounds = 3, kRounds = 5;
+
+  public static void main(String[] args) {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    int draws = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+    double[][] meanArray = new double[n][1], sigmaArray = new double[n][n];
+    for (int i = 0; i < n; ++ i) {
+      meanArray[i][0] = .1 * i;
+      for (int j = 0; j < n; ++ j) {
+        sigmaArray[i][j] = i == j ? 1. : .3;
+      }
+    }
+    Matrix mean = new Matrix(meanArray);
+    PSDMatrix sigma = new PSDMatrix(sigmaArray);
+    Matrix sqrtSigma = sigma.sqrt();
+    Distributions.GaussianVectorGen gen = new Distributions.GaussianVectorGen(mean, sigma, 0l);
+    Random random = new Random(0l);
+    double[] out = new double[n];
+    double sink = 0.;
+    for (int r = 0; r < kWarmupRounds + kRounds; ++ r) {
+      long start = System.nanoTime();
+      for (int d = 0; d < draws; ++ d) {
+        double[][] normals = new double[n][1];
+        for (int i = 0; i < n; ++ i) {
+          normals[i][0] = random.nextGaussian();
+        }
+        sink += sqrtSigma.times(new Matrix(normals)).plus(mean).transpose().getArray()[0][0];
+      }
+      long matrixTime = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int d = 0; d < draws; ++ d) {
+        gen.nextValue(out);
+        sink += out[0];
+      }
+      long arrayTime = System.nanoTime() - start;
+      if (r >= kWarmupRounds) {
+        System.out.printf("round %d - matrix: %.1f ns/draw, array: %.1f ns/draw\n", r - kWarmupRounds,
+                                 matrixTime / (double) draws, arrayTime / (double) draws);
+      }
+    }
+    System.out.println("checksum: " + sink);
+  }
+}
@@ -0,0 +1,127 @@
+package com.nikhilpb.util.math;
+
+import java.util.Arrays;
+
+/**
+ * Rectangular assignment by the Hungarian algorithm in its shortest augmenting path form
+ * (Jonker-Volgenant). The weights are clipped at zero and the matrix is oriented so that there are
+ * no more rows than columns; every row is then assigned at cost -max(w_ij, 0), which has the same
+ * optimum as the partial matching, and the assignments of zero clipped weight are dropped. Each
+ * row is added by one Dijkstra search over the reduced costs, so the running time is
+ * O(<i>n</i><sup>2</sup><i>m</i>) for <i>n</i> &lt;= <i>m</i>, with no model building. The work
+ * arrays are kept between calls, so a solver should be reused, but not shared between threads.
+ */
+public class HungarianAssignmentSolver implements AssignmentSolver {
+  private int[] rowMatches = new int[0], columnMatches = new int[0];
+  private double weight;
+  // work arrays of the oriented problem, indexed from 1 with 0 as the virtual root
+  private double[] u = new double[1], v = new double[1], minSlack = new double[1];
+  private int[] columnOwner = new int[1], way = new int[1];
+  private boolean[] used = new boolean[1];
+
+  @Override
+  public double computeMax(double[][] w) {
+    int rowCount = w.length, columnCount = rowCount == 0 ? 0 : w[0].length;
+    for (int i = 0; i < rowCount; ++ i) {
+      if (w[i].length != columnCount) {
+        throw new IllegalArgumentException("inappropriate weights array");
+      }
+    }
+    rowMatches = new int[rowCount];
+    columnMatches = new int[columnCount];
+    Arrays.fill(rowMatches, - 1);
+    Arrays.fill(columnMatches, - 1);
+    weight = 0.;
+    if (rowCount == 0 || columnCount == 0) {
+      return weight;
+    }
+    boolean transpose = rowCount > columnCount;
+    int n = transpose ? columnCount : rowCount, m = transpose ? rowCount : columnCount;
+    ensureCapacity(n, m);
+    Arrays.fill(u, 0, n + 1, 0.);
+    Arrays.fill(v, 0, m + 1, 0.);
+    Arrays.fill(columnOwner, 0, m + 1, 0);
+    for (int i = 1; i <= n; ++ i) {
+      columnOwner[0] = i;
+      int j0 = 0;
+      Arrays.fill(minSlack, 0, m + 1, Double.POSITIVE_INFINITY);
+      Arrays.fill(used, 0, m + 1, false);
+      do {
+        used[j0] = true;
+        int i0 = columnOwner[j0], j1 = 0;
+        double delta = Double.POSITIVE_INFINITY;
+        for (int j = 1; j <= m; ++ j) {
+          if (! used[j]) {
+            double reduced = cost(w, transpose, i0 - 1, j - 1) - u[i0] - v[j];
+            if (reduced < minSlack[j]) {
+              minSlack[j] = reduced;
+              way[j] = j0;
+            }
+            if (minSlack[j] < delta) {
+              delta = minSlack[j];
+              j1 = j;
+            }
+          }
+        }
+        for (int j = 0; j <= m; ++ j) {
+          if (used[j]) {
+            u[columnOwner[j]] += delta;
+            v[j] -= delta;
+          } else {
+            minSlack[j] -= delta;
+          }
+        }
+        j0 = j1;
+      } while (columnOwner[j0] != 0);
+      do {
+        int j1 = way[j0];
+        columnOwner[j0] = columnOwner[j1];
+        j0 = j1;
+      } while (j0 != 0);
+    }
+    for (int j = 1; j <= m; ++ j) {
+      int i = columnOwner[j];
+      if (i == 0 || cost(w, transpose, i - 1, j - 1) >= 0.) {
+        continue;
+      }
+      int row = transpose ? j - 1 : i - 1, column = transpose ? i - 1 : j - 1;
+      rowMatches[row] = column;
+      columnMatches[column] = row;
+      weight += w[row][column];
+    }
+    return weight;
+  }
+
+  private static double cost(double[][] w, boolean transpose, int i, int j) {
+    double weight = transpose ? w[j][i] : w[i][j];
+    return weight > 0. ? - weight : 0.;
+  }
+
+  private void ensureCapacity(int n, int m) {
+    if (u.length < n + 1) {
+      u = new double[n + 1];
+    }
+    if (v.length < m + 1) {
+      v = new double[m + 1];
+      minSlack = new double[m + 1];
+      columnOwner = new int[m + 1];
+      way = new int[m + 1];
+      used = new boolean[m + 1];
+    }
+  }
+
+  @Override
+  public int[] getRowMatches() {
+    return rowMatches;
+  }
+
+  @Override
+  public int[] getColumnMatches() {
+    return columnMatches;
+  }
+
+  @Override
+  public double getMatchingWeight() {
+    return weight;
+  }
+}
@@ -0,0 +1,43 @@
+package com.nikhilpb.util.math;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests for the rectangular assignment solver, against enumeration of all the partial matchings.
+ */
+public class HungarianAssignmentSolverTest {
+  @Test
+  public void testAgainstEnumeration() throws Exception {
+    Random random = new Random(11l);
+    HungarianAssignmentSolver solver = new HungarianAssignmentSolver();
+    for (int trial = 0; trial < 200; ++ trial) {
+      int rowCount = random.nextInt(5), columnCount = random.nextInt(5);
+      double[][] w = new double[rowCount][columnCount];
+      for (int i = 0; i < rowCount; ++ i) {
+        for (int j = 0; j < columnCount; ++ j) {
+          w[i][j] = random.nextInt(7) - 3.;
+        }
+      }
+      double weight = solver.computeMax(w);
+      MatchingChecks.check(w, solver.getRowMatches(), solver.getColumnMatches(), weight,
+                           bestWeight(w, 0, new boolean[columnCount]));
+    }
+  }
+
+  private static double bestWeight(double[][] w, int row, boolean[] usedColumns) {
+    if (row == w.length) {
+      return 0.;
+    }
+    double best = bestWeight(w, row + 1, usedColumns);
+    for (int j = 0; j < usedColumns.length; ++ j) {
+      if (! usedColumns[j]) {
+        usedColumns[j] = true;
+        best = Math.max(best, w[row][j] + bestWeight(w, row + 1, usedColumns));
+        usedColumns[j] = false;
+      }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,315 @@
+package com.nikhilpb.util.math;
+
+import com.nikhilpb.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Maximum-weight partial matching of a bipartite graph whose rows and columns come and go, as the
+ * items of a matching pool do between periods. The solver keeps a matching and dual potentials
+ * u, v &gt;= 0 with u_i + v_j &gt;= w_ij, tight on the matched pairs, and zero on every unmatched
+ * row and column, which together certify optimality. Removing a matched pair keeps all of this;
+ * removing one end of a pair or adding a row or column only breaks it at that vertex. A new vertex
+ * gets the smallest feasible potential, and solve repairs every unmatched vertex of positive
+ * potential by one shortest augmenting path search that either matches it or brings its potential
+ * to zero. When a few items change between periods, this costs a few searches instead of a full
+ * assignment.
+ * <p/>
+ * Rows and columns are named by ids chosen by the caller, and the weight of each pair is asked
+ * for once, when the later of the two is added. Pairs of nonpositive weight are left unmatched,
+ * as in HungarianAssignmentSolver. Not safe for concurrent use.
+ */
+public class IncrementalAssignmentSolver {
+  private static final double kTol = 1E-12;
+  private static final int kRow = 0, kColumn = 1;
+
+  /**
+   * Weights of the pairs, by the ids of the row and the column.
+   */
+  public interface Weights {
+    public double weight(int rowId, int columnId);
+  }
+
+  private final Weights weights;
+  // per side: slot to id, activity, potential and the slot of the mate on the other side or -1
+  private final int[][] ids = new int[2][0], mates = new int[2][0];
+  private final boolean[][] active = new boolean[2][0];
+  private final double[][] potentials = new double[2][0];
+  private final int[] slotCount = new int[2];
+  private final ArrayList<ArrayList<Integer>> freeSlots = new ArrayList<ArrayList<Integer>>(),
+          pending = new ArrayList<ArrayList<Integer>>();
+  private final ArrayList<HashMap<Integer, Integer>> slots = new ArrayList<HashMap<Integer, Integer>>();
+  // w[rowSlot][columnSlot]
+  private double[][] w = new double[0][0];
+  // scratch of the search
+  private boolean[][] inTree = new boolean[2][0];
+  private double[] slack = new double[0];
+  private int[] from = new int[0], tree = new int[0];
+
+  public IncrementalAssignmentSolver(Weights weights) {
+    this.weights = weights;
+    for (int side = 0; side < 2; ++ side) {
+      freeSlots.add(new ArrayList<Integer>());
+      pending.add(new ArrayList<Integer>());
+      slots.add(new HashMap<Integer, Integer>());
+    }
+  }
+
+  public void addRow(int id) {
+    add(kRow, id);
+  }
+
+  public void addColumn(int id) {
+    add(kColumn, id);
+  }
+
+  public void removeRow(int id) {
+    remove(kRow, id);
+  }
+
+  public void removeColumn(int id) {
+    remove(kColumn, id);
+  }
+
+  /**
+   * Repairs the matching after the rows and columns added and removed since the last call.
+   *
+   * @return the weight of the matching
+   */
+  public double solve() {
+    for (int side = 0; side < 2; ++ side) {
+      ArrayList<Integer> sidePending = pending.get(side);
+      for (int k = 0; k < sidePending.size(); ++ k) {
+        int slot = sidePending.get(k);
+        if (active[side][slot] && mates[side][slot] < 0 && potentials[side][slot] > kTol) {
+          search(side, slot);
+        }
+      }
+      sidePending.clear();
+    }
+    // pairs of nonpositive weight are tight only at zero potentials, so they can be dropped
+    double total = 0.;
+    for (int i = 0; i < slotCount[kRow]; ++ i) {
+      int j = mates[kRow][i];
+      if (j < 0) {
+        continue;
+      }
+      if (w[i][j] <= 0.) {
+        mates[kRow][i] = - 1;
+        mates[kColumn][j] = - 1;
+      } else {
+        total += w[i][j];
+      }
+    }
+    return total;
+  }
+
+  /**
+   * @return the id of the column matched to the row, or -1
+   */
+  public int getRowMatch(int rowId) {
+    int j = mates[kRow][slot(kRow, rowId)];
+    return j < 0 ? - 1 : ids[kColumn][j];
+  }
+
+  /**
+   * @return the matched pairs as (row id, column id), in the order of the row slots
+   */
+  public ArrayList<Pair<Integer, Integer>> getMatchedPairs() {
+    ArrayList<Pair<Integer, Integer>> pairs = new ArrayList<Pair<Integer, Integer>>();
+    for (int i = 0; i < slotCount[kRow]; ++ i) {
+      if (active[kRow][i] && mates[kRow][i] >= 0) {
+        pairs.add(new Pair<Integer, Integer>(ids[kRow][i], ids[kColumn][mates[kRow][i]]));
+      }
+    }
+    return pairs;
+  }
+
+  private int slot(int side, int id) {
+    Integer slot = slots.get(side).get(id);
+    if (slot == null) {
+      throw new IllegalArgumentException("no " + (side == kRow ? "row" : "column") + " with id " + id);
+    }
+    return slot;
+  }
+
+  private double weight(int side, int a, int b) {
+    return side == kRow ? w[a][b] : w[b][a];
+  }
+
+  private void add(int side, int id) {
+    if (slots.get(side).containsKey(id)) {
+      throw new IllegalArgumentException("id " + id + " is already present");
+    }
+    ArrayList<Integer> free = freeSlots.get(side);
+    int slot = free.isEmpty() ? slotCount[side] ++ : free.remove(free.size() - 1);
+    ensureCapacity();
+    slots.get(side).put(id, slot);
+    ids[side][slot] = id;
+    active[side][slot] = true;
+    mates[side][slot] = - 1;
+    int other = 1 - side;
+    double potential = 0.;
+    for (int b = 0; b < slotCount[other]; ++ b) {
+      if (active[other][b]) {
+        double weight = side == kRow ? weights.weight(id, ids[other][b]) : weights.weight(ids[other][b], id);
+        if (side == kRow) {
+          w[slot][b] = weight;
+        } else {
+          w[b][slot] = weight;
+        }
+        potential = Math.max(potential, weight - potentials[other][b]);
+      }
+    }
+    potentials[side][slot] = potential;
+    if (potential > kTol) {
+      pending.get(side).add(slot);
+    }
+  }
+
+  private void remove(int side, int id) {
+    int slot = slot(side, id), other = 1 - side, mate = mates[side][slot];
+    if (mate >= 0) {
+      mates[other][mate] = - 1;
+      if (potentials[other][mate] > kTol) {
+        pending.get(other).add(mate);
+      }
+    }
+    slots.get(side).remove(id);
+    active[side][slot] = false;
+    mates[side][slot] = - 1;
+    potentials[side][slot] = 0.;
+    freeSlots.get(side).add(slot);
+  }
+
+  private void ensureCapacity() {
+    int rows = w.length, columns = rows == 0 ? 0 : w[0].length;
+    if (slotCount[kRow] <= rows && slotCount[kColumn] <= columns) {
+      return;
+    }
+    int newRows = Math.max(slotCount[kRow], 2 * rows), newColumns = Math.max(slotCount[kColumn], 2 * columns);
+    newRows = Math.max(newRows, 8);
+    newColumns = Math.max(newColumns, 8);
+    double[][] newW = new double[newRows][newColumns];
+    for (int i = 0; i < rows; ++ i) {
+      System.arraycopy(w[i], 0, newW[i], 0, columns);
+    }
+    w = newW;
+    int[] capacity = {newRows, newColumns};
+    for (int side = 0; side < 2; ++ side) {
+      int oldLength = ids[side].length;
+      ids[side] = Arrays.copyOf(ids[side], capacity[side]);
+      mates[side] = Arrays.copyOf(mates[side], capacity[side]);
+      active[side] = Arrays.copyOf(active[side], capacity[side]);
+      potentials[side] = Arrays.copyOf(potentials[side], capacity[side]);
+      Arrays.fill(mates[side], oldLength, capacity[side], - 1);
+      inTree[side] = new boolean[capacity[side]];
+    }
+    int maxCapacity = Math.max(newRows, newColumns);
+    slack = new double[maxCapacity];
+    from = new int[maxCapacity];
+    tree = new int[maxCapacity];
+  }
+
+  /**
+   * Grows a tree of tight alternating paths from the unmatched vertex root of positive potential,
+   * lowering the potentials of its vertices on the root side and raising them on the other, until
+   * either an unmatched vertex of the other side is reached and the path to it is augmented, or a
+   * vertex on the root side reaches zero potential and the path to it is flipped so that it becomes
+   * the unmatched one.
+   */
+  private void search(int sideA, int root) {
+    int sideB = 1 - sideA;
+    int countA = slotCount[sideA], countB = slotCount[sideB];
+    double[] potA = potentials[sideA], potB = potentials[sideB];
+    int[] mateA = mates[sideA], mateB = mates[sideB];
+    boolean[] activeB = active[sideB], treeA = inTree[sideA], treeB = inTree[sideB];
+    Arrays.fill(treeA, 0, countA, false);
+    Arrays.fill(treeB, 0, countB, false);
+    // tree holds the vertices of sideA in the tree
+    int treeSize = 0;
+    tree[treeSize ++] = root;
+    treeA[root] = true;
+    for (int b = 0; b < countB; ++ b) {
+      if (activeB[b]) {
+        slack[b] = potA[root] + potB[b] - weight(sideA, root, b);
+        from[b] = root;
+      }
+    }
+    while (true) {
+      double delta = Double.POSITIVE_INFINITY;
+      int bestB = - 1, bestA = - 1;
+      for (int b = 0; b < countB; ++ b) {
+        if (activeB[b] && ! treeB[b] && slack[b] < delta) {
+          delta = slack[b];
+          bestB = b;
+        }
+      }
+      for (int k = 0; k < treeSize; ++ k) {
+        if (potA[tree[k]] < delta) {
+          delta = potA[tree[k]];
+          bestA = tree[k];
+        }
+      }
+      delta = Math.max(delta, 0.);
+      for (int k = 0; k < treeSize; ++ k) {
+        potA[tree[k]] -= delta;
+      }
+      for (int b = 0; b < countB; ++ b) {
+        if (activeB[b]) {
+          if (treeB[b]) {
+            potB[b] += delta;
+          } else {
+            slack[b] -= delta;
+          }
+        }
+      }
+      if (bestA >= 0) {
+        potA[bestA] = 0.;
+        if (bestA != root) {
+          int b = mateA[bestA];
+          mateA[bestA] = - 1;
+          mateB[b] = - 1;
+          augment(sideA, root, b);
+        }
+        return;
+      }
+      if (mateB[bestB] < 0) {
+        augment(sideA, root, bestB);
+        return;
+      }
+      treeB[bestB] = true;
+      int a = mateB[bestB];
+      treeA[a] = true;
+      tree[treeSize ++] = a;
+      for (int b = 0; b < countB; ++ b) {
+        if (activeB[b] && ! treeB[b]) {
+          double s = potA[a] + potB[b] - weight(sideA, a, b);
+          if (s < slack[b]) {
+            slack[b] = s;
+            from[b] = a;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Flips the tree path from root to the unmatched vertex b on the other side.
+   */
+  private void augment(int sideA, int root, int b) {
+    int[] mateA = mates[sideA], mateB = mates[1 - sideA];
+    int cur = b;
+    while (true) {
+      int a = from[cur], next = mateA[a];
+      mateA[a] = cur;
+      mateB[cur] = a;
+      if (a == root) {
+        return;
+      }
+      cur = next;
+    }
+  }
+}
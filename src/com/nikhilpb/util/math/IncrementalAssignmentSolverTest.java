@@ -0,0 +1,83 @@
+package com.nikhilpb.util.math;
+
+import com.nikhilpb.util.Pair;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for the incremental assignment solver, against a fresh assignment of the pool after every
+ * round of arrivals, departures and matches.
+ */
+public class IncrementalAssignmentSolverTest {
+  @Test
+  public void testAgainstHungarian() throws Exception {
+    final Random random = new Random(5l);
+    final double[][] weights = new double[400][400];
+    for (int i = 0; i < weights.length; ++ i) {
+      for (int j = 0; j < weights[i].length; ++ j) {
+        weights[i][j] = random.nextInt(21) - 8.;
+      }
+    }
+    IncrementalAssignmentSolver solver = new IncrementalAssignmentSolver(new IncrementalAssignmentSolver.Weights() {
+      @Override
+      public double weight(int rowId, int columnId) {
+        return weights[rowId][columnId];
+      }
+    });
+    HungarianAssignmentSolver hungarian = new HungarianAssignmentSolver();
+    ArrayList<Integer> rows = new ArrayList<Integer>(), columns = new ArrayList<Integer>();
+    int nextRow = 0, nextColumn = 0;
+    for (int round = 0; round < 60; ++ round) {
+      for (int k = rows.size() - 1; k >= 0; -- k) {
+        if (random.nextInt(5) == 0) {
+          solver.removeRow(rows.remove(k));
+        }
+      }
+      for (int k = columns.size() - 1; k >= 0; -- k) {
+        if (random.nextInt(5) == 0) {
+          solver.removeColumn(columns.remove(k));
+        }
+      }
+      for (int k = random.nextInt(6); k > 0; -- k) {
+        solver.addRow(nextRow);
+        rows.add(nextRow ++);
+      }
+      for (int k = random.nextInt(6); k > 0; -- k) {
+        solver.addColumn(nextColumn);
+        columns.add(nextColumn ++);
+      }
+      double weight = solver.solve();
+      double[][] w = new double[rows.size()][columns.size()];
+      for (int i = 0; i < rows.size(); ++ i) {
+        for (int j = 0; j < columns.size(); ++ j) {
+          w[i][j] = weights[rows.get(i)][columns.get(j)];
+        }
+      }
+      // the matching in the positions of the pool
+      int[] rowMatches = new int[rows.size()], columnMatches = new int[columns.size()];
+      Arrays.fill(rowMatches, - 1);
+      Arrays.fill(columnMatches, - 1);
+      ArrayList<Pair<Integer, Integer>> pairs = solver.getMatchedPairs();
+      for (Pair<Integer, Integer> pair : pairs) {
+        assert solver.getRowMatch(pair.getFirst()) == pair.getSecond();
+        int i = rows.indexOf(pair.getFirst()), j = columns.indexOf(pair.getSecond());
+        assert rowMatches[i] < 0 && columnMatches[j] < 0;
+        rowMatches[i] = j;
+        columnMatches[j] = i;
+      }
+      MatchingChecks.check(w, rowMatches, columnMatches, weight, hungarian.computeMax(w));
+      // matched pairs leave the pool on alternate rounds, the others only depart
+      if (round % 2 == 0) {
+        for (Pair<Integer, Integer> pair : pairs) {
+          solver.removeRow(pair.getFirst());
+          solver.removeColumn(pair.getSecond());
+          rows.remove(pair.getFirst());
+          columns.remove(pair.getSecond());
+        }
+      }
+    }
+  }
+}
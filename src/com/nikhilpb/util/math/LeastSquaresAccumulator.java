@@ -0,0 +1,251 @@
+package com.nikhilpb.util.math;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Streaming least squares. Observations are folded into X'X and X'y as they arrive, so the memory
+ * is O(k^2) for k regressors however many observations there are. Partial accumulators over
+ * disjoint blocks of observations can be merged, which is how the sums are computed in parallel.
+ * Not safe for concurrent use, each thread should fill its own accumulator.
+ */
+public class LeastSquaresAccumulator {
+  private static final int kRowsPerChunk = 8192;
+  private static final double kRankTol = 1E-12;
+  private final int columnCount;
+  // upper triangle of X'X, row-major
+  private final double[] xtx, xty;
+  private long count;
+
+  public LeastSquaresAccumulator(int columnCount) {
+    this.columnCount = columnCount;
+    xtx = new double[columnCount * columnCount];
+    xty = new double[columnCount];
+  }
+
+  /**
+   * Adds the observation y with regressors x.
+   */
+  public void add(double[] x, double y) {
+    for (int i = 0; i < columnCount; ++ i) {
+      double xi = x[i];
+      int offset = i * columnCount;
+      xty[i] += xi * y;
+      for (int j = i; j < columnCount; ++ j) {
+        xtx[offset + j] += xi * x[j];
+      }
+    }
+    ++ count;
+  }
+
+  /**
+   * Adds the observation y with regressors given by a row of a column-packed design matrix, as
+   * filled by BasisSet.evaluate.
+   *
+   * @param xData    column-packed design matrix with rowCount rows
+   * @param rowCount number of rows of the design matrix
+   * @param row      row of the observation
+   */
+  public void add(double[] xData, int rowCount, int row, double y) {
+    for (int i = 0; i < columnCount; ++ i) {
+      double xi = xData[i * rowCount + row];
+      int offset = i * columnCount;
+      xty[i] += xi * y;
+      for (int j = i; j < columnCount; ++ j) {
+        xtx[offset + j] += xi * xData[j * rowCount + row];
+      }
+    }
+    ++ count;
+  }
+
+  /**
+   * Adds the sums of other, which must have the same number of regressors.
+   */
+  public void merge(LeastSquaresAccumulator other) {
+    if (other.columnCount != columnCount) {
+      throw new IllegalArgumentException("number of regressors does not match");
+    }
+    for (int i = 0; i < xtx.length; ++ i) {
+      xtx[i] += other.xtx[i];
+    }
+    for (int i = 0; i < columnCount; ++ i) {
+      xty[i] += other.xty[i];
+    }
+    count += other.count;
+  }
+
+  /**
+   * @return number of observations added
+   */
+  public long getCount() {
+    return count;
+  }
+
+  public int getColumnCount() {
+    return columnCount;
+  }
+
+  /**
+   * Minimizes ||Xw - y||^2 + ridge ||w||^2. The normal equations are scaled to a unit diagonal and
+   * solved by Cholesky. If a pivot falls below kRankTol, that is the design is numerically rank
+   * deficient, the minimum norm solution in the scaled coordinates is computed from an eigenvalue
+   * decomposition instead.
+   *
+   * @param ridge nonnegative ridge penalty, applied to all the coefficients
+   * @return the coefficients
+   */
+  public double[] solve(double ridge) {
+    if (ridge < 0.) {
+      throw new IllegalArgumentException("ridge penalty must be nonnegative");
+    }
+    int n = columnCount;
+    double[] scales = new double[n];
+    for (int i = 0; i < n; ++ i) {
+      double diag = xtx[i * n + i] + ridge;
+      scales[i] = diag > 0. ? 1. / Math.sqrt(diag) : 1.;
+    }
+    double[][] a = new double[n][n];
+    double[] b = new double[n];
+    for (int i = 0; i < n; ++ i) {
+      for (int j = i; j < n; ++ j) {
+        a[i][j] = a[j][i] = scales[i] * scales[j] * (xtx[i * n + j] + (i == j ? ridge : 0.));
+      }
+      b[i] = scales[i] * xty[i];
+    }
+    double[] w = choleskySolve(a, b);
+    if (w == null) {
+      w = minNormSolve(a, b);
+    }
+    for (int i = 0; i < n; ++ i) {
+      w[i] *= scales[i];
+    }
+    return w;
+  }
+
+  /**
+   * @return the solution of a w = b for a with a unit or zero diagonal, or null if a has a pivot
+   * below kRankTol
+   */
+  private static double[] choleskySolve(double[][] a, double[] b) {
+    int n = b.length;
+    double[][] l = new double[n][n];
+    for (int j = 0; j < n; ++ j) {
+      double d = a[j][j];
+      for (int k = 0; k < j; ++ k) {
+        d -= l[j][k] * l[j][k];
+      }
+      if (d <= kRankTol) {
+        return null;
+      }
+      l[j][j] = Math.sqrt(d);
+      for (int i = j + 1; i < n; ++ i) {
+        double s = a[i][j];
+        for (int k = 0; k < j; ++ k) {
+          s -= l[i][k] * l[j][k];
+        }
+        l[i][j] = s / l[j][j];
+      }
+    }
+    double[] w = new double[n];
+    for (int i = 0; i < n; ++ i) {
+      double s = b[i];
+      for (int k = 0; k < i; ++ k) {
+        s -= l[i][k] * w[k];
+      }
+      w[i] = s / l[i][i];
+    }
+    for (int i = n - 1; i >= 0; -- i) {
+      double s = w[i];
+      for (int k = i + 1; k < n; ++ k) {
+        s -= l[k][i] * w[k];
+      }
+      w[i] = s / l[i][i];
+    }
+    return w;
+  }
+
+  private static double[] minNormSolve(double[][] a, double[] b) {
+    int n = b.length;
+    EigenvalueDecomposition eigen = new Matrix(a).eig();
+    double[] values = eigen.getRealEigenvalues();
+    double[][] vectors = eigen.getV().getArray();
+    double maxValue = 0.;
+    for (int i = 0; i < n; ++ i) {
+      maxValue = Math.max(maxValue, values[i]);
+    }
+    double[] w = new double[n];
+    for (int k = 0; k < n; ++ k) {
+      if (values[k] <= kRankTol * maxValue) {
+        continue;
+      }
+      double projection = 0.;
+      for (int i = 0; i < n; ++ i) {
+        projection += vectors[i][k] * b[i];
+      }
+      for (int i = 0; i < n; ++ i) {
+        w[i] += vectors[i][k] * projection / values[k];
+      }
+    }
+    return w;
+  }
+
+  /**
+   * Accumulates the observations over fixed blocks of rows on a fork-join pool and merges the
+   * partial sums in row order, so the result does not depend on the number of threads.
+   *
+   * @param xData       rows of regressors
+   * @param yData       observations
+   * @param threadCount number of worker threads
+   */
+  public static LeastSquaresAccumulator accumulate(final double[][] xData,
+                                                   final double[] yData,
+                                                   int threadCount) {
+    if (xData.length != yData.length) {
+      throw new IllegalArgumentException("numbers of rows and observations do not match");
+    }
+    final int columnCount = xData.length == 0 ? 0 : xData[0].length;
+    int chunkCount = (xData.length + kRowsPerChunk - 1) / kRowsPerChunk;
+    final LeastSquaresAccumulator[] partials = new LeastSquaresAccumulator[chunkCount];
+    final ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+    for (int c = 0; c < chunkCount; ++ c) {
+      final int chunk = c;
+      tasks.add(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          LeastSquaresAccumulator partial = new LeastSquaresAccumulator(columnCount);
+          int end = Math.min(xData.length, (chunk + 1) * kRowsPerChunk);
+          for (int i = chunk * kRowsPerChunk; i < end; ++ i) {
+            partial.add(xData[i], yData[i]);
+          }
+          partials[chunk] = partial;
+        }
+      });
+    }
+    if (chunkCount > 1 && threadCount > 1) {
+      ForkJoinPool pool = new ForkJoinPool(threadCount);
+      try {
+        pool.invoke(new RecursiveAction() {
+          @Override
+          protected void compute() {
+            invokeAll(tasks);
+          }
+        });
+      } finally {
+        pool.shutdown();
+      }
+    } else {
+      for (RecursiveAction task : tasks) {
+        task.invoke();
+      }
+    }
+    LeastSquaresAccumulator result = new LeastSquaresAccumulator(columnCount);
+    for (LeastSquaresAccumulator partial : partials) {
+      result.merge(partial);
+    }
+    return result;
+  }
+}
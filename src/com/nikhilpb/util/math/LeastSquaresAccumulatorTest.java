@@ -0,0 +1,59 @@
+package com.nikhilpb.util.math;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests for the streaming least squares accumulator.
+ */
+public class LeastSquaresAccumulatorTest {
+  private static final double kTol = 1E-6;
+
+  @Test
+  public void testMatchesQR() throws Exception {
+    int rowCount = 20000, columnCount = 4;
+    Random random = new Random(7l);
+    double[][] xData = new double[rowCount][columnCount];
+    double[] yData = new double[rowCount], packed = new double[rowCount * columnCount];
+    for (int i = 0; i < rowCount; ++ i) {
+      xData[i][0] = 1.;
+      for (int j = 1; j < columnCount; ++ j) {
+        xData[i][j] = random.nextGaussian() * j;
+      }
+      yData[i] = 2. - xData[i][1] + .5 * xData[i][3] + random.nextGaussian();
+      for (int j = 0; j < columnCount; ++ j) {
+        packed[j * rowCount + i] = xData[i][j];
+      }
+    }
+    double[] qrWeights = Regression.LinLeastSq(packed, rowCount, yData);
+    double[] weights = Regression.LinLeastSq(xData, yData, 0., 4);
+    LeastSquaresAccumulator first = new LeastSquaresAccumulator(columnCount),
+            second = new LeastSquaresAccumulator(columnCount);
+    for (int i = 0; i < rowCount; ++ i) {
+      (i < 100 ? first : second).add(packed, rowCount, i, yData[i]);
+    }
+    first.merge(second);
+    assert first.getCount() == rowCount;
+    double[] merged = first.solve(0.);
+    for (int j = 0; j < columnCount; ++ j) {
+      assert Math.abs(weights[j] - qrWeights[j]) < kTol;
+      assert Math.abs(merged[j] - qrWeights[j]) < kTol;
+    }
+  }
+
+  @Test
+  public void testRidge() throws Exception {
+    LeastSquaresAccumulator sums = new LeastSquaresAccumulator(2);
+    double[] x = {1., 1.};
+    for (int i = 0; i < 10; ++ i) {
+      sums.add(x, 3.);
+    }
+    // the columns are identical, without a penalty the fit splits evenly
+    double[] weights = sums.solve(0.);
+    assert Math.abs(weights[0] - 1.5) < kTol && Math.abs(weights[1] - 1.5) < kTol;
+    // with the penalty (X'X + I) w = X'y, so 21 w_i = 30
+    weights = sums.solve(1.);
+    assert Math.abs(weights[0] - 30. / 21.) < kTol && Math.abs(weights[1] - 30. / 21.) < kTol;
+  }
+}
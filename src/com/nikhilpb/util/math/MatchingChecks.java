@@ -0,0 +1,43 @@
+package com.nikhilpb.util.math;
+
+/**
+ * Consistency checks of a partial matching shared by the tests of the assignment solvers.
+ */
+final class MatchingChecks {
+  private static final double kTol = 1E-9;
+
+  private MatchingChecks() {
+  }
+
+  /**
+   * Checks that the matching has the weight of the reference optimum, that the row and column
+   * matches are mates of each other, that only pairs of positive weight are matched and that the
+   * weights of the matched pairs sum to the reported weight.
+   *
+   * @param w             weights, w[i][j] for row i and column j
+   * @param rowMatches    column of each row, or -1
+   * @param columnMatches row of each column, or -1
+   * @param weight        weight reported by the solver
+   * @param optimum       weight of a maximum matching found independently
+   */
+  static void check(double[][] w, int[] rowMatches, int[] columnMatches, double weight, double optimum) {
+    assert Math.abs(weight - optimum) < kTol;
+    double sum = 0.;
+    int matchedRows = 0, matchedColumns = 0;
+    for (int i = 0; i < rowMatches.length; ++ i) {
+      if (rowMatches[i] >= 0) {
+        assert columnMatches[rowMatches[i]] == i;
+        assert w[i][rowMatches[i]] > 0.;
+        sum += w[i][rowMatches[i]];
+        ++ matchedRows;
+      }
+    }
+    for (int j = 0; j < columnMatches.length; ++ j) {
+      if (columnMatches[j] >= 0) {
+        ++ matchedColumns;
+      }
+    }
+    assert matchedRows == matchedColumns;
+    assert Math.abs(sum - weight) < kTol;
+  }
+}
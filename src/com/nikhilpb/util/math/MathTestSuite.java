@@ -12,7 +12,13 @@ import org.junit.runners.Suite;
  */
 @RunWith(value = Suite.class)
 @Suite.SuiteClasses(value = {DistributionsTest.class,
+                                    AugmentedLagrangianQPSolverTest.class,
+                                    FastRandomTest.class,
+                                    HungarianAssignmentSolverTest.class,
+                                    IncrementalAssignmentSolverTest.class,
+                                    LeastSquaresAccumulatorTest.class,
                                     PSDMatrixTest.class,
+                                    SparseAssignmentSolverTest.class,
                                     RegressionTest.class})
 public class MathTestSuite {
 }
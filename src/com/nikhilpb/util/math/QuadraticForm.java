@@ -0,0 +1,14 @@
+package com.nikhilpb.util.math;
+
+/**
+ * Symmetric matrix that is only accessed through products with vectors, so that structured
+ * matrices need not be stored densely.
+ */
+public interface QuadraticForm {
+  public int size();
+
+  /**
+   * Computes out = Q x. Must not allocate, it is called in the inner loop of the QP solvers.
+   */
+  public void multiply(double[] x, double[] out);
+}
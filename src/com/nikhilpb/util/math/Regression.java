@@ -1,6 +1,8 @@
 package com.nikhilpb.util.math;
 
 import Jama.Matrix;
+import Jama.QRDecomposition;
+import Jama.SingularValueDecomposition;
 
 /**
  * Created with IntelliJ IDEA.
@@ -10,14 +12,96 @@ import Jama.Matrix;
  * To change this template use File | Settings | File Templates.
  */
 public class Regression {
+  private static final double kRankTol = 1E-10;
+
+  /**
+   * Least squares fit by QR, falling back to the SVD for rank deficient designs, see the
+   * column-packed overload.
+   *
+   * @param xData rows of regressors
+   * @param yData observations
+   * @return the coefficients
+   */
   public static double[] LinLeastSq(double[][] xData, double[] yData) {
-    Matrix xMatrix = new Matrix(xData);
-    double[][] yDataAlt = new double[yData.length][1];
-    for (int i = 0; i < yData.length; ++ i) {
-      yDataAlt[i][0] = yData[i];
+    int rowCount = xData.length, columnCount = rowCount == 0 ? 0 : xData[0].length;
+    double[] packed = new double[rowCount * columnCount];
+    for (int i = 0; i < rowCount; ++ i) {
+      for (int j = 0; j < columnCount; ++ j) {
+        packed[j * rowCount + i] = xData[i][j];
+      }
+    }
+    return LinLeastSq(packed, rowCount, yData);
+  }
+
+  /**
+   * Ridge regression by the normal equations, with the sums over the rows accumulated on
+   * threadCount threads. See LeastSquaresAccumulator. This is faster than the QR fit for many
+   * rows, but squares the condition number of the design, so use it only for well conditioned
+   * designs or with a ridge penalty.
+   */
+  public static double[] LinLeastSq(double[][] xData, double[] yData, double ridge, int threadCount) {
+    return LeastSquaresAccumulator.accumulate(xData, yData, threadCount).solve(ridge);
+  }
+
+  /**
+   * Least squares fit for a column-packed design matrix, as filled by BasisSet.evaluate. The
+   * columns are scaled to unit norm and the fit is by QR. If the scaled design is numerically rank
+   * deficient, or has fewer rows than columns, the fit of minimum norm in the scaled coordinates
+   * is computed from an SVD instead, dropping singular values below kRankTol times the largest.
+   *
+   * @param xData    column-packed design matrix with rowCount rows
+   * @param rowCount number of observations
+   * @param yData    observations
+   * @return the coefficients
+   */
+  public static double[] LinLeastSq(double[] xData, int rowCount, double[] yData) {
+    int columnCount = xData.length / rowCount;
+    double[] scaled = new double[xData.length], scales = new double[columnCount];
+    for (int j = 0; j < columnCount; ++ j) {
+      double norm = 0.;
+      for (int i = 0; i < rowCount; ++ i) {
+        norm += xData[j * rowCount + i] * xData[j * rowCount + i];
+      }
+      scales[j] = norm > 0. ? 1. / Math.sqrt(norm) : 1.;
+      for (int i = 0; i < rowCount; ++ i) {
+        scaled[j * rowCount + i] = scales[j] * xData[j * rowCount + i];
+      }
+    }
+    Matrix xMatrix = new Matrix(scaled, rowCount);
+    Matrix yMatrix = new Matrix(yData, yData.length);
+    double[] weights = null;
+    if (rowCount >= columnCount) {
+      QRDecomposition qr = new QRDecomposition(xMatrix);
+      double[][] r = qr.getR().getArray();
+      double minDiag = Double.MAX_VALUE, maxDiag = 0.;
+      for (int j = 0; j < columnCount; ++ j) {
+        minDiag = Math.min(minDiag, Math.abs(r[j][j]));
+        maxDiag = Math.max(maxDiag, Math.abs(r[j][j]));
+      }
+      if (minDiag > kRankTol * maxDiag) {
+        weights = qr.solve(yMatrix).getColumnPackedCopy();
+      }
+    }
+    if (weights == null) {
+      weights = minNormSolve(xMatrix, yMatrix);
+    }
+    for (int j = 0; j < columnCount; ++ j) {
+      weights[j] *= scales[j];
+    }
+    return weights;
+  }
+
+  private static double[] minNormSolve(Matrix xMatrix, Matrix yMatrix) {
+    // Jama's SVD needs at least as many rows as columns, for a wide x take the SVD of x'
+    boolean tall = xMatrix.getRowDimension() >= xMatrix.getColumnDimension();
+    SingularValueDecomposition svd = new SingularValueDecomposition(tall ? xMatrix : xMatrix.transpose());
+    Matrix left = tall ? svd.getU() : svd.getV(), right = tall ? svd.getV() : svd.getU();
+    double[] singularValues = svd.getSingularValues();
+    Matrix projected = left.transpose().times(yMatrix);
+    for (int i = 0; i < singularValues.length; ++ i) {
+      double value = singularValues[i];
+      projected.set(i, 0, value > kRankTol * singularValues[0] ? projected.get(i, 0) / value : 0.);
     }
-    Matrix yMatrix = new Matrix(yDataAlt);
-    Matrix weights = xMatrix.solve(yMatrix).transpose();
-    return weights.getArray()[0];
+    return right.times(projected).getColumnPackedCopy();
   }
 }
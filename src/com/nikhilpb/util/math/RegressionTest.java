@@ -29,4 +29,45 @@ public class RegressionTest {
     assert Math.abs(weights[0] - 0.) < kTol;
     assert Math.abs(weights[1] - 1.) < kTol;
   }
+
+  @Test
+  public void testIllConditioned() throws Exception {
+    // nearly collinear columns, the condition number squared is beyond double precision
+    double[][] xData = new double[10][2];
+    double[] yData = new double[10];
+    for (int i = 0; i < 10; ++ i) {
+      xData[i][0] = 1.;
+      xData[i][1] = 1. + 1E-7 * i;
+      yData[i] = xData[i][0] + 2. * xData[i][1];
+    }
+    double[] weights = Regression.LinLeastSq(xData, yData);
+    assert Math.abs(weights[0] - 1.) < kTol;
+    assert Math.abs(weights[1] - 2.) < kTol;
+  }
+
+  @Test
+  public void testColumnPacked() throws Exception {
+    double[] xData = {1., 1., 1., 1., 2., 3.};
+    double[] yData = {1., 2., 3.};
+    double[] weights = Regression.LinLeastSq(xData, 3, yData);
+    assert weights.length == 2;
+    assert Math.abs(weights[0] - 0.) < kTol;
+    assert Math.abs(weights[1] - 1.) < kTol;
+  }
+
+  @Test
+  public void testRankDeficient() throws Exception {
+    double[] xData = {1., 1., 1., 1., 2., 3., 1., 2., 3.};
+    double[] yData = {1., 2., 3.};
+    double[] weights = Regression.LinLeastSq(xData, 3, yData);
+    assert Math.abs(weights[0] - 0.) < kTol;
+    assert Math.abs(weights[1] - .5) < kTol;
+    assert Math.abs(weights[2] - .5) < kTol;
+    double[] wideX = {1., 2.};
+    double[] wideY = {5.};
+    weights = Regression.LinLeastSq(wideX, 1, wideY);
+    // minimum norm in the coordinates of the unit norm columns
+    assert Math.abs(weights[0] - 2.5) < kTol;
+    assert Math.abs(weights[1] - 1.25) < kTol;
+  }
 }
@@ -0,0 +1,295 @@
+package com.nikhilpb.util.math;
+
+import java.util.Arrays;
+
+/**
+ * Maximum-weight partial matching of a sparse bipartite graph given by its list of edges, for
+ * graphs where a dense weight matrix would be mostly zeros. Edges of nonpositive weight are
+ * dropped, and rows and columns may be left unmatched, as in HungarianAssignmentSolver.
+ * <p/>
+ * The rows start with potentials u_i = max_j w_ij and the columns with v_j = 0, which satisfy
+ * u_i + v_j &gt;= w_ij. Every unmatched row of positive potential is then the root of one
+ * Dijkstra search over the reduced costs u_i + v_j - w_ij of the edges, which stops at the first
+ * unmatched column, where the path is augmented, or at the first tree row whose potential runs
+ * out, where the path is flipped to leave that row unmatched. Either way the potentials stay
+ * feasible, tight on the matched edges and zero on the unmatched vertices, so the final matching
+ * is optimal. A search touches only the edges of the rows it reaches, so the cost is in terms of
+ * the number of edges rather than the product of the sizes.
+ */
+public class SparseAssignmentSolver {
+  private final int rowCount, columnCount;
+  private int edgeCount = 0;
+  private int[] edgeRows = new int[16], edgeColumns = new int[16];
+  private double[] edgeWeights = new double[16];
+  // edges by row, compressed
+  private int[] rowStart, adjColumns;
+  private double[] adjWeights;
+  private double[] u, v, distRow, distColumn;
+  private int[] rowMatches, columnMatches, from, settledRows, touchedColumns;
+  private boolean[] columnInTree;
+  private int touchedCount;
+  private double weight;
+  // binary heap of search events, a column j as j and a row i as -(i + 1)
+  private int heapSize;
+  private double[] heapKeys = new double[16];
+  private int[] heapNodes = new int[16];
+
+  public SparseAssignmentSolver(int rowCount, int columnCount) {
+    this.rowCount = rowCount;
+    this.columnCount = columnCount;
+  }
+
+  /**
+   * Adds the edge (row, column) of the given weight. An edge of nonpositive weight is ignored.
+   */
+  public void addEdge(int row, int column, double weight) {
+    if (row < 0 || row >= rowCount || column < 0 || column >= columnCount) {
+      throw new IllegalArgumentException("edge (" + row + ", " + column + ") out of range");
+    }
+    if (weight <= 0.) {
+      return;
+    }
+    if (edgeCount == edgeRows.length) {
+      edgeRows = Arrays.copyOf(edgeRows, 2 * edgeCount);
+      edgeColumns = Arrays.copyOf(edgeColumns, 2 * edgeCount);
+      edgeWeights = Arrays.copyOf(edgeWeights, 2 * edgeCount);
+    }
+    edgeRows[edgeCount] = row;
+    edgeColumns[edgeCount] = column;
+    edgeWeights[edgeCount] = weight;
+    ++ edgeCount;
+  }
+
+  /**
+   * @return number of edges of positive weight
+   */
+  public int getEdgeCount() {
+    return edgeCount;
+  }
+
+  /**
+   * Computes a maximum-weight matching over the edges added so far.
+   *
+   * @return the weight of the matching
+   */
+  public double computeMax() {
+    rowStart = new int[rowCount + 1];
+    for (int e = 0; e < edgeCount; ++ e) {
+      ++ rowStart[edgeRows[e] + 1];
+    }
+    for (int i = 0; i < rowCount; ++ i) {
+      rowStart[i + 1] += rowStart[i];
+    }
+    adjColumns = new int[edgeCount];
+    adjWeights = new double[edgeCount];
+    int[] fill = Arrays.copyOf(rowStart, rowCount);
+    for (int e = 0; e < edgeCount; ++ e) {
+      int k = fill[edgeRows[e]] ++;
+      adjColumns[k] = edgeColumns[e];
+      adjWeights[k] = edgeWeights[e];
+    }
+    u = new double[rowCount];
+    v = new double[columnCount];
+    distRow = new double[rowCount];
+    distColumn = new double[columnCount];
+    rowMatches = new int[rowCount];
+    columnMatches = new int[columnCount];
+    from = new int[columnCount];
+    settledRows = new int[rowCount];
+    touchedColumns = new int[columnCount];
+    columnInTree = new boolean[columnCount];
+    Arrays.fill(rowMatches, - 1);
+    Arrays.fill(columnMatches, - 1);
+    Arrays.fill(distRow, Double.POSITIVE_INFINITY);
+    Arrays.fill(distColumn, Double.POSITIVE_INFINITY);
+    for (int i = 0; i < rowCount; ++ i) {
+      for (int k = rowStart[i]; k < rowStart[i + 1]; ++ k) {
+        u[i] = Math.max(u[i], adjWeights[k]);
+      }
+    }
+    for (int i = 0; i < rowCount; ++ i) {
+      if (u[i] > 0.) {
+        search(i);
+      }
+    }
+    weight = 0.;
+    for (int i = 0; i < rowCount; ++ i) {
+      int j = rowMatches[i];
+      if (j >= 0) {
+        weight += edgeWeight(i, j);
+      }
+    }
+    return weight;
+  }
+
+  private double edgeWeight(int i, int j) {
+    for (int k = rowStart[i]; k < rowStart[i + 1]; ++ k) {
+      if (adjColumns[k] == j) {
+        return adjWeights[k];
+      }
+    }
+    throw new RuntimeException("no edge (" + i + ", " + j + ")");
+  }
+
+  private void search(int root) {
+    int rowSettled = 0;
+    heapSize = 0;
+    touchedCount = 0;
+    distRow[root] = 0.;
+    settledRows[rowSettled ++] = root;
+    push(u[root], - (root + 1));
+    relax(root);
+    double delta = 0.;
+    int endColumn = - 1, endRow = - 1;
+    while (heapSize > 0) {
+      double key = heapKeys[0];
+      int node = pop();
+      if (node >= 0) {
+        if (columnInTree[node] || key > distColumn[node]) {
+          // stale entry
+          continue;
+        }
+        int mate = columnMatches[node];
+        columnInTree[node] = true;
+        if (mate < 0) {
+          delta = key;
+          endColumn = node;
+          break;
+        }
+        distRow[mate] = key;
+        settledRows[rowSettled ++] = mate;
+        push(key + u[mate], - (mate + 1));
+        relax(mate);
+      } else {
+        int row = - node - 1;
+        delta = key;
+        endRow = row;
+        break;
+      }
+    }
+    // potentials of the tree, then reset the distances for the next search
+    for (int k = 0; k < rowSettled; ++ k) {
+      int i = settledRows[k];
+      if (distRow[i] < delta) {
+        u[i] -= delta - distRow[i];
+      }
+    }
+    for (int k = 0; k < touchedCount; ++ k) {
+      int j = touchedColumns[k];
+      if (columnInTree[j] && distColumn[j] < delta) {
+        v[j] += delta - distColumn[j];
+      }
+    }
+    if (endRow >= 0) {
+      u[endRow] = 0.;
+      if (endRow != root) {
+        int j = rowMatches[endRow];
+        rowMatches[endRow] = - 1;
+        columnMatches[j] = - 1;
+        augment(root, j);
+      }
+    } else if (endColumn >= 0) {
+      augment(root, endColumn);
+    }
+    for (int k = 0; k < rowSettled; ++ k) {
+      distRow[settledRows[k]] = Double.POSITIVE_INFINITY;
+    }
+    for (int k = 0; k < touchedCount; ++ k) {
+      distColumn[touchedColumns[k]] = Double.POSITIVE_INFINITY;
+      columnInTree[touchedColumns[k]] = false;
+    }
+  }
+
+  /**
+   * Relaxes the edges of a tree row to the columns not yet in the tree.
+   */
+  private void relax(int i) {
+    for (int k = rowStart[i]; k < rowStart[i + 1]; ++ k) {
+      int j = adjColumns[k];
+      if (columnInTree[j]) {
+        continue;
+      }
+      double d = distRow[i] + Math.max(u[i] + v[j] - adjWeights[k], 0.);
+      if (d < distColumn[j]) {
+        if (distColumn[j] == Double.POSITIVE_INFINITY) {
+          touchedColumns[touchedCount ++] = j;
+        }
+        distColumn[j] = d;
+        from[j] = i;
+        push(d, j);
+      }
+    }
+  }
+
+  private void augment(int root, int j) {
+    int cur = j;
+    while (true) {
+      int i = from[cur], next = rowMatches[i];
+      rowMatches[i] = cur;
+      columnMatches[cur] = i;
+      if (i == root) {
+        return;
+      }
+      cur = next;
+    }
+  }
+
+  private void push(double key, int node) {
+    if (heapSize == heapKeys.length) {
+      heapKeys = Arrays.copyOf(heapKeys, 2 * heapSize);
+      heapNodes = Arrays.copyOf(heapNodes, 2 * heapSize);
+    }
+    int k = heapSize ++;
+    while (k > 0) {
+      int parent = (k - 1) / 2;
+      if (heapKeys[parent] <= key) {
+        break;
+      }
+      heapKeys[k] = heapKeys[parent];
+      heapNodes[k] = heapNodes[parent];
+      k = parent;
+    }
+    heapKeys[k] = key;
+    heapNodes[k] = node;
+  }
+
+  private int pop() {
+    int top = heapNodes[0];
+    double key = heapKeys[-- heapSize];
+    int node = heapNodes[heapSize], k = 0;
+    while (2 * k + 1 < heapSize) {
+      int child = 2 * k + 1;
+      if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) {
+        ++ child;
+      }
+      if (heapKeys[child] >= key) {
+        break;
+      }
+      heapKeys[k] = heapKeys[child];
+      heapNodes[k] = heapNodes[child];
+      k = child;
+    }
+    heapKeys[k] = key;
+    heapNodes[k] = node;
+    return top;
+  }
+
+  /**
+   * @return arr with arr[i] = j if (i, j) is in the matching and arr[i] = -1 if row i is unmatched
+   */
+  public int[] getRowMatches() {
+    return rowMatches;
+  }
+
+  /**
+   * @return arr with arr[j] = i if (i, j) is in the matching and arr[j] = -1 if column j is
+   * unmatched
+   */
+  public int[] getColumnMatches() {
+    return columnMatches;
+  }
+
+  public double getMatchingWeight() {
+    return weight;
+  }
+}
@@ -0,0 +1,33 @@
+package com.nikhilpb.util.math;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests for the sparse assignment solver, against the dense solver with zeros for missing edges.
+ */
+public class SparseAssignmentSolverTest {
+  @Test
+  public void testAgainstHungarian() throws Exception {
+    Random random = new Random(3l);
+    HungarianAssignmentSolver hungarian = new HungarianAssignmentSolver();
+    for (int trial = 0; trial < 100; ++ trial) {
+      int rowCount = 1 + random.nextInt(40), columnCount = 1 + random.nextInt(40);
+      double density = random.nextDouble();
+      double[][] w = new double[rowCount][columnCount];
+      SparseAssignmentSolver solver = new SparseAssignmentSolver(rowCount, columnCount);
+      for (int i = 0; i < rowCount; ++ i) {
+        for (int j = 0; j < columnCount; ++ j) {
+          if (random.nextDouble() < density) {
+            // integral weights, to exercise the ties
+            w[i][j] = random.nextInt(9) - 2.;
+            solver.addEdge(i, j, w[i][j]);
+          }
+        }
+      }
+      double weight = solver.computeMax();
+      MatchingChecks.check(w, solver.getRowMatches(), solver.getColumnMatches(), weight, hungarian.computeMax(w));
+    }
+  }
+}